@@ -0,0 +1,83 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fan-out cost of one chat message: sequence number, encoding and queueing
+ * a frame for every member of the room. Recipients are {@link InMemorySession}s,
+ * so the numbers exclude the kernel but include the outbound queues.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    int recipients;
+
+    @Param({"text", "binary"})
+    String protocol;
+
+    private ChatServer server;
+    private Room lobby;
+    private InMemorySession sender;
+    private InMemorySession visitor;
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // The per-broadcast console log would dominate; measure the fan-out itself
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        server = new ChatServer(new ServerConfig().setHistoryEnabled(false).setMaxClients(0));
+        boolean binary = protocol.equals("binary");
+        sender = InMemorySession.connect(server, "sender", binary);
+        for (int i = 0; i < recipients; i++) {
+            InMemorySession.connect(server, "user" + i, binary);
+        }
+        lobby = sender.joinedRoom;
+        visitor = InMemorySession.connect(server, "visitor", binary);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public void broadcastChat() {
+        server.broadcastChat(lobby, "sender", "Hello everyone, this is a typical chat message", sender);
+    }
+
+    /**
+     * One member leaving and rejoining, announced to the rest of the room:
+     * a presence delta per binary member, a rebuilt full user list for text members.
+     */
+    @Benchmark
+    public void presenceChange() {
+        long left = server.leaveRoom(visitor, lobby);
+        server.announcePresence(lobby, "visitor", BinaryCodec.USER_LEFT, left, visitor);
+        Room.Membership joined = server.joinRoom(visitor, Room.LOBBY);
+        server.announcePresence(joined.room(), "visitor", BinaryCodec.USER_JOINED, joined.version(), visitor);
+    }
+}
@@ -0,0 +1,153 @@
+package com.arpon7fx.ar.messenger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Client-side cost of an incoming message, from the received line or frame
+ * to the sender and body the chat view shows. The plain benchmarks decode
+ * into a {@link ChatMessage} once; the {@code legacy*} ones reproduce the
+ * earlier path, where ChatClient stripped prefixes and rebuilt
+ * "sender:body" strings and the Controller split them again with a regex.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientParsingBenchmark {
+
+    private static final String CHAT_LINE = "alice:Hello everyone, this is a typical chat message";
+    private static final String SYSTEM_LINE = "SYSTEM:bob joined the chat";
+    private static final String USERS_LINE = "USERS:alice,bob,carol,dave,erin,frank,grace,heidi";
+
+    private ChatClient client;
+    private ByteBuffer chatFrame;
+    private ByteBuffer usersFrame;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        client = new ChatClient("alice");
+        client.setMessageListener(new ChatClient.MessageListener() {
+            @Override
+            public void onChatMessage(ChatMessage message) {
+                blackhole.consume(message);
+            }
+
+            @Override
+            public void onMessageReceived(String message) {
+                blackhole.consume(message);
+            }
+
+            @Override
+            public void onConnectionStatusChanged(boolean connected) {
+            }
+
+            @Override
+            public void onError(String error) {
+                blackhole.consume(error);
+            }
+
+            @Override
+            public void onUserListUpdated(String[] users) {
+                blackhole.consume(users);
+            }
+        });
+        chatFrame = ServerMessage.chat(1, "alice", "Hello everyone, this is a typical chat message").frame(true);
+        usersFrame = ServerMessage.userList(1, USERS_LINE.substring(6).split(",")).frame(true);
+    }
+
+    @Benchmark
+    public boolean textChat() {
+        return client.handleIncomingMessage(CHAT_LINE);
+    }
+
+    @Benchmark
+    public boolean textSystem() {
+        return client.handleIncomingMessage(SYSTEM_LINE);
+    }
+
+    @Benchmark
+    public boolean textUsers() {
+        return client.handleIncomingMessage(USERS_LINE);
+    }
+
+    @Benchmark
+    public boolean binaryChat() throws Exception {
+        return decodeFrame(chatFrame.duplicate());
+    }
+
+    @Benchmark
+    public boolean binaryUsers() throws Exception {
+        return decodeFrame(usersFrame.duplicate());
+    }
+
+    private boolean decodeFrame(ByteBuffer frame) throws Exception {
+        byte type = frame.get();
+        long id = BinaryCodec.readVarint(frame);
+        int length = (int) BinaryCodec.readVarint(frame);
+        return client.handleIncomingFrame(type, id, frame.slice(frame.position(), length));
+    }
+
+    @Benchmark
+    public void legacyTextChat(Blackhole blackhole) {
+        legacyDispatch(CHAT_LINE, blackhole);
+    }
+
+    @Benchmark
+    public void legacyTextUsers(Blackhole blackhole) {
+        legacyDispatch(USERS_LINE, blackhole);
+    }
+
+    @Benchmark
+    public void legacyBinaryChat(Blackhole blackhole) throws Exception {
+        ByteBuffer frame = chatFrame.duplicate();
+        frame.get();
+        BinaryCodec.readVarint(frame);
+        int length = (int) BinaryCodec.readVarint(frame);
+        ByteBuffer payload = frame.slice(frame.position(), length);
+        String sender = BinaryCodec.readString(payload);
+        legacySplit(sender + ":" + BinaryCodec.readRemaining(payload), blackhole);
+    }
+
+    // ChatClient.handleIncomingMessage followed by Controller.onMessageReceived, as they were
+    private static void legacyDispatch(String message, Blackhole blackhole) {
+        if (message.startsWith("ERROR:")) {
+            blackhole.consume(message.substring(6));
+        } else if (message.startsWith("USERS:")) {
+            String userList = message.substring(6);
+            if (!userList.isEmpty()) {
+                blackhole.consume(userList.split(","));
+            }
+        } else if (message.startsWith("PRIVATE:")) {
+            legacySplit(message.substring(8), blackhole);
+        } else {
+            legacySplit(message, blackhole);
+        }
+    }
+
+    private static void legacySplit(String message, Blackhole blackhole) {
+        if (message.startsWith("SYSTEM:")) {
+            blackhole.consume(message.substring(7));
+        } else {
+            String[] parts = message.split(":", 2);
+            if (parts.length == 2) {
+                blackhole.consume(parts[0]);
+                blackhole.consume(parts[1]);
+            }
+        }
+    }
+}
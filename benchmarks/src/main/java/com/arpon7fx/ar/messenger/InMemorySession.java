@@ -0,0 +1,54 @@
+package com.arpon7fx.ar.messenger;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Socket stand-in for the benchmarks: a logged-in session whose transport
+ * just drains the outbound queue and counts the bytes it would have written.
+ */
+final class InMemorySession extends ChatSession {
+    long bytesWritten;
+    long framesWritten;
+    Room joinedRoom;
+
+    private InMemorySession(ChatServer server) {
+        super(server);
+    }
+
+    /**
+     * Registers a session the way login does, minus the join broadcasts,
+     * so building rooms with thousands of members stays linear.
+     */
+    static InMemorySession connect(ChatServer server, String username, boolean binary) throws Exception {
+        InMemorySession session = new InMemorySession(server);
+        if (binary) {
+            // The preface alone switches the session to binary frames
+            session.onBytes(BinaryCodec.preface());
+        }
+        session.username = username;
+        server.addClient(session);
+        if (!server.reserveUsername(username, session).join()) {
+            throw new IllegalStateException("Duplicate username " + username);
+        }
+        session.joinedRoom = server.joinRoom(session, Room.LOBBY).room();
+        return session;
+    }
+
+    @Override
+    protected void onOutboundReady() {
+        ByteBuffer frame;
+        while ((frame = outbound.poll()) != null) {
+            bytesWritten += frame.remaining();
+            framesWritten++;
+        }
+    }
+
+    @Override
+    protected void runOnReader(Runnable task) {
+        task.run();
+    }
+
+    @Override
+    protected void closeTransport() {
+    }
+}
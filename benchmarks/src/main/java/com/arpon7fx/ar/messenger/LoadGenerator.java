@@ -0,0 +1,395 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Headless load test: opens N {@link ChatClient} sessions against a server on
+ * loopback, sends a paced mix of room broadcasts, whispers, /users and /ping,
+ * and reports end-to-end latency percentiles, throughput and connect time.
+ *
+ * <p>Broadcasts and whispers carry their intended send time, so latency is
+ * measured by every receiver and includes time the generator fell behind
+ * schedule (no coordinated omission). /users and /ping are timed as round
+ * trips on the sending connection.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.arpon7fx.ar.messenger.LoadGenerator \
+ *     --clients=1000 --rate=5000 --duration=30 --maxP99Millis=50
+ * </pre>
+ * Exits with status 1 if a latency limit is exceeded, so releases can be gated on it.
+ */
+public final class LoadGenerator {
+    private static final String STAMP = "lg@";
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private enum Op { BROADCAST, WHISPER, USERS, PING }
+
+    // Options, set with --name=value
+    private String host = "127.0.0.1";
+    private int port = 12346;
+    private boolean embedded = true;
+    private String engine = "nio";
+    private ChatClient.Protocol protocol = ChatClient.Protocol.BINARY;
+    private int clients = 200;
+    private int roomSize = 50;
+    private int rate = 2000;
+    private int durationSeconds = 20;
+    private int warmupSeconds = 5;
+    private int senderThreads = 4;
+    private int[] mix = {70, 10, 10, 10};
+    private double maxP99Millis = -1;
+    private double maxP999Millis = -1;
+    private boolean quiet = true;
+
+    private final Histogram connectTimes = new ConcurrentHistogram(HIGHEST_TRACKABLE_NANOS, 3);
+    private final Histogram[] latencies = new Histogram[Op.values().length];
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile boolean recording;
+    private Session[] sessions;
+
+    private LoadGenerator() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new ConcurrentHistogram(HIGHEST_TRACKABLE_NANOS, 3);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parseArgs(args);
+        System.exit(generator.run() ? 0 : 1);
+    }
+
+    private void parseArgs(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "host" -> host = value;
+                case "port" -> port = Integer.parseInt(value);
+                case "embedded" -> embedded = Boolean.parseBoolean(value);
+                case "engine" -> engine = value;
+                case "protocol" -> protocol = ChatClient.Protocol.valueOf(value.toUpperCase(java.util.Locale.ROOT));
+                case "clients" -> clients = Integer.parseInt(value);
+                case "roomSize" -> roomSize = Integer.parseInt(value);
+                case "rate" -> rate = Integer.parseInt(value);
+                case "duration" -> durationSeconds = Integer.parseInt(value);
+                case "warmup" -> warmupSeconds = Integer.parseInt(value);
+                case "senderThreads" -> senderThreads = Integer.parseInt(value);
+                case "mix" -> mix = parseMix(value);
+                case "maxP99Millis" -> maxP99Millis = Double.parseDouble(value);
+                case "maxP999Millis" -> maxP999Millis = Double.parseDouble(value);
+                case "quiet" -> quiet = Boolean.parseBoolean(value);
+                default -> throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if (!host.equals("127.0.0.1") && !host.equals("localhost") && !host.equals("::1")) {
+            throw new IllegalArgumentException("The load generator only targets loopback");
+        }
+    }
+
+    // "broadcast:70,whisper:10,users:10,ping:10"
+    private static int[] parseMix(String value) {
+        int[] weights = new int[Op.values().length];
+        for (String part : value.split(",")) {
+            int colon = part.indexOf(':');
+            Op op = Op.valueOf(part.substring(0, colon).trim().toUpperCase(java.util.Locale.ROOT));
+            weights[op.ordinal()] = Integer.parseInt(part.substring(colon + 1).trim());
+        }
+        return weights;
+    }
+
+    private boolean run() throws Exception {
+        PrintStream report = System.out;
+        if (quiet) {
+            // ChatClient and the embedded server log every connect and broadcast
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        ChatServer server = null;
+        if (embedded) {
+            server = new ChatServer(new ServerConfig()
+                .setEngine(ServerConfig.Engine.valueOf(engine.toUpperCase(java.util.Locale.ROOT)))
+                .setPort(port)
+                .setMaxClients(0)
+                // Every simulated client shares one address and sends far above a human's rate
+                .setAcceptsPerSecondPerAddress(0)
+                .setChatMessagesPerSecond(0)
+                .setChatBytesPerSecond(0)
+                .setCommandMessagesPerSecond(0)
+                .setCommandBytesPerSecond(0)
+                .setHistoryEnabled(false));
+            // --port=0 lets the server pick a free one
+            port = server.startAsync().get(10, TimeUnit.SECONDS);
+        }
+
+        try {
+            connectAll(report);
+            report.printf("Warming up for %ds...%n", warmupSeconds);
+            drive(TimeUnit.SECONDS.toNanos(warmupSeconds));
+            resetStats();
+            recording = true;
+            report.printf("Measuring for %ds at %d ops/s...%n", durationSeconds, rate);
+            long start = System.nanoTime();
+            drive(TimeUnit.SECONDS.toNanos(durationSeconds));
+            // Let in-flight messages arrive before reading the histograms
+            Thread.sleep(500);
+            recording = false;
+            return report(report, System.nanoTime() - start);
+        } finally {
+            PrintStream errorStream = System.err;
+            if (quiet) {
+                // Both sides report every connection torn down below
+                System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+            }
+            if (server != null) {
+                // Stopped with every client still connected, so the shutdown itself is timed
+                int connected = server.getClientCount();
+                long stopStart = System.nanoTime();
+                server.stop();
+                report.printf("Stopped server with %d clients in %.1f ms%n", connected, (System.nanoTime() - stopStart) / 1e6);
+            }
+            if (sessions != null) {
+                for (Session session : sessions) {
+                    if (session != null) {
+                        session.client.disconnect();
+                    }
+                }
+            }
+            System.setOut(report);
+            System.setErr(errorStream);
+        }
+    }
+
+    private void connectAll(PrintStream report) throws InterruptedException {
+        sessions = new Session[clients];
+        CountDownLatch loggedIn = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            Session session = new Session(i, loggedIn);
+            sessions[i] = session;
+            session.connectStarted = System.nanoTime();
+            if (!session.client.connect(host, port)) {
+                throw new IllegalStateException("Client " + i + " failed to connect");
+            }
+        }
+        if (!loggedIn.await(60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(loggedIn.getCount() + " clients never finished logging in");
+        }
+        report.printf("Connected %d clients in %.1f ms%n", clients, (System.nanoTime() - start) / 1e6);
+
+        if (roomSize > 0 && roomSize < clients) {
+            for (Session session : sessions) {
+                session.client.sendMessage("/join " + session.room);
+            }
+            Thread.sleep(1000);
+        }
+    }
+
+    /** Spreads the target rate over the sender threads, each sending on its own schedule. */
+    private void drive(long durationNanos) throws InterruptedException {
+        if (rate <= 0 || durationNanos <= 0) {
+            return;
+        }
+        long intervalNanos = TimeUnit.SECONDS.toNanos(senderThreads) / rate;
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < senderThreads; t++) {
+            long offset = t * intervalNanos / senderThreads;
+            Thread thread = new Thread(() -> sendLoop(start + offset, start + durationNanos, intervalNanos), "LoadGenerator-sender-" + t);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void sendLoop(long firstSend, long end, long intervalNanos) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int totalWeight = 0;
+        for (int weight : mix) {
+            totalWeight += weight;
+        }
+        for (long intended = firstSend; intended < end; intended += intervalNanos) {
+            long delay = intended - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            Session session = sessions[random.nextInt(sessions.length)];
+            session.send(pick(random.nextInt(totalWeight)), intended, random);
+            sent.incrementAndGet();
+        }
+    }
+
+    private Op pick(int roll) {
+        for (Op op : Op.values()) {
+            roll -= mix[op.ordinal()];
+            if (roll < 0) {
+                return op;
+            }
+        }
+        return Op.PING;
+    }
+
+    private void resetStats() {
+        for (Histogram histogram : latencies) {
+            histogram.reset();
+        }
+        sent.set(0);
+        received.set(0);
+        errors.set(0);
+    }
+
+    private void record(Op op, long intendedNanos) {
+        if (recording) {
+            long latency = System.nanoTime() - intendedNanos;
+            latencies[op.ordinal()].recordValue(Math.min(Math.max(latency, 0), HIGHEST_TRACKABLE_NANOS));
+            received.incrementAndGet();
+        }
+    }
+
+    private boolean report(PrintStream out, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        out.println();
+        out.printf("Clients: %d (%s, %s engine), room size %d%n", clients, protocol, embedded ? engine : "external", roomSize);
+        out.printf("Sent:     %,d ops (%.0f ops/s)%n", sent.get(), sent.get() / seconds);
+        out.printf("Received: %,d messages (%.0f msg/s)%n", received.get(), received.get() / seconds);
+        out.printf("Errors:   %,d%n", errors.get());
+        out.printf("Connect + login (ms):  p50 %8.2f  p99 %8.2f  max %8.2f%n",
+            millis(connectTimes, 50), millis(connectTimes, 99), connectTimes.getMaxValue() / 1e6);
+        out.printf("%-10s %10s %10s %10s %10s %10s%n", "latency ms", "count", "p50", "p99", "p99.9", "max");
+        boolean passed = true;
+        Histogram total = new Histogram(HIGHEST_TRACKABLE_NANOS, 3);
+        for (Op op : Op.values()) {
+            Histogram histogram = latencies[op.ordinal()];
+            total.add(histogram);
+            printRow(out, op.name().toLowerCase(java.util.Locale.ROOT), histogram);
+        }
+        printRow(out, "all", total);
+
+        if (maxP99Millis > 0 && millis(total, 99) > maxP99Millis) {
+            out.printf("FAILED: p99 %.2f ms exceeds %.2f ms%n", millis(total, 99), maxP99Millis);
+            passed = false;
+        }
+        if (maxP999Millis > 0 && millis(total, 99.9) > maxP999Millis) {
+            out.printf("FAILED: p99.9 %.2f ms exceeds %.2f ms%n", millis(total, 99.9), maxP999Millis);
+            passed = false;
+        }
+        return passed;
+    }
+
+    private static void printRow(PrintStream out, String name, Histogram histogram) {
+        out.printf("%-10s %10d %10.2f %10.2f %10.2f %10.2f%n", name, histogram.getTotalCount(),
+            millis(histogram, 50), millis(histogram, 99), millis(histogram, 99.9), histogram.getMaxValue() / 1e6);
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1e6;
+    }
+
+    /** One client connection plus the bookkeeping to time its replies. */
+    private final class Session implements ChatClient.MessageListener {
+        final String name;
+        final String room;
+        final ChatClient client;
+        // Intended send times of /users and /ping; replies come back in order per connection
+        final Queue<Long> pendingUsers = new ConcurrentLinkedQueue<>();
+        final Queue<Long> pendingPings = new ConcurrentLinkedQueue<>();
+        private final CountDownLatch loggedIn;
+        volatile long connectStarted;
+        private volatile boolean sawUserList;
+
+        Session(int index, CountDownLatch loggedIn) {
+            this.name = "load" + index;
+            this.room = "load-" + (roomSize > 0 ? index / roomSize : 0);
+            this.loggedIn = loggedIn;
+            this.client = new ChatClient(name, protocol);
+            client.setMessageListener(this);
+            // A dropped connection is a failure here, and shutdown should not start a reconnect storm
+            client.setAutoReconnect(false);
+        }
+
+        // Synchronized so a reply cannot overtake the queued send time of its own request
+        synchronized void send(Op op, long intended, ThreadLocalRandom random) {
+            switch (op) {
+                case BROADCAST -> client.sendMessage(STAMP + intended);
+                case WHISPER -> {
+                    String target = sessions[random.nextInt(sessions.length)].name;
+                    client.sendPrivateMessage(target, STAMP + intended);
+                }
+                case USERS -> {
+                    pendingUsers.add(intended);
+                    client.requestUserList();
+                }
+                case PING -> {
+                    pendingPings.add(intended);
+                    client.sendMessage("/ping");
+                }
+            }
+        }
+
+        @Override
+        public void onMessageReceived(String message) {
+            if (message.startsWith("SYSTEM:")) {
+                Long intended = null;
+                if (message.startsWith("SYSTEM:Pong!")) {
+                    intended = pendingPings.poll();
+                    if (intended != null) {
+                        record(Op.PING, intended);
+                    }
+                } else if (message.startsWith("SYSTEM:Online users")) {
+                    intended = pendingUsers.poll();
+                    if (intended != null) {
+                        record(Op.USERS, intended);
+                    }
+                }
+                return;
+            }
+            int stamp = message.indexOf(STAMP);
+            if (stamp >= 0) {
+                long intended = Long.parseLong(message, stamp + STAMP.length(), message.length(), 10);
+                record(message.contains(" (whisper): ") ? Op.WHISPER : Op.BROADCAST, intended);
+            }
+        }
+
+        @Override
+        public void onConnectionStatusChanged(boolean connected) {
+            if (!connected && recording) {
+                errors.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onError(String error) {
+            errors.incrementAndGet();
+        }
+
+        // The first user list marks a completed login
+        @Override
+        public void onUserListUpdated(String[] users) {
+            if (!sawUserList) {
+                sawUserList = true;
+                connectTimes.recordValue(Math.min(System.nanoTime() - connectStarted, HIGHEST_TRACKABLE_NANOS));
+                loggedIn.countDown();
+            }
+        }
+    }
+}
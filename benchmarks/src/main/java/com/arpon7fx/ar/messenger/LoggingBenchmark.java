@@ -0,0 +1,101 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Broadcast throughput with four concurrent senders under each way of logging
+ * the message content. Console output is redirected to a file, as it would be
+ * for a server running in the background.
+ *
+ * <ul>
+ *   <li>{@code println} - the old broadcastMessage: System.out.println of every message</li>
+ *   <li>{@code async} - ServerLog writing every message to a file from its own thread</li>
+ *   <li>{@code sampled} - ServerLog logging 1% of the message content</li>
+ *   <li>{@code off} - content logging disabled</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class LoggingBenchmark {
+
+    @Param({"println", "async", "sampled", "off"})
+    String logging;
+
+    @Param({"10"})
+    int recipients;
+
+    private ChatServer server;
+    private Room lobby;
+    private InMemorySession sender;
+    private PrintStream originalOut;
+    private File consoleFile;
+    private File logFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        originalOut = System.out;
+        consoleFile = File.createTempFile("messenger-console", ".log");
+        logFile = File.createTempFile("messenger-server", ".log");
+        System.setOut(new PrintStream(new BufferedOutputStream(new FileOutputStream(consoleFile)), true));
+
+        ServerConfig config = new ServerConfig().setHistoryEnabled(false).setMaxClients(0)
+            .setLogFile(logFile.getPath())
+            .setLogMaxFileBytes(Long.MAX_VALUE);
+        switch (logging) {
+            case "sampled" -> config.setLogMessageSampleRate(0.01);
+            case "println", "off" -> config.setLogMessageSampleRate(0);
+            default -> config.setLogMessageSampleRate(1);
+        }
+        server = new ChatServer(config);
+        // The server is never started, so start its log writer here
+        server.getLog().start();
+        sender = InMemorySession.connect(server, "sender", false);
+        for (int i = 0; i < recipients; i++) {
+            InMemorySession.connect(server, "user" + i, false);
+        }
+        lobby = sender.joinedRoom;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.getLog().close();
+        System.out.close();
+        System.setOut(originalOut);
+        System.out.println("Dropped log events: " + server.getLog().droppedCount());
+        consoleFile.delete();
+        logFile.delete();
+    }
+
+    @Benchmark
+    public void broadcastChat() {
+        if (logging.equals("println")) {
+            System.out.println("Broadcasting to #" + lobby.getName() + ": " + "sender:Hello everyone, this is a typical chat message");
+        }
+        server.broadcastChat(lobby, "sender", "Hello everyone, this is a typical chat message", sender);
+    }
+}
@@ -0,0 +1,95 @@
+package com.arpon7fx.ar.messenger;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Replays a reconnect storm against the server's client membership structure:
+ * 5,000 connected clients, each repeatedly dropping and reconnecting while a
+ * broadcaster keeps iterating the membership.
+ *
+ * <ul>
+ *   <li>{@code copyOnWriteList} - the old ChatServer.clients: CopyOnWriteArrayList,
+ *       with removeClient() doing remove() plus removeIf()</li>
+ *   <li>{@code concurrentSet} - the current ConcurrentHashMap key set</li>
+ * </ul>
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReconnectStormBenchmark {
+
+    @Param({"5000"})
+    int clients;
+
+    @Param({"copyOnWriteList", "concurrentSet"})
+    String structure;
+
+    private Collection<FakeClient> membership;
+    private FakeClient[] population;
+    private boolean legacyCleanup;
+
+    static final class FakeClient {
+        volatile boolean connected = true;
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = (int) Thread.currentThread().getId();
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        legacyCleanup = structure.equals("copyOnWriteList");
+        membership = legacyCleanup ? new CopyOnWriteArrayList<>() : ConcurrentHashMap.newKeySet();
+        population = new FakeClient[clients];
+        for (int i = 0; i < clients; i++) {
+            population[i] = new FakeClient();
+            membership.add(population[i]);
+        }
+    }
+
+    @Benchmark
+    @Group("storm")
+    @GroupThreads(4)
+    public void reconnect(Cursor cursor) {
+        FakeClient client = population[Math.floorMod(cursor.next++, population.length)];
+        client.connected = false;
+        membership.remove(client);
+        if (legacyCleanup) {
+            membership.removeIf(c -> !c.connected);
+        }
+        client.connected = true;
+        membership.add(client);
+    }
+
+    @Benchmark
+    @Group("storm")
+    @GroupThreads(1)
+    public void broadcast(Blackhole blackhole) {
+        for (FakeClient client : membership) {
+            blackhole.consume(client.connected);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.arpon7fx.ar.messenger;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Username registry operations with a populated server: whisper routing,
+ * the taken check and the reserve/release pair done by every login and logout.
+ * Runs with four threads to include contention on the registry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class RegistryBenchmark {
+
+    @Param({"100", "10000"})
+    int users;
+
+    private ChatServer server;
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new ChatServer(new ServerConfig().setHistoryEnabled(false).setMaxClients(0));
+        names = new String[users];
+        for (int i = 0; i < users; i++) {
+            names[i] = "user" + i;
+            InMemorySession.connect(server, names[i], true);
+        }
+    }
+
+    private String randomName() {
+        return names[ThreadLocalRandom.current().nextInt(names.length)];
+    }
+
+    @Benchmark
+    public boolean sendPrivateMessage() {
+        return server.sendPrivateMessage(randomName(), "sender", "psst");
+    }
+
+    @Benchmark
+    public boolean isUsernameTaken() {
+        return server.isUsernameTaken(randomName());
+    }
+
+    @Benchmark
+    public boolean isUsernameTakenMiss() {
+        return server.isUsernameTaken("nobody" + ThreadLocalRandom.current().nextInt(users));
+    }
+
+    @Benchmark
+    public boolean reserveAndRelease(SessionHolder holder) {
+        boolean reserved = server.reserveUsername(holder.name, holder.session).join();
+        server.removeActiveUser(holder.name, holder.session);
+        return reserved;
+    }
+
+    /** One unregistered session per benchmark thread for the reserve/release loop. */
+    @State(Scope.Thread)
+    public static class SessionHolder {
+        String name;
+        InMemorySession session;
+
+        @Setup(Level.Trial)
+        public void setUp(RegistryBenchmark benchmark) throws Exception {
+            name = "guest-" + Thread.currentThread().getId();
+            session = InMemorySession.connect(benchmark.server, name, true);
+            benchmark.server.removeActiveUser(name, session);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end check of client reconnect and session resume on loopback. One
+ * client talks to the server directly, the other through a proxy that can cut
+ * every connection at once, like a Wi-Fi drop.
+ *
+ * <ul>
+ *   <li>Gap-free: while the direct client keeps sending, the proxied client's
+ *       connection is cut several times; it must still see every message exactly
+ *       once and in order, and the messages it sent while reconnecting must arrive.</li>
+ *   <li>Quiet: nobody sees the proxied user leave or join while it resumes.</li>
+ *   <li>Expiry: a client that does not come back is announced as gone once the
+ *       grace period ends.</li>
+ * </ul>
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.arpon7fx.ar.messenger.ResumeCheck \
+ *     --cuts=5 --messages=2000 --graceMillis=2000 --bufferSize=1024 --engine=nio
+ * </pre>
+ * Exits with status 1 if any check fails.
+ */
+public final class ResumeCheck {
+    private static final long TIMEOUT_MILLIS = 15_000;
+
+    // Options, set with --name=value
+    private int cuts = 5;
+    private int messages = 2000;
+    private long graceMillis = 2000;
+    private int bufferSize = 1024;
+    private long cutIntervalMillis = 500;
+    private String engine = "nio";
+    private boolean history = false;
+
+    private ChatServer server;
+    private int port;
+    private final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        ResumeCheck check = new ResumeCheck();
+        check.parseArgs(args);
+        System.exit(check.run() ? 0 : 1);
+    }
+
+    private void parseArgs(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "cuts" -> cuts = Integer.parseInt(value);
+                case "messages" -> messages = Integer.parseInt(value);
+                case "graceMillis" -> graceMillis = Long.parseLong(value);
+                case "bufferSize" -> bufferSize = Integer.parseInt(value);
+                case "cutIntervalMillis" -> cutIntervalMillis = Long.parseLong(value);
+                case "engine" -> engine = value;
+                case "history" -> history = Boolean.parseBoolean(value);
+                default -> throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+    }
+
+    private boolean run() throws Exception {
+        PrintStream report = System.out;
+        // Server and clients log every connection; keep the report readable
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            startServer();
+            checkResume(report);
+            checkExpiry(report);
+            report.printf("Metrics: %d resumed, %d holds expired%n",
+                server.getMetrics().getSessionsResumed(), server.getMetrics().getSessionHoldsExpired());
+        } finally {
+            server.stop();
+            System.setOut(report);
+        }
+        if (failures.isEmpty()) {
+            report.println("PASS");
+            return true;
+        }
+        failures.forEach(failure -> report.println("FAIL: " + failure));
+        return false;
+    }
+
+    private void startServer() throws Exception {
+        ServerConfig config = new ServerConfig()
+            .setEngine(ServerConfig.Engine.valueOf(engine.toUpperCase(java.util.Locale.ROOT)))
+            .setPort(0)
+            .setMaxClients(0)
+            .setHistoryEnabled(history)
+            .setHistoryDirectory(history ? java.nio.file.Files.createTempDirectory("resume-check").toString() : null)
+            .setHistoryReplayCount(0)
+            .setJmxEnabled(false)
+            .setOutboundQueueCapacity(1 << 16)
+            .setAcceptsPerSecondPerAddress(0)
+            .setChatMessagesPerSecond(0)
+            .setChatBytesPerSecond(0)
+            .setCommandMessagesPerSecond(0)
+            .setCommandBytesPerSecond(0)
+            .setResumeGraceMillis(graceMillis)
+            .setResumeBufferSize(bufferSize);
+        server = new ChatServer(config);
+        port = server.startAsync().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkResume(PrintStream report) throws Exception {
+        Proxy proxy = new Proxy(port);
+        Client sender = Client.connect(port, "sender");
+        // One at a time, or the sender's first user list can already show the roamer ahead of its join notice
+        if (!sender.awaitUsers(1)) {
+            failures.add("sender never logged in");
+            return;
+        }
+        Client roamer = Client.connect(proxy.port(), "roamer");
+        if (!sender.awaitUsers(2) || !roamer.awaitUsers(2)) {
+            failures.add("clients never saw each other");
+            return;
+        }
+        long start = System.nanoTime();
+        // Spread over all the cuts, so every outage has traffic to replay
+        int perMillisecond = (int) Math.max(1, messages / Math.max(1, (cuts + 1) * cutIntervalMillis));
+        Thread flood = new Thread(() -> {
+            for (int k = 0; k < messages; k++) {
+                sender.chat.sendMessage("s:" + k);
+                if (k % perMillisecond == 0) {
+                    sleep(1);
+                }
+            }
+        }, "Flood");
+        flood.start();
+
+        // Cut while the flood is running, and send from the far side while it reconnects
+        int sentDuringOutage = 0;
+        for (int cut = 0; cut < cuts; cut++) {
+            sleep(cutIntervalMillis);
+            proxy.cut();
+            sleep(20);
+            for (int k = 0; k < 3; k++) {
+                if (roamer.chat.sendMessage("r:" + sentDuringOutage)) {
+                    sentDuringOutage++;
+                }
+            }
+        }
+        flood.join();
+
+        // The roamer must see every "s:" message exactly once, in order
+        int next = 0;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (next < messages) {
+            ChatMessage message = roamer.messages.poll(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            if (message == null) {
+                failures.add("roamer received " + next + " of " + messages + " messages");
+                break;
+            }
+            if (message.kind() == ChatMessage.Kind.SYSTEM && message.body().startsWith("Some messages")) {
+                failures.add("roamer was told messages were lost; raise --bufferSize");
+            }
+            if (message.kind() != ChatMessage.Kind.CHAT || !message.body().startsWith("s:")) {
+                continue;
+            }
+            int sequence = Integer.parseInt(message.body().substring(2));
+            if (sequence != next) {
+                failures.add("roamer got s:" + sequence + ", expected s:" + next);
+                break;
+            }
+            next++;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // And the sender every "r:" message, with no sign of the roamer leaving or joining
+        int received = 0;
+        deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (received < sentDuringOutage) {
+            ChatMessage message = sender.messages.poll(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            if (message == null) {
+                failures.add("sender received " + received + " of " + sentDuringOutage + " messages sent while reconnecting");
+                break;
+            }
+            checkQuiet(sender, message);
+            if (message.kind() == ChatMessage.Kind.CHAT && message.body().startsWith("r:")) {
+                received++;
+            }
+        }
+        sleep(100);
+        ChatMessage message;
+        while ((message = sender.messages.poll()) != null) {
+            checkQuiet(sender, message);
+        }
+        if (server.getMetrics().getSessionsResumed() < cuts) {
+            failures.add("only " + server.getMetrics().getSessionsResumed() + " of " + cuts + " cuts were resumed");
+        }
+        report.printf("Resume: %d cuts during %d messages, %d delivered in order in %.2f s, %d of %d sent while reconnecting arrived%n",
+            cuts, messages, next, seconds, received, sentDuringOutage);
+        sender.chat.disconnect();
+        roamer.chat.disconnect();
+        proxy.close();
+    }
+
+    private void checkQuiet(Client observer, ChatMessage message) {
+        boolean presence = (message.kind() == ChatMessage.Kind.USER_JOINED || message.kind() == ChatMessage.Kind.USER_LEFT)
+            && message.sender().equals("roamer");
+        boolean notice = message.kind() == ChatMessage.Kind.SYSTEM && message.body().startsWith("roamer ");
+        if (presence || notice) {
+            failures.add(observer.name + " saw the roamer come and go: " + message.kind() + " " + message.sender() + message.body());
+        }
+    }
+
+    /** A client that is cut off and does not reconnect is announced as gone after the grace period. */
+    private void checkExpiry(PrintStream report) throws Exception {
+        Proxy proxy = new Proxy(port);
+        Client observer = Client.connect(port, "observer");
+        Client leaver = Client.connect(proxy.port(), "leaver");
+        if (!observer.awaitUsers(2) || !leaver.awaitUsers(2)) {
+            failures.add("expiry clients never saw each other");
+            return;
+        }
+        leaver.chat.setAutoReconnect(false);
+        long cutAt = System.nanoTime();
+        proxy.cut();
+        long leftAfter = -1;
+        long deadline = System.currentTimeMillis() + graceMillis + TIMEOUT_MILLIS;
+        ChatMessage message;
+        while ((message = observer.messages.poll(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) != null) {
+            if (message.kind() == ChatMessage.Kind.SYSTEM && message.body().equals("leaver left the chat")) {
+                leftAfter = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - cutAt);
+                break;
+            }
+        }
+        if (leftAfter < 0) {
+            failures.add("observer never saw the leaver leave");
+        } else if (leftAfter < graceMillis - 1) {
+            // The server's deadline is in whole milliseconds, so it can fire up to 1 ms early by this clock
+            failures.add("leaver was announced gone after " + leftAfter + " ms, before the " + graceMillis + " ms grace period");
+        }
+        report.printf("Expiry: leave announced %d ms after the cut (grace %d ms)%n", leftAfter, graceMillis);
+        observer.chat.disconnect();
+        proxy.close();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** A binary protocol {@link ChatClient} that queues everything it receives. */
+    private static final class Client implements ChatClient.MessageListener {
+        final String name;
+        final ChatClient chat;
+        final BlockingQueue<ChatMessage> messages = new LinkedBlockingQueue<>();
+
+        private Client(String name) {
+            this.name = name;
+            chat = new ChatClient(name, ChatClient.Protocol.BINARY);
+            chat.setMessageListener(this);
+            chat.setCoalesceWindowMillis(0);
+        }
+
+        static Client connect(int port, String name) {
+            Client client = new Client(name);
+            if (!client.chat.connect("127.0.0.1", port)) {
+                throw new IllegalStateException(name + " could not connect");
+            }
+            return client;
+        }
+
+        boolean awaitUsers(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (chat.getOnlineUsers().size() < count) {
+                if (System.currentTimeMillis() > deadline) {
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+            messages.clear();
+            return true;
+        }
+
+        @Override
+        public void onChatMessage(ChatMessage message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void onMessageReceived(String message) {
+        }
+
+        @Override
+        public void onConnectionStatusChanged(boolean connected) {
+        }
+
+        @Override
+        public void onError(String error) {
+        }
+
+        @Override
+        public void onUserListUpdated(String[] users) {
+        }
+    }
+
+    /** Forwards connections to the server until {@link #cut()} drops them all at once. */
+    private static final class Proxy {
+        private final ServerSocket listener;
+        private final InetSocketAddress target;
+        private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+
+        Proxy(int targetPort) throws IOException {
+            listener = new ServerSocket(0);
+            target = new InetSocketAddress("127.0.0.1", targetPort);
+            Thread thread = new Thread(this::acceptLoop, "Proxy");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int port() {
+            return listener.getLocalPort();
+        }
+
+        private void acceptLoop() {
+            while (!listener.isClosed()) {
+                try {
+                    Socket client = listener.accept();
+                    Socket upstream = new Socket();
+                    upstream.connect(target);
+                    open.add(client);
+                    open.add(upstream);
+                    pump(client, upstream);
+                    pump(upstream, client);
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }
+
+        private void pump(Socket from, Socket to) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, count);
+                    }
+                } catch (IOException e) {
+                    // Cut
+                }
+                close(from);
+                close(to);
+            }, "Proxy-pump");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void cut() {
+            for (Socket socket : open) {
+                close(socket);
+            }
+        }
+
+        void close() throws IOException {
+            listener.close();
+            cut();
+        }
+
+        private void close(Socket socket) {
+            open.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+}
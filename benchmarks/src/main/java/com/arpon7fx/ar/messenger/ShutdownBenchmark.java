@@ -0,0 +1,85 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for {@link ChatServer#stop} with every user still in the lobby.
+ *
+ * <ul>
+ *   <li>{@code leaveEach} - the old shutdown: every session disconnects on its own,
+ *       telling the rest of the room it left, before the server closes</li>
+ *   <li>{@code shutdown} - the current stop(): one notice, then all connections
+ *       closed without leave notices</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ShutdownBenchmark {
+
+    @Param({"1000", "10000"})
+    int clients;
+
+    @Param({"leaveEach", "shutdown"})
+    String mode;
+
+    private ChatServer server;
+    private List<InMemorySession> sessions;
+    private PrintStream originalOut;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws Exception {
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        server = new ChatServer(new ServerConfig().setHistoryEnabled(false).setMaxClients(0));
+        sessions = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            // Half binary, half text: text members get a rebuilt user list on every leave
+            sessions.add(InMemorySession.connect(server, "user" + i, i % 2 == 0));
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public void stop() {
+        if (mode.equals("leaveEach")) {
+            // What disconnect() does for each logged-in session, replayed by hand
+            // since InMemorySession skips the login that would set its room
+            for (InMemorySession session : sessions) {
+                Room room = session.joinedRoom;
+                long version = server.leaveRoom(session, room);
+                server.removeActiveUser(session.getUsername(), session);
+                server.broadcastSystem(room, session.getUsername() + " left the chat", session);
+                server.announcePresence(room, session.getUsername(), BinaryCodec.USER_LEFT, version, session);
+                session.disconnect();
+            }
+        }
+        server.stop(0);
+    }
+}
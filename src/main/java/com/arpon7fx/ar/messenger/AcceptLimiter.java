@@ -0,0 +1,40 @@
+package com.arpon7fx.ar.messenger;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Connection rate limit per remote address, checked by the accept loop
+ * before a session is created. One {@link TokenBucket} per address; buckets
+ * that have refilled completely are pruned once the map grows, so it stays
+ * bounded by the addresses that connected recently.
+ *
+ * <p>Not thread-safe; only the accepting thread uses it.
+ */
+final class AcceptLimiter {
+    private static final int PRUNE_THRESHOLD = 10_000;
+
+    private final int perSecond;
+    private final int burst;
+    private final Map<InetAddress, TokenBucket> buckets = new HashMap<>();
+    private int nextPrune = PRUNE_THRESHOLD;
+
+    /** A non-positive rate disables the limit. */
+    AcceptLimiter(int perSecond, int burst) {
+        this.perSecond = perSecond;
+        this.burst = Math.max(1, burst);
+    }
+
+    boolean tryAccept(InetAddress address) {
+        if (perSecond <= 0 || address == null) {
+            return true;
+        }
+        if (buckets.size() >= nextPrune) {
+            buckets.values().removeIf(TokenBucket::isFull);
+            // Pruning is O(size); doubling the threshold keeps it amortized O(1) per accept
+            nextPrune = Math.max(PRUNE_THRESHOLD, buckets.size() * 2);
+        }
+        return buckets.computeIfAbsent(address, key -> new TokenBucket(perSecond, burst)).tryAcquire(1);
+    }
+}
@@ -0,0 +1,302 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary framing, negotiated by a two byte preface
+ * ({@link #MAGIC}, {@link #VERSION}) sent by the client before its first frame.
+ * The magic byte can never start a UTF-8 line, so the server tells both
+ * protocols apart from the first byte alone and old text clients keep working.
+ *
+ * <pre>
+ * frame   := type:u8 id:varint length:varint payload[length]
+ * string  := length:varint utf8[length]
+ * </pre>
+ *
+ * Payloads: HELLO, CHAT, COMMAND, SYSTEM and ERROR carry plain UTF-8 text;
+ * MESSAGE and PRIVATE carry a sender string followed by the body text;
+ * USERS carries a count followed by that many strings.
+ * Bodies may contain any character, including ':' and newlines.
+ *
+ * <p>Version 2 adds presence deltas. USERS is then a snapshot of the room whose
+ * id is the room's membership version, and every later join or leave arrives as
+ * USER_JOINED or USER_LEFT carrying the username, with the version after the
+ * change as id. A client that sees a version gap sends SYNC_USERS (empty payload)
+ * for a fresh snapshot. Version 1 clients keep getting a full USERS list on every change.
+ *
+ * <p>Version 3 adds session resume. After login the server sends SESSION with a
+ * token as payload (id 0), which the client keeps. If the connection drops, the
+ * client may open a new one with RESUME instead of HELLO: a username string
+ * followed by the token, with the sequence number of the last chat message or
+ * whisper it received as id. The server then answers SESSION with id 1 and sends
+ * what the client missed plus a fresh USERS snapshot, and nobody sees the user
+ * leave or join. A RESUME the server cannot honour (the grace period ran out)
+ * is treated as a HELLO with that username. Version 3 clients number their
+ * CHAT and COMMAND frames with increasing ids, kept across reconnects, so frames
+ * resent on the new connection that the server already got are dropped.
+ *
+ * <p>HEARTBEAT (empty payload) keeps an idle connection alive and is answered
+ * with HEARTBEAT_ACK; neither is shown to the user. Text clients send and get
+ * an empty line instead.
+ */
+final class BinaryCodec {
+    static final byte MAGIC = (byte) 0xB1;
+    static final byte VERSION = 3;
+    static final byte MIN_VERSION = 1;
+    static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    // Client -> server
+    static final byte HELLO = 0x01;
+    static final byte CHAT = 0x02;
+    static final byte COMMAND = 0x03;
+    static final byte SYNC_USERS = 0x04;
+    static final byte HEARTBEAT = 0x05;
+    static final byte RESUME = 0x06;
+    // Server -> client
+    static final byte MESSAGE = 0x10;
+    static final byte PRIVATE = 0x11;
+    static final byte SYSTEM = 0x12;
+    static final byte USERS = 0x13;
+    static final byte ERROR = 0x14;
+    static final byte USER_JOINED = 0x15;
+    static final byte USER_LEFT = 0x16;
+    static final byte HEARTBEAT_ACK = 0x17;
+    static final byte SESSION = 0x18;
+
+    private BinaryCodec() {
+    }
+
+    /** Callback for decoded frames; the payload is only valid during the call. */
+    interface FrameHandler {
+        boolean onFrame(byte type, long id, ByteBuffer payload) throws IOException;
+    }
+
+    static ByteBuffer preface() {
+        return ByteBuffer.wrap(new byte[] {MAGIC, VERSION});
+    }
+
+    /** Frame with a plain text payload. */
+    static ByteBuffer encode(byte type, long id, String text, boolean direct) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = allocate(1 + varintSize(id) + varintSize(bytes.length) + bytes.length, direct);
+        frame.put(type);
+        writeVarint(frame, id);
+        writeVarint(frame, bytes.length);
+        frame.put(bytes);
+        return finish(frame, direct);
+    }
+
+    /** Frame with a sender string followed by the body text. */
+    static ByteBuffer encode(byte type, long id, String sender, String body, boolean direct) {
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = varintSize(senderBytes.length) + senderBytes.length + bodyBytes.length;
+        ByteBuffer frame = allocate(1 + varintSize(id) + varintSize(payloadLength) + payloadLength, direct);
+        frame.put(type);
+        writeVarint(frame, id);
+        writeVarint(frame, payloadLength);
+        writeVarint(frame, senderBytes.length);
+        frame.put(senderBytes);
+        frame.put(bodyBytes);
+        return finish(frame, direct);
+    }
+
+    /** Frame with a list of strings, used for USERS. */
+    static ByteBuffer encodeList(byte type, long id, String[] items, boolean direct) {
+        byte[][] encoded = new byte[items.length][];
+        int payloadLength = varintSize(items.length);
+        for (int i = 0; i < items.length; i++) {
+            encoded[i] = items[i].getBytes(StandardCharsets.UTF_8);
+            payloadLength += varintSize(encoded[i].length) + encoded[i].length;
+        }
+        ByteBuffer frame = allocate(1 + varintSize(id) + varintSize(payloadLength) + payloadLength, direct);
+        frame.put(type);
+        writeVarint(frame, id);
+        writeVarint(frame, payloadLength);
+        writeVarint(frame, items.length);
+        for (byte[] item : encoded) {
+            writeVarint(frame, item.length);
+            frame.put(item);
+        }
+        return finish(frame, direct);
+    }
+
+    private static ByteBuffer allocate(int size, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private static ByteBuffer finish(ByteBuffer frame, boolean direct) {
+        frame.flip();
+        return direct ? frame.asReadOnlyBuffer() : frame;
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void writeVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Reads a varint, or returns -1 without consuming anything if it is incomplete.
+     * Negative values never occur on the wire.
+     */
+    static long readVarint(ByteBuffer in) throws IOException {
+        int start = in.position();
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!in.hasRemaining()) {
+                in.position(start);
+                return -1;
+            }
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /** Reads a length-prefixed string from a complete payload. */
+    static String readString(ByteBuffer payload) throws IOException {
+        long length = readVarint(payload);
+        if (length < 0 || length > payload.remaining()) {
+            throw new IOException("Truncated string in frame");
+        }
+        return readText(payload, (int) length);
+    }
+
+    /** Reads the rest of a payload as text. */
+    static String readRemaining(ByteBuffer payload) {
+        return readText(payload, payload.remaining());
+    }
+
+    static String[] readList(ByteBuffer payload) throws IOException {
+        long count = readVarint(payload);
+        if (count < 0 || count > payload.remaining()) {
+            throw new IOException("Malformed list in frame");
+        }
+        String[] items = new String[(int) count];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = readString(payload);
+        }
+        return items;
+    }
+
+    private static String readText(ByteBuffer payload, int length) {
+        String text;
+        if (payload.hasArray()) {
+            text = new String(payload.array(), payload.arrayOffset() + payload.position(), length, StandardCharsets.UTF_8);
+            payload.position(payload.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            payload.get(bytes);
+            text = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return text;
+    }
+
+    /**
+     * Incremental frame decoder. Partial frames are kept in one reusable
+     * buffer; complete frames are handed out as slices of it, so the only
+     * allocations on the hot path are the decoded strings themselves.
+     */
+    static final class Decoder {
+        private final boolean expectPreface;
+        private boolean prefaceSeen;
+        private int version;
+        private ByteBuffer pending = ByteBuffer.allocate(1024);
+
+        /** @param expectPreface true on the server, where the client opens with MAGIC and VERSION */
+        Decoder(boolean expectPreface) {
+            this.expectPreface = expectPreface;
+        }
+
+        /** Protocol version from the client's preface, 0 until it has been read. */
+        int version() {
+            return version;
+        }
+
+        /**
+         * Consumes all remaining bytes of {@code in}.
+         *
+         * @return false if the handler asked to stop
+         */
+        boolean decode(ByteBuffer in, FrameHandler handler) throws IOException {
+            append(in);
+            pending.flip();
+            try {
+                if (expectPreface && !prefaceSeen) {
+                    if (pending.remaining() < 2) {
+                        return true;
+                    }
+                    byte magic = pending.get();
+                    byte clientVersion = pending.get();
+                    if (magic != MAGIC || clientVersion < MIN_VERSION || clientVersion > VERSION) {
+                        throw new IOException("Unsupported binary protocol preface");
+                    }
+                    version = clientVersion;
+                    prefaceSeen = true;
+                }
+
+                while (pending.hasRemaining()) {
+                    int frameStart = pending.position();
+                    byte type = pending.get();
+                    long id = readVarint(pending);
+                    long length = id < 0 ? -1 : readVarint(pending);
+                    if (length > MAX_FRAME_LENGTH) {
+                        throw new IOException("Frame exceeds " + MAX_FRAME_LENGTH + " bytes");
+                    }
+                    if (length < 0 || pending.remaining() < length) {
+                        pending.position(frameStart);
+                        return true;
+                    }
+
+                    int payloadEnd = pending.position() + (int) length;
+                    ByteBuffer payload = pending.slice(pending.position(), (int) length);
+                    pending.position(payloadEnd);
+                    if (!handler.onFrame(type, id, payload)) {
+                        pending.clear();
+                        pending.flip();
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                pending.compact();
+            }
+        }
+
+        private void append(ByteBuffer in) {
+            if (pending.remaining() < in.remaining()) {
+                int needed = pending.position() + in.remaining();
+                pending.flip();
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, pending.capacity() * 2));
+                larger.put(pending);
+                pending = larger;
+            }
+            pending.put(in);
+        }
+    }
+
+    /** Flattens line breaks so text protocol recipients still get exactly one line. */
+    static String toSingleLine(String text) {
+        if (text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+            return text;
+        }
+        return text.replace("\r\n", " ").replace('\n', ' ').replace('\r', ' ');
+    }
+}
@@ -1,33 +1,147 @@
 package com.arpon7fx.ar.messenger;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ChatClient {
-    private Socket socket;
-    private BufferedReader reader;
-    private PrintWriter writer;
+    public static final long DEFAULT_COALESCE_WINDOW_MILLIS = 2;
+    static final int MAX_PENDING_WRITES = 10_000;
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    static final long HEARTBEAT_INTERVAL_MILLIS = 10_000;
+    // Without a byte from the server for this long (three missed heartbeat replies) the connection is dead
+    static final long SERVER_TIMEOUT_MILLIS = 30_000;
+    // Reconnect delays double from here up to the cap, each with random jitter
+    static final long INITIAL_RECONNECT_DELAY_MILLIS = 250;
+    static final long MAX_RECONNECT_DELAY_MILLIS = 30_000;
+    static final int MAX_RECONNECT_ATTEMPTS = 10;
+    // How long disconnect() gives the writer to flush before the socket is closed under it
+    static final long CLOSE_FLUSH_TIMEOUT_MILLIS = 250;
+    // One thread sends heartbeats for every client in the JVM
+    private static final ScheduledExecutorService KEEPALIVE = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "ChatClient-keepalive");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // The current connection; null while reconnecting. Threads started for an
+    // older socket stop once they see it has been replaced
+    private volatile Socket socket;
+    // True from connect() until disconnect(), including while reconnecting
     private final AtomicBoolean connected = new AtomicBoolean(false);
     private MessageListener messageListener;
     private final String username;
-    private Thread messageListenerThread;
-    private long lastMessageTime;
+    private final Protocol protocol;
+    private final AtomicLong frameIds = new AtomicLong();
+    private volatile Thread messageListenerThread;
+    private volatile long lastMessageTime;
+    // A text server that ignores empty lines stays silent in a quiet room, so the
+    // idle timeout only applies once it has answered a heartbeat on this connection
+    private volatile boolean heartbeatAnswered;
+    private ScheduledFuture<?> keepaliveTask;
+    // Frames waiting for the writer thread, which coalesces them into one write per window.
+    // Kept across reconnects, so messages sent meanwhile go out on the next connection
+    private final BlockingDeque<PendingWrite> outboundQueue = new LinkedBlockingDeque<>(MAX_PENDING_WRITES);
+    private volatile long coalesceWindowNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_COALESCE_WINDOW_MILLIS);
+    private volatile Thread writerThread;
+    private String serverHost;
+    private int serverPort;
+    private int connectTimeoutMs;
+    private volatile boolean autoReconnect = true;
+    private volatile Thread reconnectThread;
+    // Failed attempts since the last connection that got as far as a user list
+    private volatile int reconnectAttempts;
+    // Set by the first user list; a server that refuses the very first login is not retried
+    private volatile boolean loggedIn;
+    // From connectAsync(): completed by the first user list, failed by anything that ends the connection before it
+    private volatile CompletableFuture<Void> loginResult;
+    // From the server's SESSION frame (binary protocol); lets a new connection resume this session
+    private volatile String sessionToken;
+    private volatile boolean resumeRequested;
+    // Newest chat message or whisper received, where a resumed session continues
+    private volatile long lastSequence;
+    // Users in our room, kept current from snapshots and presence deltas by the listener thread
+    private final Set<String> onlineUsers = new ConcurrentSkipListSet<>();
+    private long presenceVersion;
+    private boolean snapshotRequested;
+    
+    private record PendingWrite(ByteBuffer frame, CompletableFuture<Void> ack) {
+    }
+    
+    /** Wire protocol spoken with the server. */
+    public enum Protocol {
+        /** Original newline-delimited text lines, understood by every server */
+        TEXT,
+        /** Length-prefixed frames ({@link BinaryCodec}); usernames and bodies may contain ':' or newlines */
+        BINARY
+    }
     
     public interface MessageListener {
         void onMessageReceived(String message);
         void onConnectionStatusChanged(boolean connected);
         void onError(String error);
         void onUserListUpdated(String[] users);
+        
+        /**
+         * The connection dropped and the client tries again in {@code delayMillis}.
+         * Messages sent meanwhile are queued for the new connection. Ends with
+         * {@link #onConnectionStatusChanged} once connected again, or given up.
+         */
+        default void onReconnecting(int attempt, long delayMillis) {
+        }
+        
+        /**
+         * Every message from the server, already decoded. The default hands it to
+         * the string callbacks above in their original form; override it to skip that.
+         * Presence deltas have no string form and are dropped; the list they maintain
+         * is {@link ChatClient#getOnlineUsers()}.
+         */
+        default void onChatMessage(ChatMessage message) {
+            switch (message.kind()) {
+                case ERROR -> onError(message.body());
+                case USERS -> {
+                    if (!message.users().isEmpty()) {
+                        onUserListUpdated(message.users().toArray(new String[0]));
+                    }
+                }
+                case USER_JOINED, USER_LEFT -> {
+                }
+                default -> onMessageReceived(message.toLine());
+            }
+        }
     }
     
+    /** A text protocol client, which every server understands. */
     public ChatClient(String username) {
+        this(username, Protocol.TEXT);
+    }
+    
+    /**
+     * There is no negotiation: a binary client only works with servers that
+     * speak the binary protocol, such as this project's own {@link ChatServer}.
+     */
+    public ChatClient(String username, Protocol protocol) {
         this.username = username;
+        this.protocol = protocol;
         this.lastMessageTime = System.currentTimeMillis();
     }
     
@@ -37,129 +151,534 @@ public class ChatClient {
     
     public boolean connect(String serverHost, int serverPort, int timeoutMs) {
         try {
-            socket = new Socket();
-            socket.connect(new java.net.InetSocketAddress(serverHost, serverPort), timeoutMs);
-            socket.setSoTimeout(30000); // 30 second read timeout
-            
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintWriter(socket.getOutputStream(), true);
+            open(serverHost, serverPort, timeoutMs);
+            return true;
+        } catch (IOException e) {
+            if (messageListener != null) {
+                messageListener.onConnectionStatusChanged(false);
+                messageListener.onError(e.getMessage());
+            }
+            return false;
+        }
+    }
+    
+    public CompletableFuture<Void> connectAsync(String serverHost, int serverPort) {
+        return connectAsync(serverHost, serverPort, 5000);
+    }
+    
+    /**
+     * Connects on a background thread and never blocks the caller. The future
+     * completes once the server has accepted the login, or fails with the
+     * reason: the server could not be reached, or it refused the login (for
+     * example "Username already taken"). Errors before the login are only
+     * reported through the future, not to {@link MessageListener#onError}.
+     */
+    public CompletableFuture<Void> connectAsync(String serverHost, int serverPort, int timeoutMs) {
+        CompletableFuture<Void> login = new CompletableFuture<>();
+        loginResult = login;
+        Thread connector = new Thread(() -> {
+            try {
+                open(serverHost, serverPort, timeoutMs);
+                if (login.isCompletedExceptionally() && !loggedIn) {
+                    // disconnect() ran before we were connected
+                    close();
+                }
+            } catch (IOException e) {
+                login.completeExceptionally(e);
+            }
+        }, "ChatClient-connect-" + username);
+        connector.setDaemon(true);
+        connector.start();
+        return login;
+    }
+    
+    private void open(String serverHost, int serverPort, int timeoutMs) throws IOException {
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.connectTimeoutMs = timeoutMs;
+        try {
             connected.set(true);
+            openConnection();
             
-            // Send username as first message
-            writer.println(username);
-            writer.flush();
-            
-            // Start listening for incoming messages
-            messageListenerThread = new Thread(this::listenForMessages, "MessageListener-" + username);
-            messageListenerThread.setDaemon(true);
-            messageListenerThread.start();
-            
-            // Start keepalive thread
-            startKeepalive();
+            keepaliveTask = KEEPALIVE.scheduleAtFixedRate(this::keepalive,
+                HEARTBEAT_INTERVAL_MILLIS, HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
             
             if (messageListener != null) {
                 messageListener.onConnectionStatusChanged(true);
             }
             
             System.out.println("Connected to server as " + username);
-            return true;
             
         } catch (IOException e) {
             String errorMsg = "Failed to connect to server at " + serverHost + ":" + serverPort + " - " + e.getMessage();
             System.err.println(errorMsg);
             connected.set(false);
-            
-            if (messageListener != null) {
-                messageListener.onConnectionStatusChanged(false);
-                messageListener.onError(errorMsg);
+            closeQuietly(socket);
+            socket = null;
+            throw new IOException(errorMsg, e);
+        }
+    }
+    
+    /**
+     * Opens a connection, says hello (or asks to resume the dropped session)
+     * and starts its listener and writer threads.
+     */
+    private void openConnection() throws IOException {
+        Socket connection = new Socket();
+        socket = connection;
+        connection.connect(new java.net.InetSocketAddress(serverHost, serverPort), connectTimeoutMs);
+        lastMessageTime = System.currentTimeMillis();
+        heartbeatAnswered = false;
+        
+        InputStream in = connection.getInputStream();
+        OutputStream out = new BufferedOutputStream(connection.getOutputStream(), MAX_BATCH_BYTES);
+        
+        // Send username as first message
+        String token = sessionToken;
+        resumeRequested = token != null;
+        if (protocol == Protocol.BINARY && token != null) {
+            write(out, BinaryCodec.preface(), BinaryCodec.encode(BinaryCodec.RESUME, lastSequence, username, token, false));
+        } else if (protocol == Protocol.BINARY) {
+            write(out, BinaryCodec.preface(), BinaryCodec.encode(BinaryCodec.HELLO, frameIds.incrementAndGet(), username, false));
+        } else {
+            write(out, Frames.line(username));
+        }
+        
+        // Start listening for incoming messages
+        Thread listener = new Thread(() -> listenForMessages(connection, in), "MessageListener-" + username);
+        listener.setDaemon(true);
+        messageListenerThread = listener;
+        
+        Thread writer = new Thread(() -> writeLoop(connection, out), "ClientWriter-" + username);
+        writer.setDaemon(true);
+        writerThread = writer;
+        
+        synchronized (this) {
+            if (!connected.get()) {
+                // disconnect() ran while we were connecting
+                connection.close();
+                throw new IOException("Disconnected");
             }
-            return false;
+            listener.start();
+            writer.start();
         }
     }
     
-    private void listenForMessages() {
+    private void listenForMessages(Socket connection, InputStream in) {
+        LineDecoder lineDecoder = protocol == Protocol.TEXT ? new LineDecoder() : null;
+        BinaryCodec.Decoder frameDecoder = protocol == Protocol.BINARY ? new BinaryCodec.Decoder(false) : null;
+        String reason = "Connection closed by server";
         try {
-            String message;
-            while (connected.get() && (message = reader.readLine()) != null) {
+            byte[] buffer = new byte[8192];
+            ByteBuffer data = ByteBuffer.wrap(buffer);
+            int count;
+            while (connected.get() && (count = in.read(buffer)) != -1) {
                 lastMessageTime = System.currentTimeMillis();
+                data.position(0).limit(count);
                 
-                if (messageListener != null) {
-                    handleIncomingMessage(message);
+                if (lineDecoder != null) {
+                    lineDecoder.decode(data, this::handleIncomingMessage);
+                } else {
+                    frameDecoder.decode(data, this::handleIncomingFrame);
                 }
             }
-        } catch (SocketTimeoutException e) {
-            System.err.println("Socket timeout - server may be unreachable");
-            if (messageListener != null) {
-                messageListener.onError("Connection timeout - server may be unreachable");
-            }
         } catch (SocketException e) {
-            if (connected.get()) {
+            reason = "Connection lost";
+            if (connected.get() && socket == connection) {
                 System.err.println("Connection lost: " + e.getMessage());
-                if (messageListener != null) {
-                    messageListener.onError("Connection lost");
-                }
             }
         } catch (IOException e) {
-            if (connected.get()) {
-                System.err.println("Error reading messages: " + e.getMessage());
+            reason = "Error reading messages: " + e.getMessage();
+            if (connected.get() && socket == connection) {
+                System.err.println(reason);
+            }
+        }
+        connectionLost(connection, reason);
+    }
+    
+    /**
+     * Called by whichever thread notices first that {@code connection} is
+     * gone. Unless the user disconnected or reconnecting is off, the session
+     * stays open and a reconnect thread takes over; the outbound queue is kept.
+     */
+    private void connectionLost(Socket connection, String reason) {
+        boolean reconnect;
+        Thread writer;
+        synchronized (this) {
+            if (!connected.get() || socket != connection) {
+                // disconnect(), or another thread already handled this connection
+                return;
+            }
+            reconnect = autoReconnect && loggedIn;
+            writer = writerThread;
+            if (reconnect) {
+                socket = null;
+            }
+        }
+        if (!reconnect) {
+            if (!rejectLogin(reason) && messageListener != null) {
+                messageListener.onError(reason);
+            }
+            close();
+            return;
+        }
+        System.err.println(reason + ", reconnecting");
+        closeQuietly(connection);
+        if (writer != null && writer != Thread.currentThread()) {
+            writer.interrupt();
+        }
+        Thread reconnector = new Thread(() -> reconnectLoop(writer), "ChatClient-reconnect-" + username);
+        reconnector.setDaemon(true);
+        reconnectThread = reconnector;
+        reconnector.start();
+    }
+    
+    /**
+     * Retries with exponential backoff and "equal jitter": at least half of each
+     * delay, plus a random part, so clients dropped by the same network blip do
+     * not all come back in the same instant.
+     */
+    private void reconnectLoop(Thread previousWriter) {
+        if (previousWriter != null && previousWriter != Thread.currentThread()) {
+            // It puts back what it had not written; wait so the order is kept
+            try {
+                previousWriter.join(250);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        while (connected.get()) {
+            int attempt = ++reconnectAttempts;
+            if (attempt > MAX_RECONNECT_ATTEMPTS) {
+                break;
+            }
+            long delay = Math.min(MAX_RECONNECT_DELAY_MILLIS, INITIAL_RECONNECT_DELAY_MILLIS << (attempt - 1));
+            long wait = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            if (messageListener != null) {
+                messageListener.onReconnecting(attempt, wait);
+            }
+            try {
+                Thread.sleep(wait);
+                openConnection();
+                reconnectThread = null;
+                System.out.println("Reconnected to server as " + username);
                 if (messageListener != null) {
-                    messageListener.onError("Error reading messages: " + e.getMessage());
+                    messageListener.onConnectionStatusChanged(true);
                 }
+                return;
+            } catch (InterruptedException e) {
+                // disconnect()
+                return;
+            } catch (IOException e) {
+                System.err.println("Reconnect attempt " + attempt + " failed: " + e.getMessage());
+                closeQuietly(socket);
+                socket = null;
+            }
+        }
+        reconnectThread = null;
+        if (connected.get()) {
+            if (messageListener != null) {
+                messageListener.onError("Could not reconnect to server at " + serverHost + ":" + serverPort);
             }
-        } finally {
             disconnect();
         }
     }
     
-    private void handleIncomingMessage(String message) {
-        if (message.startsWith("ERROR:")) {
-            messageListener.onError(message.substring(6));
-        } else if (message.startsWith("USERS:")) {
-            String userList = message.substring(6);
-            if (!userList.isEmpty()) {
-                String[] users = userList.split(",");
-                messageListener.onUserListUpdated(users);
+    private static void closeQuietly(Socket connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+    
+    // Package-private so the parsing benchmarks can drive it without a socket
+    boolean handleIncomingMessage(String message) {
+        if (message.isEmpty()) {
+            // Heartbeat reply; proves the server answers them, so its silence now means a dead connection
+            heartbeatAnswered = true;
+            return true;
+        }
+        ChatMessage chatMessage = ChatMessage.parseLine(message, System.currentTimeMillis());
+        if (chatMessage.kind() == ChatMessage.Kind.USERS) {
+            applyUserSnapshot(chatMessage);
+        } else if (chatMessage.kind() == ChatMessage.Kind.ERROR && rejectLogin(chatMessage.body())) {
+            return true;
+        }
+        if (messageListener != null) {
+            messageListener.onChatMessage(chatMessage);
+        }
+        return true;
+    }
+    
+    boolean handleIncomingFrame(byte type, long id, ByteBuffer payload) throws IOException {
+        long now = System.currentTimeMillis();
+        ChatMessage message = switch (type) {
+            case BinaryCodec.MESSAGE -> sequenced(ChatMessage.chat(id, BinaryCodec.readString(payload), BinaryCodec.readRemaining(payload), now));
+            case BinaryCodec.PRIVATE -> sequenced(ChatMessage.whisper(id, BinaryCodec.readString(payload), BinaryCodec.readRemaining(payload), now));
+            case BinaryCodec.SYSTEM -> ChatMessage.system(BinaryCodec.readRemaining(payload), now);
+            case BinaryCodec.ERROR -> ChatMessage.error(BinaryCodec.readRemaining(payload), now);
+            case BinaryCodec.USERS -> applyUserSnapshot(ChatMessage.userList(id, List.of(BinaryCodec.readList(payload)), now));
+            case BinaryCodec.USER_JOINED, BinaryCodec.USER_LEFT ->
+                applyPresence(ChatMessage.presence(type == BinaryCodec.USER_JOINED, id, BinaryCodec.readRemaining(payload), now));
+            case BinaryCodec.HEARTBEAT_ACK -> null;
+            case BinaryCodec.SESSION -> {
+                sessionToken = BinaryCodec.readRemaining(payload);
+                if (id == 1) {
+                    yield ChatMessage.system("Reconnected, nothing was missed", now);
+                }
+                yield resumeRequested ? ChatMessage.system("Reconnected as a new session; messages sent meanwhile may be missing", now) : null;
+            }
+            default -> {
+                System.err.println("Ignoring unknown frame type " + type);
+                yield null;
             }
-        } else if (message.startsWith("PRIVATE:")) {
-            messageListener.onMessageReceived(message.substring(8));
+        };
+        if (message != null && message.kind() == ChatMessage.Kind.ERROR && rejectLogin(message.body())) {
+            return true;
+        }
+        if (message != null && messageListener != null) {
+            messageListener.onChatMessage(message);
+        }
+        return true;
+    }
+    
+    /**
+     * Hands a failure before the first user list to the {@link #connectAsync}
+     * caller; the server sends an error and closes when it refuses a login.
+     *
+     * @return false if it is for the message listener instead
+     */
+    private boolean rejectLogin(String reason) {
+        CompletableFuture<Void> login = loginResult;
+        if (login == null || loggedIn) {
+            return false;
+        }
+        // The first reason wins; the close that follows a refusal adds nothing
+        login.completeExceptionally(new IOException(reason));
+        return true;
+    }
+    
+    private ChatMessage sequenced(ChatMessage message) {
+        if (message.id() > 0) {
+            lastSequence = message.id();
+        }
+        return message;
+    }
+    
+    private ChatMessage applyUserSnapshot(ChatMessage snapshot) {
+        // The server sends a user list once login or resume is complete
+        loggedIn = true;
+        CompletableFuture<Void> login = loginResult;
+        if (login != null) {
+            login.complete(null);
+        }
+        reconnectAttempts = 0;
+        onlineUsers.clear();
+        onlineUsers.addAll(snapshot.users());
+        presenceVersion = snapshot.id();
+        snapshotRequested = false;
+        return snapshot;
+    }
+    
+    /**
+     * Applies a join or leave in version order. Deltas at or below the current
+     * version are already part of the last snapshot and are dropped; a skipped
+     * version means one was lost or reordered, so a fresh snapshot is requested.
+     *
+     * @return the delta, or null if it was stale
+     */
+    private ChatMessage applyPresence(ChatMessage delta) {
+        if (delta.id() <= presenceVersion) {
+            return null;
+        }
+        if (delta.id() != presenceVersion + 1 && !snapshotRequested) {
+            snapshotRequested = true;
+            enqueueFrame(BinaryCodec.SYNC_USERS, "", new CompletableFuture<>());
+        }
+        presenceVersion = delta.id();
+        if (delta.kind() == ChatMessage.Kind.USER_JOINED) {
+            onlineUsers.add(delta.sender());
         } else {
-            messageListener.onMessageReceived(message);
+            onlineUsers.remove(delta.sender());
         }
+        return delta;
     }
     
-    private void startKeepalive() {
-        Thread keepaliveThread = new Thread(() -> {
-            while (connected.get()) {
-                try {
-                    Thread.sleep(10000); // Send keepalive every 10 seconds
-                    if (connected.get()) {
-                        sendMessage("/ping");
+    // Only used for the handshake, before the writer thread starts
+    private synchronized void write(OutputStream out, ByteBuffer... frames) throws IOException {
+        for (ByteBuffer frame : frames) {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        }
+        out.flush();
+    }
+    
+    /**
+     * Drains the outbound queue: after the first frame arrives it keeps
+     * collecting for up to the coalesce window, then writes the whole batch
+     * with a single flush, so a burst of sends costs one syscall instead of one each.
+     */
+    private void writeLoop(Socket connection, OutputStream out) {
+        List<PendingWrite> batch = new ArrayList<>();
+        try {
+            while (connected.get() && socket == connection) {
+                PendingWrite first = outboundQueue.take();
+                batch.add(first);
+                int batchBytes = first.frame().remaining();
+                long deadline = System.nanoTime() + coalesceWindowNanos;
+                while (batchBytes < MAX_BATCH_BYTES) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingWrite next = remaining > 0
+                        ? outboundQueue.poll(remaining, TimeUnit.NANOSECONDS)
+                        : outboundQueue.poll();
+                    if (next == null) {
+                        break;
                     }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
+                    batch.add(next);
+                    batchBytes += next.frame().remaining();
                 }
+                writeBatch(out, batch);
             }
-        }, "Keepalive-" + username);
-        keepaliveThread.setDaemon(true);
-        keepaliveThread.start();
+        } catch (InterruptedException e) {
+            // disconnect() or a lost connection
+        } catch (IOException e) {
+            System.err.println("Error sending message: " + e.getMessage());
+            requeue(batch);
+            connectionLost(connection, "Failed to send message");
+            return;
+        }
+        if (connected.get()) {
+            // The connection was lost; everything waits for the next one
+            requeue(batch);
+            return;
+        }
+        // disconnect(): deliver what was queued before it, then close the socket
+        flushRemaining(out, batch);
+        failAll(batch, new IOException("Disconnected"));
+        closeQuietly(connection);
     }
     
-    public boolean sendMessage(String message) {
-        if (connected.get() && writer != null && !message.trim().isEmpty()) {
-            try {
-                writer.println(message.trim());
-                writer.flush();
-                return true;
-            } catch (Exception e) {
-                System.err.println("Error sending message: " + e.getMessage());
-                if (messageListener != null) {
-                    messageListener.onError("Failed to send message");
-                }
-                return false;
+    // Back to the front of the queue, in order. They may have reached the server already; a resumed
+    // session drops binary frames with ids it has seen, text clients can see them twice
+    private void requeue(List<PendingWrite> batch) {
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            PendingWrite pending = batch.get(i);
+            pending.frame().rewind();
+            if (!outboundQueue.offerFirst(pending)) {
+                pending.ack().completeExceptionally(new IOException("Too many messages pending"));
             }
         }
-        return false;
+        batch.clear();
+    }
+    
+    private void flushRemaining(OutputStream out, List<PendingWrite> batch) {
+        try {
+            outboundQueue.drainTo(batch);
+            writeBatch(out, batch);
+        } catch (IOException ignored) {
+            // Closing anyway; failAll() reports what was not written
+        }
+    }
+    
+    // Only the connection's writer thread uses its stream, so no lock is held across the blocking write
+    private void writeBatch(OutputStream out, List<PendingWrite> batch) throws IOException {
+        for (PendingWrite pending : batch) {
+            ByteBuffer frame = pending.frame();
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        }
+        out.flush();
+        for (PendingWrite pending : batch) {
+            pending.ack().complete(null);
+        }
+        batch.clear();
+    }
+    
+    private void failAll(List<PendingWrite> batch, IOException cause) {
+        for (PendingWrite pending : batch) {
+            pending.ack().completeExceptionally(cause);
+        }
+        batch.clear();
+        PendingWrite pending;
+        while ((pending = outboundQueue.poll()) != null) {
+            pending.ack().completeExceptionally(cause);
+        }
+    }
+    
+    /**
+     * Runs on the shared keepalive thread: gives up on a server that has been
+     * silent too long, otherwise queues a heartbeat. Heartbeats are protocol
+     * frames (an empty line on the text protocol), never shown to the user.
+     * Every binary server answers them; a text server only counts as silent
+     * once it has answered one.
+     */
+    private void keepalive() {
+        Socket connection = socket;
+        if (!connected.get() || connection == null) {
+            // Not connected, or reconnecting
+            return;
+        }
+        boolean answersHeartbeats = protocol == Protocol.BINARY || heartbeatAnswered;
+        if (answersHeartbeats && System.currentTimeMillis() - lastMessageTime > SERVER_TIMEOUT_MILLIS) {
+            System.err.println("Connection timeout - server may be unreachable");
+            connectionLost(connection, "Connection timeout - server may be unreachable");
+            return;
+        }
+        ByteBuffer frame = protocol == Protocol.BINARY
+            ? BinaryCodec.encode(BinaryCodec.HEARTBEAT, 0, "", false)
+            : Frames.line("");
+        outboundQueue.offer(new PendingWrite(frame, new CompletableFuture<>()));
+    }
+    
+    /**
+     * Queues a message without blocking; safe to call from the JavaFX thread.
+     * While reconnecting, messages wait for the new connection.
+     *
+     * @return false if the client is not connected, the message is blank or too many sends are pending
+     */
+    public boolean sendMessage(String message) {
+        return !sendAsync(message).isCompletedExceptionally();
+    }
+    
+    /**
+     * Queues a message for the writer thread and returns at once. The future
+     * completes when the message has been written to the socket, or
+     * exceptionally if it could not be queued or the connection failed first.
+     */
+    public CompletableFuture<Void> sendAsync(String message) {
+        CompletableFuture<Void> ack = new CompletableFuture<>();
+        String text = message.trim();
+        if (!connected.get() || text.isEmpty()) {
+            ack.completeExceptionally(new IOException(text.isEmpty() ? "Empty message" : "Not connected"));
+            return ack;
+        }
+        boolean queued = protocol == Protocol.TEXT
+            ? outboundQueue.offer(new PendingWrite(Frames.line(text), ack))
+            : enqueueFrame(text.charAt(0) == '/' ? BinaryCodec.COMMAND : BinaryCodec.CHAT, text, ack);
+        if (!queued) {
+            ack.completeExceptionally(new IOException("Too many messages pending"));
+        } else if (!connected.get()) {
+            // Raced with disconnect(); make sure nothing is left waiting
+            failAll(new ArrayList<>(), new IOException("Disconnected"));
+        }
+        return ack;
+    }
+    
+    /**
+     * Queues a binary frame under the next frame id. Ids are taken and queued in one
+     * step, so they reach the server in increasing order and a resumed session can
+     * drop the frames it already got before the connection dropped.
+     */
+    private boolean enqueueFrame(byte type, String text, CompletableFuture<Void> ack) {
+        synchronized (outboundQueue) {
+            return outboundQueue.offer(new PendingWrite(BinaryCodec.encode(type, frameIds.incrementAndGet(), text, false), ack));
+        }
+    }
+    
+    /** How long the writer waits for more messages before flushing a batch; 0 flushes whatever is queued. */
+    public void setCoalesceWindowMillis(long millis) {
+        coalesceWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
     }
     
     public void sendPrivateMessage(String targetUser, String message) {
@@ -171,31 +690,66 @@ public class ChatClient {
     }
     
     public void disconnect() {
-        if (connected.getAndSet(false)) {
-            try {
-                // Interrupt the message listener thread
-                if (messageListenerThread != null) {
-                    messageListenerThread.interrupt();
-                }
-                
-                if (socket != null) socket.close();
-                if (reader != null) reader.close();
-                if (writer != null) writer.close();
-                
-            } catch (IOException e) {
-                System.err.println("Error disconnecting: " + e.getMessage());
-            }
-            
-            if (messageListener != null) {
-                messageListener.onConnectionStatusChanged(false);
+        if (sessionToken != null && socket != null && connected.get()) {
+            // Leaving on purpose: the server frees the name now instead of holding it for a resume
+            enqueueFrame(BinaryCodec.COMMAND, "/quit", new CompletableFuture<>());
+        }
+        close();
+    }
+    
+    // Without the /quit: after a lost connection the server should keep holding the session
+    private void close() {
+        rejectLogin("Disconnected");
+        Socket connection;
+        synchronized (this) {
+            if (!connected.getAndSet(false)) {
+                return;
             }
-            
-            System.out.println("Disconnected from server");
+            connection = socket;
+        }
+        if (keepaliveTask != null) {
+            keepaliveTask.cancel(false);
+        }
+        Thread reconnector = reconnectThread;
+        if (reconnector != null && reconnector != Thread.currentThread()) {
+            reconnector.interrupt();
+        }
+        Thread listener = messageListenerThread;
+        if (listener != null) {
+            listener.interrupt();
+        }
+        Thread writer = writerThread;
+        if (connection != null && writer != null && writer.isAlive() && writer != Thread.currentThread()) {
+            // The writer flushes what is already queued and closes the socket; never wait for it here.
+            // If a write is stuck on a full socket, closing it after the timeout ends the write
+            writer.interrupt();
+            KEEPALIVE.schedule(() -> closeQuietly(connection), CLOSE_FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            closeQuietly(connection);
+            // Whatever could not be delivered, including messages queued while reconnecting
+            failAll(new ArrayList<>(), new IOException("Disconnected"));
         }
+        
+        if (messageListener != null) {
+            messageListener.onConnectionStatusChanged(false);
+        }
+        
+        System.out.println("Disconnected from server");
     }
     
     public boolean isConnected() {
-        return connected.get() && socket != null && !socket.isClosed() && socket.isConnected();
+        Socket connection = socket;
+        return connected.get() && connection != null && !connection.isClosed() && connection.isConnected();
+    }
+    
+    /** True while the connection is down and the client is trying to get it back. */
+    public boolean isReconnecting() {
+        return connected.get() && reconnectThread != null;
+    }
+    
+    /** Whether a dropped connection is retried (the default) or ends the session. */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
     }
     
     public void setMessageListener(MessageListener listener) {
@@ -206,24 +760,24 @@ public class ChatClient {
         return username;
     }
     
+    public Protocol getProtocol() {
+        return protocol;
+    }
+    
+    /** Users in our current room, sorted; a live read-only view. */
+    public Set<String> getOnlineUsers() {
+        return Collections.unmodifiableSet(onlineUsers);
+    }
+    
     public long getLastMessageTime() {
         return lastMessageTime;
     }
     
     public String getServerAddress() {
-        if (socket != null && socket.isConnected()) {
-            return socket.getRemoteSocketAddress().toString();
+        Socket connection = socket;
+        if (connection != null && connection.isConnected()) {
+            return connection.getRemoteSocketAddress().toString();
         }
         return "Not connected";
     }
-    
-    // Test connection to server without connecting
-    public static boolean testConnection(String serverHost, int serverPort) {
-        try (Socket testSocket = new Socket()) {
-            testSocket.connect(new java.net.InetSocketAddress(serverHost, serverPort), 3000);
-            return true;
-        } catch (IOException e) {
-            return false;
-        }
-    }
 }
@@ -0,0 +1,122 @@
+package com.arpon7fx.ar.messenger;
+
+import java.util.List;
+
+/**
+ * A message from the server, decoded once by {@link ChatClient} on its
+ * network thread so listeners never parse strings themselves.
+ *
+ * @param kind what the message is
+ * @param id the server's sequence number for chat messages and whispers, the room's membership
+ *           version for user lists and presence changes, 0 otherwise or over the text protocol
+ * @param sender who sent a chat message or whisper, or who joined or left; empty for everything else
+ * @param body the text; empty for user lists
+ * @param users the online users of a {@link Kind#USERS} message, empty otherwise
+ * @param timestamp when the client received it, in epoch milliseconds
+ */
+public record ChatMessage(Kind kind, long id, String sender, String body, List<String> users, long timestamp) {
+
+    public enum Kind {
+        CHAT,
+        WHISPER,
+        SYSTEM,
+        ERROR,
+        /** Full list of the room's users */
+        USERS,
+        /** Someone joined the room; {@link ChatClient#getOnlineUsers()} already includes them */
+        USER_JOINED,
+        /** Someone left the room */
+        USER_LEFT
+    }
+
+    private static final String WHISPER_MARKER = " (whisper): ";
+
+    public ChatMessage {
+        // No copy when it is already an immutable list, as the decoders pass
+        users = List.copyOf(users);
+    }
+
+    static ChatMessage chat(long id, String sender, String body, long timestamp) {
+        return new ChatMessage(Kind.CHAT, id, sender, body, List.of(), timestamp);
+    }
+
+    static ChatMessage whisper(long id, String sender, String body, long timestamp) {
+        return new ChatMessage(Kind.WHISPER, id, sender, body, List.of(), timestamp);
+    }
+
+    static ChatMessage system(String body, long timestamp) {
+        return new ChatMessage(Kind.SYSTEM, 0, "", body, List.of(), timestamp);
+    }
+
+    static ChatMessage error(String body, long timestamp) {
+        return new ChatMessage(Kind.ERROR, 0, "", body, List.of(), timestamp);
+    }
+
+    static ChatMessage userList(long version, List<String> users, long timestamp) {
+        return new ChatMessage(Kind.USERS, version, "", "", users, timestamp);
+    }
+
+    static ChatMessage presence(boolean joined, long version, String username, long timestamp) {
+        return new ChatMessage(joined ? Kind.USER_JOINED : Kind.USER_LEFT, version, username, "", List.of(), timestamp);
+    }
+
+    /**
+     * Decodes a text protocol line with prefix checks and a single {@code indexOf},
+     * no regex. A line that is neither a known notice nor {@code sender:body} is
+     * treated as a system notice.
+     */
+    static ChatMessage parseLine(String line, long timestamp) {
+        if (line.startsWith("SYSTEM:")) {
+            return system(line.substring(7), timestamp);
+        }
+        if (line.startsWith("ERROR:")) {
+            return error(line.substring(6), timestamp);
+        }
+        if (line.startsWith("USERS:")) {
+            return userList(0, splitUsers(line, 6), timestamp);
+        }
+        if (line.startsWith("PRIVATE:")) {
+            int marker = line.indexOf(WHISPER_MARKER, 8);
+            if (marker >= 0) {
+                return whisper(0, line.substring(8, marker), line.substring(marker + WHISPER_MARKER.length()), timestamp);
+            }
+            return system(line.substring(8), timestamp);
+        }
+        int colon = line.indexOf(':');
+        if (colon > 0) {
+            return chat(0, line.substring(0, colon), line.substring(colon + 1), timestamp);
+        }
+        return system(line, timestamp);
+    }
+
+    private static List<String> splitUsers(String line, int start) {
+        if (start >= line.length()) {
+            return List.of();
+        }
+        int count = 1;
+        for (int i = line.indexOf(',', start); i >= 0; i = line.indexOf(',', i + 1)) {
+            count++;
+        }
+        String[] users = new String[count];
+        for (int i = 0; i < count - 1; i++) {
+            int comma = line.indexOf(',', start);
+            users[i] = line.substring(start, comma);
+            start = comma + 1;
+        }
+        users[count - 1] = line.substring(start);
+        return List.of(users);
+    }
+
+    /** The line that {@link ChatClient.MessageListener#onMessageReceived(String)} has always been given for chat, whispers and notices. */
+    String toLine() {
+        return switch (kind) {
+            case CHAT -> sender + ":" + body;
+            case WHISPER -> sender + WHISPER_MARKER + body;
+            case SYSTEM -> "SYSTEM:" + body;
+            case ERROR -> "ERROR:" + body;
+            case USERS -> "USERS:" + String.join(",", users);
+            case USER_JOINED -> "SYSTEM:" + sender + " is online";
+            case USER_LEFT -> "SYSTEM:" + sender + " is offline";
+        };
+    }
+}
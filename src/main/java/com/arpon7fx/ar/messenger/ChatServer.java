@@ -1,316 +1,1032 @@
 package com.arpon7fx.ar.messenger;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
-class ClientHandler implements Runnable {
+class ClientHandler extends ChatSession implements Runnable {
+    private static final long CLOSE_FLUSH_TIMEOUT_MS = 250;
     private Socket socket;
-    private BufferedReader reader;
-    private PrintWriter writer;
-    private ChatServer server;
-    private String username;
-    private boolean connected;
-    private long lastActivity;
+    private InputStream input;
+    private OutputStream output;
+    // Guards writerThread/writerClosed so an interrupt can never hit a pooled thread after the writer returned
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private Thread writerThread;
+    private boolean writerClosed;
+    private final CountDownLatch writerDone = new CountDownLatch(1);
+    private final byte[] copyBuffer = new byte[8192];
+    // Continuations handed to the reader thread, see runOnReader()
+    private final BlockingQueue<Runnable> readerTasks = new LinkedBlockingQueue<>();
     
     public ClientHandler(Socket socket, ChatServer server) {
+        super(server);
         this.socket = socket;
-        this.server = server;
-        this.connected = true;
-        this.lastActivity = System.currentTimeMillis();
         
         try {
-            socket.setSoTimeout(30000); // 30 second timeout
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintWriter(socket.getOutputStream(), true);
+            input = socket.getInputStream();
+            output = new BufferedOutputStream(socket.getOutputStream(), 8192);
         } catch (IOException e) {
-            System.err.println("Error creating client handler: " + e.getMessage());
-            connected = false;
+            log.error("Error creating client handler", "error", e.getMessage());
+            disconnect();
         }
     }
     
     @Override
     public void run() {
         try {
-            // First message should be the username
-            username = reader.readLine();
-            if (username != null && !username.trim().isEmpty()) {
-                username = username.trim();
-                updateActivity();
-                
-                // Check if username is already taken
-                if (server.isUsernameTaken(username)) {
-                    sendMessage("ERROR:Username already taken");
-                    disconnect();
-                    return;
+            // Raw bytes go to the session, which picks the text or binary decoder
+            byte[] buffer = new byte[8192];
+            ByteBuffer data = ByteBuffer.wrap(buffer);
+            int count;
+            while (isConnected() && (count = input.read(buffer)) != -1) {
+                data.position(0).limit(count);
+                if (!onBytes(data)) {
+                    break;
                 }
-                
-                server.addActiveUser(username);
-                server.broadcastMessage("SYSTEM:" + username + " joined the chat", this);
-                server.broadcastUserList();
-                
-                String message;
-                while (connected && (message = reader.readLine()) != null) {
-                    updateActivity();
-                    message = message.trim();
-                    
-                    if (!message.isEmpty()) {
-                        // Handle special commands
-                        if (message.startsWith("/")) {
-                            handleCommand(message);
-                        } else {
-                            // Regular message - broadcast to all other clients
-                            server.broadcastMessage(username + ":" + message, this);
-                        }
-                    }
+                // The login waits for the cluster; read on once it has been answered
+                while (isLoginPending()) {
+                    readerTasks.take().run();
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (SocketException e) {
             // Client disconnected normally
-            System.out.println("Client " + (username != null ? username : "unknown") + " disconnected");
+            log.info("Client disconnected", "user", displayName());
         } catch (IOException e) {
-            if (connected) {
-                System.err.println("Client handler error for " + 
-                    (username != null ? username : "unknown") + ": " + e.getMessage());
+            if (isConnected()) {
+                log.error("Client handler error", "user", displayName(), "error", e.getMessage());
             }
         } finally {
             disconnect();
         }
     }
     
-    private void handleCommand(String command) {
-        if (command.equals("/ping")) {
-            sendMessage("SYSTEM:Pong! Server is alive.");
-        } else if (command.equals("/users")) {
-            sendMessage("SYSTEM:Online users: " + server.getActiveUsers());
-        } else if (command.equals("/time")) {
-            sendMessage("SYSTEM:Server time: " + new java.util.Date());
-        } else if (command.startsWith("/whisper ")) {
-            handleWhisperCommand(command);
-        } else {
-            sendMessage("SYSTEM:Unknown command. Available: /ping, /users, /time, /whisper <user> <message>");
+    /**
+     * Task that drains the outbound queue onto the socket. Runs on its own
+     * thread so the reader thread (and every broadcasting sender) never
+     * blocks on this client's TCP window.
+     */
+    Runnable outboundWriter() {
+        return this::writeLoop;
+    }
+    
+    private void writeLoop() {
+        writerLock.lock();
+        try {
+            if (writerClosed) {
+                return;
+            }
+            writerThread = Thread.currentThread();
+        } finally {
+            writerLock.unlock();
+        }
+        
+        List<ByteBuffer> batch = new ArrayList<>();
+        try {
+            while (isConnected()) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch);
+                writeBatch(batch);
+            }
+        } catch (InterruptedException e) {
+            // Interrupted by closeTransport(), fall through and deliver what is left
+        } catch (IOException e) {
+            if (isConnected()) {
+                log.error("Error sending to client", "user", displayName(), "error", e.getMessage());
+            }
+            disconnect();
+        }
+        
+        try {
+            outbound.drainTo(batch);
+            writeBatch(batch);
+        } catch (IOException ignored) {
+            // Socket already gone
+        } finally {
+            writerLock.lock();
+            try {
+                writerThread = null;
+                writerClosed = true;
+                Thread.interrupted();
+            } finally {
+                writerLock.unlock();
+            }
+            writerDone.countDown();
         }
     }
     
-    private void handleWhisperCommand(String command) {
-        String[] parts = command.split(" ", 3);
-        if (parts.length >= 3) {
-            String targetUser = parts[1];
-            String message = parts[2];
-            if (server.sendPrivateMessage(targetUser, username + " (whisper): " + message)) {
-                sendMessage("SYSTEM:Whisper sent to " + targetUser);
+    // Everything queued so far goes out with a single flush
+    private void writeBatch(List<ByteBuffer> batch) throws IOException {
+        if (batch.isEmpty() || socket.isClosed()) {
+            return;
+        }
+        for (ByteBuffer frame : batch) {
+            if (frame.hasArray()) {
+                output.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
             } else {
-                sendMessage("SYSTEM:User " + targetUser + " not found");
+                // Shared direct frame: copy out, no charset encoding involved
+                while (frame.hasRemaining()) {
+                    int chunk = Math.min(frame.remaining(), copyBuffer.length);
+                    frame.get(copyBuffer, 0, chunk);
+                    output.write(copyBuffer, 0, chunk);
+                }
             }
-        } else {
-            sendMessage("SYSTEM:Usage: /whisper <username> <message>");
         }
+        output.flush();
+        batch.clear();
     }
     
-    private void updateActivity() {
-        lastActivity = System.currentTimeMillis();
+    @Override
+    protected void onOutboundReady() {
+        // The writer task is already waiting on the queue
     }
     
-    public void sendMessage(String message) {
-        if (writer != null && connected) {
-            writer.println(message);
-            writer.flush();
-        }
+    @Override
+    protected void runOnReader(Runnable task) {
+        readerTasks.add(task);
     }
     
-    public void disconnect() {
-        if (connected) {
-            connected = false;
-            
+    @Override
+    protected void closeTransport() {
+        Thread writer;
+        boolean writerStarted;
+        writerLock.lock();
+        try {
+            writer = writerThread;
+            writerStarted = writerClosed || writer != null;
+            writerClosed = true;
+            if (writer != null && writer != Thread.currentThread()) {
+                writer.interrupt();
+            }
+        } finally {
+            writerLock.unlock();
+        }
+        
+        if (!writerStarted) {
+            // Writer task never ran, deliver queued frames (e.g. an ERROR line) ourselves
+            List<ByteBuffer> batch = new ArrayList<>();
+            outbound.drainTo(batch);
             try {
-                if (username != null) {
-                    server.removeActiveUser(username);
-                    server.broadcastMessage("SYSTEM:" + username + " left the chat", this);
-                    server.broadcastUserList();
-                }
-                if (socket != null) socket.close();
-                if (reader != null) reader.close();
-                if (writer != null) writer.close();
-            } catch (IOException e) {
-                System.err.println("Error disconnecting client " + 
-                    (username != null ? username : "unknown") + ": " + e.getMessage());
+                writeBatch(batch);
+            } catch (IOException ignored) {
+                // Socket already gone
             }
-            
-            server.removeClient(this);
+        } else if (writer != null && writer != Thread.currentThread()) {
+            // Give the writer a moment to deliver what is queued before closing,
+            // but never past the drain deadline of a stopping server
+            long waitNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(CLOSE_FLUSH_TIMEOUT_MS), server.remainingDrainNanos());
+            try {
+                writerDone.await(waitNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            if (socket != null) socket.close();
+            if (input != null) input.close();
+        } catch (IOException e) {
+            log.error("Error disconnecting client", "user", displayName(), "error", e.getMessage());
         }
     }
     
+    @Override
     public boolean isConnected() {
-        return connected && socket != null && !socket.isClosed();
-    }
-    
-    public String getUsername() {
-        return username;
-    }
-    
-    public long getLastActivity() {
-        return lastActivity;
+        return super.isConnected() && socket != null && !socket.isClosed();
     }
 }
 
 public class ChatServer {
-    private ServerSocket serverSocket;
-    private final List<ClientHandler> clients;
-    private final List<String> activeUsers;
-    private boolean isRunning;
-    private static final int PORT = 12345;
-    private static final int MAX_CLIENTS = 50;
+    private static final long DRAIN_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int SHUTDOWN_CLOSE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    // How long client closes may take at shutdown when the drain deadline has already passed
+    private static final long SHUTDOWN_CLOSE_FLOOR_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final CompletableFuture<Boolean> USERNAME_RESERVED = CompletableFuture.completedFuture(true);
+    private static final CompletableFuture<Boolean> USERNAME_TAKEN = CompletableFuture.completedFuture(false);
+    
+    private final ServerConfig config;
+    // Written by the thread running start(), closed by stop()
+    private volatile ServerSocket serverSocket;
+    private volatile NioServerEngine nioEngine;
+    private ExecutorService handlerExecutor;
+    // Every open connection, logged in or not; add and remove are O(1) even during reconnect storms
+    private final Set<ChatSession> clients;
+    // Logged-in sessions by username: atomic reservation at login, O(1) whisper routing
+    private final ConcurrentMap<String, ChatSession> users;
+    private volatile boolean isRunning;
+    // Completed with the bound port once the server accepts connections, failed if it never does
+    private final CompletableFuture<Integer> started = new CompletableFuture<>();
+    private volatile int boundPort = -1;
+    // Set once stop() is called; a stopped server does not start again
+    private volatile boolean stopping;
+    // True from start() until the socket is bound; a stop() meanwhile leaves the cleanup to start().
+    // Guarded by lifecycleLock, together with setting stopping
+    private boolean starting;
+    private final Object lifecycleLock = new Object();
+    private final AtomicBoolean cleanedUp = new AtomicBoolean();
+    private volatile long drainDeadlineNanos;
+    // Rooms by name; the lobby always exists, other rooms are dropped once empty
+    private final ConcurrentMap<String, Room> rooms;
+    // Sequence numbers for chat and whispers when history is disabled
+    private final AtomicLong messageIds = new AtomicLong();
+    private volatile MessageLog history;
+    // One thread watches every connection for idleness; no per-socket read timeouts
+    private volatile TimerWheel<ChatSession> idleTimer;
+    // Sessions whose connection dropped, by resume token, until they are resumed or their grace period ends
+    private final ConcurrentMap<String, ChatSession> heldSessions = new ConcurrentHashMap<>();
+    private volatile TimerWheel<ChatSession> holdTimer;
+    private final SecureRandom tokenRandom = new SecureRandom();
+    // Only touched by the accepting thread
+    private final AcceptLimiter acceptLimiter;
+    // Null for a standalone server
+    private final ClusterNode cluster;
+    private final ServerMetrics metrics;
+    private final ServerLog log;
     
     public ChatServer() {
-        clients = new CopyOnWriteArrayList<>();
-        activeUsers = Collections.synchronizedList(new ArrayList<>());
+        this(ServerConfig.fromSystemProperties());
+    }
+    
+    public ChatServer(ServerConfig config) {
+        this(config, null);
     }
     
+    /** @param transport the cluster transport, or null for TCP to the configured cluster nodes (if any) */
+    ChatServer(ServerConfig config, ClusterTransport transport) {
+        if (config.getEngine() == ServerConfig.Engine.NIO && config.getOverflowPolicy() == ServerConfig.OverflowPolicy.BLOCK) {
+            // A broadcast on a selector thread would park every connection of that worker
+            throw new IllegalArgumentException("The block overflow policy is not supported by the nio engine");
+        }
+        this.config = config;
+        clients = ConcurrentHashMap.newKeySet();
+        users = new ConcurrentHashMap<>();
+        rooms = new ConcurrentHashMap<>();
+        rooms.put(Room.LOBBY, new Room(Room.LOBBY));
+        acceptLimiter = new AcceptLimiter(config.getAcceptsPerSecondPerAddress(), config.getAcceptBurstPerAddress());
+        metrics = new ServerMetrics(this);
+        log = new ServerLog(config);
+        if (transport == null && config.isClustered()) {
+            transport = new TcpClusterTransport(config.getClusterNodeId(), config.getClusterNodes(), log);
+        }
+        cluster = transport != null ? new ClusterNode(this, transport) : null;
+    }
+    
+    /**
+     * Starts the server on a new thread. The future completes with the port it
+     * listens on as soon as the socket is bound (the one picked by the system
+     * for port 0), or fails if the server could not start.
+     */
+    public CompletableFuture<Integer> startAsync() {
+        Thread thread = new Thread(this::start, "ChatServer");
+        thread.setDaemon(true);
+        thread.start();
+        return started;
+    }
+    
+    /** Runs the server on the calling thread until {@link #stop()}. */
     public void start() {
+        synchronized (lifecycleLock) {
+            if (stopping) {
+                started.completeExceptionally(new IOException("Server stopped before it started"));
+                return;
+            }
+            starting = true;
+        }
+        isRunning = true;
+        log.start();
+        log.info("Chat server starting", "port", config.getPort(), "engine", config.getEngine(),
+            "maxClients", config.getMaxClients() > 0 ? config.getMaxClients() : "unlimited");
+        openHistory();
+        startIdleTimer();
+        if (isResumeEnabled()) {
+            long grace = config.getResumeGraceMillis();
+            holdTimer = new TimerWheel<>("ResumeTimer", Math.min(1000, Math.max(10, grace / 60)), 512, this::expireHold, log);
+        }
+        
         try {
-            serverSocket = new ServerSocket(PORT);
-            isRunning = true;
-            System.out.println("Chat server started on port " + PORT);
-            System.out.println("Maximum clients: " + MAX_CLIENTS);
-            
-            while (isRunning) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    
-                    if (clients.size() >= MAX_CLIENTS) {
-                        // Reject connection - server full
-                        PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true);
-                        writer.println("ERROR:Server is full. Try again later.");
-                        clientSocket.close();
-                        continue;
-                    }
+            if (cluster != null) {
+                cluster.start();
+            }
+            if (config.getEngine() == ServerConfig.Engine.NIO) {
+                nioEngine = new NioServerEngine(this, config.getPort(), config.getIoThreads());
+                nioEngine.run();
+            } else {
+                runBlocking();
+            }
+        } catch (IOException e) {
+            log.error("Server error", "error", e.getMessage());
+            started.completeExceptionally(e);
+        } finally {
+            // After stop() the accept loop ends at once and stop() cleans up once clients are drained;
+            // if it was called before we bound, or we failed on our own, it is up to us
+            boolean cleanUp;
+            synchronized (lifecycleLock) {
+                cleanUp = starting || !stopping;
+                starting = false;
+            }
+            if (cleanUp) {
+                isRunning = false;
+                cleanup();
+            }
+        }
+    }
+    
+    /** Called by the engine once its socket is bound, before the first accept. */
+    void bound(int port) throws IOException {
+        synchronized (lifecycleLock) {
+            if (stopping) {
+                throw new IOException("Server stopped before it started");
+            }
+            starting = false;
+        }
+        boundPort = port;
+        metrics.start(config, port);
+        started.complete(port);
+    }
+    
+    /** The port the server listens on once started, the configured one before that. */
+    public int getPort() {
+        int port = boundPort;
+        return port >= 0 ? port : config.getPort();
+    }
+    
+    private void runBlocking() throws IOException {
+        handlerExecutor = config.getEngine() == ServerConfig.Engine.VIRTUAL
+            ? newVirtualThreadExecutor()
+            : newPlatformThreadExecutor();
+        serverSocket = new ServerSocket(config.getPort(), config.getAcceptBacklog());
+        log.info("Chat server started", "port", serverSocket.getLocalPort());
+        bound(serverSocket.getLocalPort());
+        
+        while (isRunning) {
+            try {
+                Socket clientSocket = serverSocket.accept();
+                
+                if (!allowConnectionFrom(clientSocket.getInetAddress())) {
+                    clientSocket.getOutputStream().write((TOO_MANY_CONNECTIONS_MESSAGE + "\n").getBytes(StandardCharsets.UTF_8));
+                    clientSocket.close();
+                    continue;
+                }
+                
+                if (!canAcceptClient()) {
+                    // Reject connection - server full
+                    metrics.connectionRejected();
+                    clientSocket.getOutputStream().write((SERVER_FULL_MESSAGE + "\n").getBytes(StandardCharsets.UTF_8));
+                    clientSocket.close();
+                    continue;
+                }
+                
+                ClientHandler clientHandler = new ClientHandler(clientSocket, this);
+                addClient(clientHandler);
+                handlerExecutor.execute(clientHandler);
+                handlerExecutor.execute(clientHandler.outboundWriter());
+                log.info("New client connected", "remote", clientSocket.getRemoteSocketAddress(), "clients", clients.size());
                     
-                    ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-                    clients.add(clientHandler);
-                    new Thread(clientHandler, "Client-" + clientSocket.getRemoteSocketAddress()).start();
-                    System.out.println("New client connected from " + 
-                        clientSocket.getRemoteSocketAddress() + ". Total clients: " + clients.size());
-                        
-                } catch (IOException e) {
-                    if (isRunning) {
-                        System.err.println("Error accepting client connection: " + e.getMessage());
-                    }
+            } catch (IOException e) {
+                if (isRunning) {
+                    log.error("Error accepting client connection", "error", e.getMessage());
                 }
             }
+        }
+    }
+    
+    private void openHistory() {
+        if (!config.isHistoryEnabled()) {
+            return;
+        }
+        MessageLog messageLog = new MessageLog(config.getHistoryDirectory(), config.getHistorySegmentSize(),
+            config.getHistoryMaxSegments(), config.getHistorySyncIntervalMillis(), log);
+        try {
+            messageLog.open();
+            history = messageLog;
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
-        } finally {
-            cleanup();
+            log.warn("Message history disabled", "error", e.getMessage());
+            messageLog.close();
+        }
+    }
+    
+    private void startIdleTimer() {
+        long timeout = config.getIdleTimeoutMillis();
+        if (timeout > 0) {
+            // About 60 ticks per timeout, so connections are closed at most ~2% late
+            idleTimer = new TimerWheel<>("IdleTimer", Math.min(1000, Math.max(10, timeout / 60)), 512, this::checkIdle, log);
+        }
+    }
+    
+    /** Runs on the idle timer thread when a session's deadline passes; returns its next deadline, or -1. */
+    private long checkIdle(ChatSession session) {
+        if (!session.isConnected()) {
+            return -1;
+        }
+        long lastActivity = session.getLastActivity();
+        long deadline = lastActivity + config.getIdleTimeoutMillis();
+        if (deadline > System.currentTimeMillis()) {
+            return deadline;
+        }
+        log.info("Disconnecting idle client", "user", session.displayName(),
+            "idleMillis", System.currentTimeMillis() - lastActivity);
+        metrics.idleDisconnect();
+        session.disconnect();
+        return -1;
+    }
+    
+    boolean isResumeEnabled() {
+        return config.getResumeGraceMillis() > 0;
+    }
+    
+    // 128 random bits; only ever compared for equality
+    String newSessionToken() {
+        byte[] bytes = new byte[16];
+        tokenRandom.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+    
+    /**
+     * Keeps the name and room of a session whose connection dropped, so the
+     * client can resume it within the grace period without a leave and join.
+     *
+     * @return false if sessions cannot be held right now; the caller leaves as usual
+     */
+    boolean holdSession(String token, ChatSession session) {
+        TimerWheel<ChatSession> timer = holdTimer;
+        if (!isRunning || timer == null) {
+            return false;
+        }
+        heldSessions.put(token, session);
+        timer.schedule(session, System.currentTimeMillis() + config.getResumeGraceMillis());
+        log.info("Holding session for resume", "user", session.getUsername(), "graceMillis", config.getResumeGraceMillis());
+        return true;
+    }
+    
+    // Runs on the resume timer thread; whoever removes the session first, this or a resume, wins
+    private long expireHold(ChatSession session) {
+        if (heldSessions.remove(session.getSessionToken(), session)) {
+            log.info("Session not resumed in time", "user", session.getUsername());
+            metrics.sessionHoldExpired();
+            session.expireHold();
+        }
+        return -1;
+    }
+    
+    /** Takes the held session for a token, or returns null if there is none for that user. */
+    ChatSession takeHeldSession(String token, String username) {
+        ChatSession current = users.get(username);
+        if (current != null && current.isConnected() && token.equals(current.getSessionToken())) {
+            // The client noticed the drop before we did; its old connection is dead, hold it now
+            current.disconnect();
+        }
+        ChatSession held = heldSessions.get(token);
+        if (held == null || !username.equals(held.getUsername()) || !heldSessions.remove(token, held)) {
+            return null;
+        }
+        return held;
+    }
+    
+    /**
+     * Puts a resuming session in place of the held one it continues: same
+     * username, same room, no change to the room's membership version.
+     *
+     * @return the room the session is now in
+     */
+    Room replaceSession(ChatSession previous, ChatSession next) {
+        users.replace(previous.getUsername(), previous, next);
+        // compute() runs atomically per name, like joinRoom, so the room cannot be dropped in between
+        return rooms.compute(previous.getRoom().getName(), (name, existing) -> {
+            Room room = existing != null ? existing : new Room(name);
+            room.replace(previous, next);
+            return room;
+        });
+    }
+    
+    /** Sessions waiting to be resumed; they keep their name and room but have no connection. */
+    Iterable<ChatSession> heldSessions() {
+        return heldSessions.values();
+    }
+    
+    private static ExecutorService newPlatformThreadExecutor() {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> new Thread(task, "Client-" + counter.incrementAndGet()));
+    }
+    
+    // Looked up reflectively so the default Java 17 build keeps compiling
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads need Java 21+, falling back to platform threads");
+            return newPlatformThreadExecutor();
+        }
+    }
+    
+    static final String SERVER_FULL_MESSAGE = "ERROR:Server is full. Try again later.";
+    static final String TOO_MANY_CONNECTIONS_MESSAGE = "ERROR:Too many connections from your address. Try again later.";
+    
+    /**
+     * Per-address accept rate limit, checked before any session state is created.
+     * Only called by the accepting thread.
+     */
+    boolean allowConnectionFrom(InetAddress address) {
+        if (acceptLimiter.tryAccept(address)) {
+            return true;
+        }
+        metrics.connectionThrottled();
+        return false;
+    }
+    
+    boolean canAcceptClient() {
+        int maxClients = config.getMaxClients();
+        return isRunning && (maxClients <= 0 || clients.size() < maxClients);
+    }
+    
+    void addClient(ChatSession client) {
+        clients.add(client);
+        metrics.connectionAccepted();
+        TimerWheel<ChatSession> timer = idleTimer;
+        if (timer != null) {
+            timer.schedule(client, client.getLastActivity() + config.getIdleTimeoutMillis());
+        }
+    }
+    
+    void broadcastChat(Room room, String sender, String body, ChatSession origin) {
+        long id = nextSequence(MessageLog.CHAT, room.getName(), sender, null, body);
+        broadcastMessage(room, ServerMessage.chat(id, sender, body), origin);
+        if (cluster != null) {
+            cluster.publishChat(room.getName(), sender, body);
+        }
+    }
+    
+    // System notices are not logged and carry no sequence number
+    void broadcastSystem(Room room, String text, ChatSession origin) {
+        broadcastMessage(room, ServerMessage.sharedSystem(text), origin);
+        if (cluster != null) {
+            cluster.publishSystem(room.getName(), text);
+        }
+    }
+    
+    /**
+     * Chat published by another cluster node, for the members of the room here.
+     * Logged with a sequence number of this node, so history and {@code /since} stay consistent per node.
+     */
+    void deliverRemoteChat(String roomName, String sender, String body) {
+        Room room = rooms.get(roomName);
+        if (room != null && room.hasLocalMembers()) {
+            long id = nextSequence(MessageLog.CHAT, roomName, sender, null, body);
+            broadcastMessage(room, ServerMessage.chat(id, sender, body), null);
+        }
+    }
+    
+    void deliverRemoteSystem(String roomName, String text) {
+        Room room = rooms.get(roomName);
+        if (room != null && room.hasLocalMembers()) {
+            broadcastMessage(room, ServerMessage.sharedSystem(text), null);
         }
     }
     
-    void broadcastMessage(String message, ClientHandler sender) {
-        System.out.println("Broadcasting: " + message);
-        for (ClientHandler client : clients) {
-            if (client != sender && client.isConnected()) {
-                client.sendMessage(message);
+    /** Sequence number for a chat message or whisper, logging it first when history is on. */
+    private long nextSequence(byte type, String room, String sender, String target, String body) {
+        MessageLog messageLog = history;
+        return messageLog != null ? messageLog.append(type, room, sender, target, body) : messageIds.incrementAndGet();
+    }
+    
+    void broadcastMessage(Room room, ServerMessage message, ChatSession sender) {
+        if (log.sampleMessage()) {
+            // Formatted on the log thread; never blocks the sender
+            log.info("Broadcast", "room", room.getName(), "message", message);
+        }
+        long start = System.nanoTime();
+        // Encoded at most once per protocol, every member shares the same bytes.
+        // Iteration is weakly consistent: concurrent joins and leaves never block it.
+        for (ChatSession client : room.members()) {
+            // Not checking isConnected(): a session waiting to be resumed still records
+            // the message for replay, and send() drops it for a connection that is gone
+            if (client != sender) {
+                client.send(message);
             }
         }
+        metrics.broadcastCompleted(System.nanoTime() - start);
     }
     
-    void broadcastUserList() {
-        String userList = "USERS:" + String.join(",", activeUsers);
-        for (ClientHandler client : clients) {
-            if (client.isConnected()) {
-                client.sendMessage(userList);
+    /**
+     * Tells the other members of a room that someone joined or left. Clients
+     * that apply presence deltas get one small shared frame each, so a join
+     * costs O(room size) bytes instead of a full user list per member; text and
+     * version 1 binary clients still get the (cached) full list.
+     *
+     * @param type {@link BinaryCodec#USER_JOINED} or {@link BinaryCodec#USER_LEFT}
+     * @param version the membership version the change produced
+     */
+    void announcePresence(Room room, String username, byte type, long version, ChatSession subject) {
+        if (version < 0) {
+            return;
+        }
+        ServerMessage delta = null;
+        ServerMessage snapshot = null;
+        for (ChatSession client : room.members()) {
+            if (client == subject || !client.isConnected()) {
+                continue;
+            }
+            if (client.receivesPresenceDeltas()) {
+                delta = delta != null ? delta : ServerMessage.presence(type, version, username);
+                client.send(delta);
+            } else {
+                snapshot = snapshot != null ? snapshot : room.userListMessage();
+                client.send(snapshot);
             }
         }
     }
     
-    boolean sendPrivateMessage(String targetUsername, String message) {
-        for (ClientHandler client : clients) {
-            if (client.isConnected() && targetUsername.equals(client.getUsername())) {
-                client.sendMessage("PRIVATE:" + message);
-                return true;
+    /** Adds the session to a room, creating the room if needed. */
+    Room.Membership joinRoom(ChatSession session, String roomName) {
+        long[] version = new long[1];
+        // compute() runs atomically per name, so an empty room cannot be dropped under a joiner
+        Room joined = rooms.compute(roomName, (name, existing) -> {
+            Room room = existing != null ? existing : new Room(name);
+            version[0] = room.add(session);
+            return room;
+        });
+        if (cluster != null && version[0] >= 0) {
+            cluster.publishPresence(roomName, session.getUsername(), true);
+        }
+        return new Room.Membership(joined, version[0]);
+    }
+    
+    /** @return the membership version after the leave, or -1 if the session was not in the room */
+    long leaveRoom(ChatSession session, Room room) {
+        long[] version = {-1};
+        rooms.computeIfPresent(room.getName(), (name, existing) -> {
+            version[0] = existing.remove(session);
+            return existing.isEmpty() && !existing.isLobby() ? null : existing;
+        });
+        if (cluster != null && version[0] >= 0) {
+            cluster.publishPresence(room.getName(), session.getUsername(), false);
+        }
+        return version[0];
+    }
+    
+    /** A user joined or left a room on another cluster node. */
+    void remotePresence(String roomName, String username, int node, boolean joined) {
+        long[] version = {-1};
+        if (joined) {
+            rooms.compute(roomName, (name, existing) -> {
+                Room room = existing != null ? existing : new Room(name);
+                version[0] = room.addRemote(username, node);
+                return room;
+            });
+        } else {
+            rooms.computeIfPresent(roomName, (name, existing) -> {
+                version[0] = existing.removeRemote(username, node);
+                return existing.isEmpty() && !existing.isLobby() ? null : existing;
+            });
+        }
+        Room room = rooms.get(roomName);
+        if (room != null) {
+            announcePresence(room, username, joined ? BinaryCodec.USER_JOINED : BinaryCodec.USER_LEFT, version[0], null);
+        }
+    }
+    
+    /** Forgets every member of a cluster node that went away, as if they had left. */
+    void dropRemoteMembers(int node) {
+        for (Room room : rooms.values()) {
+            for (String username : room.remoteMembersOf(node)) {
+                remotePresence(room.getName(), username, node, false);
             }
         }
+    }
+    
+    /** Room names with member counts, sorted by name. */
+    List<String> getRoomSummaries() {
+        List<String> summaries = new ArrayList<>();
+        for (Room room : rooms.values()) {
+            summaries.add(room.getName() + " (" + room.size() + ")");
+        }
+        Collections.sort(summaries);
+        return summaries;
+    }
+    
+    /**
+     * Whispers to a user on this or another cluster node and tells the sender
+     * whether it was delivered; for a remote target that answer arrives later
+     * through {@link #whisperResult}.
+     */
+    void sendWhisper(ChatSession from, String targetUsername, String body) {
+        String sender = from.getUsername();
+        if (sendPrivateMessage(targetUsername, sender, body)) {
+            from.sendSystem("Whisper sent to " + targetUsername);
+        } else if (cluster == null || !cluster.forwardWhisper(targetUsername, sender, body)) {
+            from.sendSystem("User " + targetUsername + " not found");
+        }
+    }
+    
+    void whisperResult(String sender, String targetUsername, boolean delivered) {
+        ChatSession from = users.get(sender);
+        if (from != null) {
+            from.sendSystem(delivered ? "Whisper sent to " + targetUsername : "User " + targetUsername + " not found");
+        }
+    }
+    
+    /** Delivers a whisper to a user connected to this node. */
+    boolean sendPrivateMessage(String targetUsername, String sender, String body) {
+        ChatSession target = users.get(targetUsername);
+        // A session waiting to be resumed keeps its token and records the whisper for replay
+        if (target != null && (target.isConnected() || target.getSessionToken() != null)) {
+            long id = nextSequence(MessageLog.WHISPER, "", sender, targetUsername, body);
+            target.send(ServerMessage.whisper(id, sender, body));
+            return true;
+        }
         return false;
     }
     
+    /**
+     * The last {@code count} chat messages of a room plus the user's own whispers, oldest first.
+     * Empty when history is disabled.
+     */
+    List<ServerMessage> recentHistory(String roomName, String username, int count) {
+        MessageLog messageLog = history;
+        if (messageLog == null || count <= 0) {
+            return List.of();
+        }
+        return toMessages(messageLog.readLast(count, entry -> isVisible(entry, roomName, username)));
+    }
+    
+    /** Up to {@code limit} messages visible to the user with a sequence above {@code afterSequence}. */
+    List<ServerMessage> historySince(long afterSequence, String roomName, String username, int limit) {
+        MessageLog messageLog = history;
+        if (messageLog == null) {
+            return List.of();
+        }
+        return toMessages(messageLog.readSince(afterSequence, limit, entry -> isVisible(entry, roomName, username)));
+    }
+    
+    boolean isHistoryEnabled() {
+        return history != null;
+    }
+    
+    private static boolean isVisible(MessageLog.Entry entry, String roomName, String username) {
+        if (entry.type() == MessageLog.WHISPER) {
+            return entry.target().equals(username) || entry.sender().equals(username);
+        }
+        return entry.room().equals(roomName);
+    }
+    
+    private static List<ServerMessage> toMessages(List<MessageLog.Entry> entries) {
+        List<ServerMessage> messages = new ArrayList<>(entries.size());
+        for (MessageLog.Entry entry : entries) {
+            messages.add(entry.type() == MessageLog.WHISPER
+                ? ServerMessage.whisper(entry.sequence(), entry.sender(), entry.body())
+                : ServerMessage.replayedChat(entry.sequence(), entry.sender(), entry.body()));
+        }
+        return messages;
+    }
+    
     boolean isUsernameTaken(String username) {
-        return activeUsers.contains(username);
+        return users.containsKey(username) || (cluster != null && cluster.isRemoteUser(username));
     }
     
-    void addActiveUser(String username) {
-        if (!activeUsers.contains(username)) {
-            activeUsers.add(username);
+    /**
+     * Claims a username for a session in one atomic step, so two clients
+     * logging in with the same name at once cannot both succeed. In a cluster
+     * the name is then claimed from the node that owns it, which may take a
+     * round trip; the future completes when the answer arrives.
+     *
+     * @return completes with false if the name is already taken
+     */
+    CompletableFuture<Boolean> reserveUsername(String username, ChatSession session) {
+        if (users.putIfAbsent(username, session) != null) {
+            return USERNAME_TAKEN;
+        }
+        if (cluster == null) {
+            return USERNAME_RESERVED;
         }
+        return cluster.claim(username).thenApply(granted -> {
+            if (!granted) {
+                users.remove(username, session);
+            }
+            return granted;
+        });
     }
     
-    void removeActiveUser(String username) {
-        activeUsers.remove(username);
+    // Only releases the name if it still belongs to this session
+    void removeActiveUser(String username, ChatSession session) {
+        if (users.remove(username, session) && cluster != null) {
+            cluster.release(username);
+        }
     }
     
     List<String> getActiveUsers() {
-        return new ArrayList<>(activeUsers);
+        List<String> names = new ArrayList<>(users.keySet());
+        Collections.sort(names);
+        return names;
+    }
+    
+    /** Weakly consistent view of every open connection. */
+    Iterable<ChatSession> sessions() {
+        return clients;
+    }
+    
+    ServerLog getLog() {
+        return log;
+    }
+    
+    ServerMetrics getMetrics() {
+        return metrics;
     }
     
-    void removeClient(ClientHandler client) {
+    void removeClient(ChatSession client) {
         clients.remove(client);
-        System.out.println("Client removed. Total clients: " + clients.size());
-        
-        // Clean up disconnected clients
-        clients.removeIf(c -> !c.isConnected());
+        log.info("Client removed", "clients", clients.size());
     }
     
+    /** Stops with the configured {@link ServerConfig#getShutdownDrainMillis() drain deadline}. */
     public void stop() {
-        System.out.println("Stopping chat server...");
+        stop(config.getShutdownDrainMillis());
+    }
+    
+    /**
+     * Stops accepting, tells every client, and gives their outbound queues up to
+     * {@code drainTimeoutMillis} to reach the sockets before everything is closed.
+     * Nobody is told who left: every connection goes at once, in parallel, so
+     * stopping costs O(N) instead of a leave broadcast per user.
+     */
+    public void stop(long drainTimeoutMillis) {
+        log.info("Stopping chat server");
+        drainDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        boolean startCleansUp;
+        synchronized (lifecycleLock) {
+            stopping = true;
+            // Not bound yet: start() fails to bind and cleans up once it is done creating things
+            startCleansUp = starting;
+        }
         isRunning = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            if (nioEngine != null) {
+                nioEngine.stopAccepting();
+            }
+        } catch (IOException e) {
+            log.error("Error closing server socket", "error", e.getMessage());
+        }
         
-        // Notify all clients that server is shutting down
-        for (ClientHandler client : clients) {
+        // Notify all clients that server is shutting down, one frame shared by all of them
+        ServerMessage notice = ServerMessage.sharedSystem("Server is shutting down...");
+        for (ChatSession client : clients) {
             if (client.isConnected()) {
-                client.sendMessage("SYSTEM:Server is shutting down...");
+                client.send(notice);
             }
         }
+        awaitOutboundDrained(drainDeadlineNanos);
         
-        cleanup();
+        if (!startCleansUp) {
+            cleanup();
+        }
     }
     
+    private void awaitOutboundDrained(long deadlineNanos) {
+        for (ChatSession client : clients) {
+            while (client.isConnected() && client.getOutboundQueueDepth() > 0 && System.nanoTime() < deadlineNanos) {
+                LockSupport.parkNanos(DRAIN_POLL_NANOS);
+            }
+        }
+    }
+    
+    // Runs once, whether stop() or start() gets here first
     private void cleanup() {
+        if (!cleanedUp.compareAndSet(false, true)) {
+            return;
+        }
         try {
             if (serverSocket != null) {
                 serverSocket.close();
             }
-            
-            // Disconnect all clients
-            for (ClientHandler client : clients) {
-                client.disconnect();
+            if (nioEngine != null) {
+                nioEngine.close();
+            }
+            if (handlerExecutor != null) {
+                handlerExecutor.shutdown();
+            }
+            if (history != null) {
+                history.close();
+                history = null;
+            }
+            if (cluster != null) {
+                cluster.close();
             }
+            metrics.stop();
+            if (idleTimer != null) {
+                idleTimer.stop();
+                idleTimer = null;
+            }
+            if (holdTimer != null) {
+                holdTimer.stop();
+                holdTimer = null;
+            }
+            heldSessions.clear();
+            started.completeExceptionally(new IOException("Server stopped before it started"));
+            
+            // Close every connection without leave notices; the registries are cleared below
+            long closeStart = System.nanoTime();
+            int closed = clients.size();
+            closeClientsForShutdown();
+            log.info("Closed client connections", "clients", closed,
+                    "millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - closeStart));
             
             clients.clear();
-            activeUsers.clear();
+            users.clear();
+            rooms.clear();
+            rooms.put(Room.LOBBY, new Room(Room.LOBBY));
             
         } catch (IOException e) {
-            System.err.println("Error during server cleanup: " + e.getMessage());
+            log.error("Error during server cleanup", "error", e.getMessage());
         }
         
-        System.out.println("Chat server stopped.");
+        log.info("Chat server stopped");
+        // Later events (late disconnects) are written synchronously
+        log.close();
     }
     
     public boolean isRunning() {
         return isRunning;
     }
     
+    /**
+     * Closes every client on a small pool of our own: a blocking close waits a
+     * moment for the writer to flush, which must not tie up the common pool.
+     * The pool lives only as long as the shutdown, since a server stops once.
+     * Closes still waiting when the drain deadline (or a short floor past it)
+     * runs out are interrupted, so they close at once without flushing.
+     */
+    private void closeClientsForShutdown() {
+        List<ChatSession> sessions = new ArrayList<>(clients);
+        if (sessions.isEmpty()) {
+            return;
+        }
+        long waitNanos = stopping
+            ? Math.max(remainingDrainNanos(), SHUTDOWN_CLOSE_FLOOR_NANOS)
+            : SHUTDOWN_CLOSE_FLOOR_NANOS;
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService closer = Executors.newFixedThreadPool(Math.min(sessions.size(), SHUTDOWN_CLOSE_THREADS), task -> {
+            Thread thread = new Thread(task, "ShutdownClose-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (ChatSession session : sessions) {
+            closer.execute(session::closeForShutdown);
+        }
+        closer.shutdown();
+        try {
+            if (!closer.awaitTermination(waitNanos, TimeUnit.NANOSECONDS)) {
+                closer.shutdownNow();
+                log.warn("Interrupted client closes past the drain deadline", "clients", sessions.size());
+            }
+        } catch (InterruptedException e) {
+            closer.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /** Time left until the drain deadline of a stopping server; unlimited while it runs. */
+    long remainingDrainNanos() {
+        return stopping ? drainDeadlineNanos - System.nanoTime() : Long.MAX_VALUE;
+    }
+    
     public int getClientCount() {
         return clients.size();
     }
     
+    public ServerConfig getConfig() {
+        return config;
+    }
+    
     public static void main(String[] args) {
-        ChatServer server = new ChatServer();
+        ChatServer server = new ChatServer(ServerConfig.fromSystemProperties().applyArgs(args));
         
         // Add shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
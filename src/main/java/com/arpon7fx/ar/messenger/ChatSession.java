@@ -0,0 +1,632 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Protocol side of a single client connection: login, commands and routing.
+ * The transport (a blocking {@link ClientHandler} or a non-blocking
+ * {@link NioSession}) feeds it raw bytes and provides the actual write and
+ * close operations. The first byte decides between the line protocol and
+ * the binary framing of {@link BinaryCodec}.
+ */
+abstract class ChatSession {
+    protected final ChatServer server;
+    protected final OutboundQueue outbound;
+    protected final ServerLog log;
+    protected volatile String username;
+    private volatile Room room;
+    private final AtomicBoolean connected = new AtomicBoolean(true);
+    private volatile long lastActivity;
+    private volatile boolean binary;
+    private volatile boolean presenceDeltas;
+    // Set at login for clients that can resume; cleared by /quit so the name is freed at once
+    private volatile String sessionToken;
+    private volatile ResumeBuffer resumeBuffer;
+    // The session that took this one over; written under the resume buffer's lock
+    private volatile ChatSession resumedBy;
+    // Highest CHAT or COMMAND frame id taken from a resumable client, passed on to the session that
+    // resumes this one. Shared, since the old connection's reader may still be finishing a frame
+    private AtomicLong acceptedFrameId = new AtomicLong();
+    private LineDecoder lineDecoder;
+    private BinaryCodec.Decoder binaryDecoder;
+    // Input that arrived while the login waits for the cluster to grant the name, replayed
+    // in order once it does; null when no login is pending. Only used by the reading thread
+    private List<HeldInput> heldInput;
+    private int heldBytes;
+    // Rate limits, separately for chat (fans out to the room) and commands; null means unlimited.
+    // Only used by the reading thread, like the decoders
+    private final TokenBucket chatMessages;
+    private final TokenBucket chatBytes;
+    private final TokenBucket commandMessages;
+    private final TokenBucket commandBytes;
+    private long lastThrottleNotice;
+
+    // Upper bound for /history and /since replies
+    static final int MAX_HISTORY_REPLAY = 500;
+    // Buckets hold this many seconds' worth, so short bursts pass
+    private static final double BURST_SECONDS = 2;
+    private static final long THROTTLE_NOTICE_INTERVAL_MILLIS = 1000;
+    // More than this arriving during a pending login is not a client waiting politely
+    private static final int MAX_HELD_INPUT_BYTES = 64 * 1024;
+
+    /** A line or frame put aside while the login is pending. */
+    @FunctionalInterface
+    private interface HeldInput {
+        boolean handle() throws IOException;
+    }
+
+    protected ChatSession(ChatServer server) {
+        this.server = server;
+        this.log = server.getLog();
+        ServerConfig config = server.getConfig();
+        this.outbound = new OutboundQueue(config.getOutboundQueueCapacity(),
+            config.getOverflowPolicy(), config.getOverflowBlockTimeoutMillis());
+        this.lastActivity = System.currentTimeMillis();
+        // A single message of the largest allowed size always fits the byte budget
+        this.chatMessages = TokenBucket.perSecond(config.getChatMessagesPerSecond(), BURST_SECONDS, 1);
+        this.chatBytes = TokenBucket.perSecond(config.getChatBytesPerSecond(), BURST_SECONDS, BinaryCodec.MAX_FRAME_LENGTH);
+        this.commandMessages = TokenBucket.perSecond(config.getCommandMessagesPerSecond(), BURST_SECONDS, 1);
+        this.commandBytes = TokenBucket.perSecond(config.getCommandBytesPerSecond(), BURST_SECONDS, BinaryCodec.MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Feeds bytes read from the socket. Only ever called by the transport's reading thread.
+     *
+     * @return false once the session is closed and no more bytes should be read
+     * @throws IOException on malformed or oversized input
+     */
+    boolean onBytes(ByteBuffer data) throws IOException {
+        server.getMetrics().bytesReceived(data.remaining());
+        if (lineDecoder == null && binaryDecoder == null) {
+            if (!data.hasRemaining()) {
+                return true;
+            }
+            if (data.get(data.position()) == BinaryCodec.MAGIC) {
+                binary = true;
+                binaryDecoder = new BinaryCodec.Decoder(true);
+            } else {
+                lineDecoder = new LineDecoder();
+            }
+        }
+        return binary
+            ? binaryDecoder.decode(data, this::handleFrame)
+            : lineDecoder.decode(data, this::handleLine);
+    }
+
+    /**
+     * Handles one line of the text protocol.
+     * The first line is the username, everything after is chat or a command.
+     */
+    boolean handleLine(String line) {
+        if (heldInput != null) {
+            return hold(line.length() + 1, () -> handleLine(line));
+        }
+        updateActivity();
+        if (line.isEmpty() && username != null) {
+            // Heartbeat; answered without touching the chat or either budget
+            send(ServerMessage.HEARTBEAT_ACK);
+            return isConnected();
+        }
+        server.getMetrics().messageReceived();
+
+        if (username == null) {
+            return login(line.trim());
+        }
+
+        String message = line.trim();
+        if (!message.isEmpty() && withinBudget(message.charAt(0) == '/', Frames.utf8Length(line), true)) {
+            // Handle special commands
+            if (message.charAt(0) == '/') {
+                handleCommand(message);
+            } else {
+                // Regular message - broadcast to the other members of our room
+                server.broadcastChat(room, username, message, this);
+            }
+        }
+        return isConnected();
+    }
+
+    /** Handles one binary frame; the payload is only valid during the call. */
+    boolean handleFrame(byte type, long id, ByteBuffer payload) throws IOException {
+        if (heldInput != null) {
+            ByteBuffer copy = ByteBuffer.allocate(payload.remaining()).put(payload).flip();
+            return hold(copy.remaining() + 1, () -> handleFrame(type, id, copy));
+        }
+        updateActivity();
+        if (type == BinaryCodec.HEARTBEAT) {
+            send(ServerMessage.HEARTBEAT_ACK);
+            return isConnected();
+        }
+        server.getMetrics().messageReceived();
+
+        if (username == null && type == BinaryCodec.HELLO) {
+            presenceDeltas = binaryDecoder.version() >= 2;
+            return login(BinaryCodec.readRemaining(payload).trim());
+        }
+        if (username == null) {
+            if (type != BinaryCodec.RESUME || binaryDecoder.version() < 3) {
+                throw new IOException("Expected HELLO or RESUME frame, got type " + type);
+            }
+            presenceDeltas = true;
+            String name = BinaryCodec.readString(payload).trim();
+            return resume(name, BinaryCodec.readRemaining(payload), id);
+        }
+
+        if (isResent(type, id)) {
+            log.debug("Dropped resent frame", "user", username, "id", id);
+            return isConnected();
+        }
+        if (!withinBudget(type != BinaryCodec.CHAT, payload.remaining(), true)) {
+            return isConnected();
+        }
+        switch (type) {
+            case BinaryCodec.CHAT -> {
+                String message = BinaryCodec.readRemaining(payload);
+                if (!message.isBlank()) {
+                    server.broadcastChat(room, username, message, this);
+                }
+            }
+            case BinaryCodec.COMMAND -> handleCommand(BinaryCodec.readRemaining(payload).trim());
+            // The client missed a presence delta and wants to start over
+            case BinaryCodec.SYNC_USERS -> send(room.userListMessage());
+            default -> throw new IOException("Unexpected frame type " + type);
+        }
+        return isConnected();
+    }
+
+    /**
+     * True for a chat message or command the client sent again after a reconnect,
+     * although this session, or the one it resumed, already got it. Resumable
+     * clients number these frames in increasing order.
+     */
+    private boolean isResent(byte type, long id) {
+        if (resumeBuffer == null || id <= 0 || (type != BinaryCodec.CHAT && type != BinaryCodec.COMMAND)) {
+            return false;
+        }
+        return acceptedFrameId.getAndAccumulate(id, Math::max) >= id;
+    }
+
+    private boolean login(String name) {
+        if (name.isEmpty()) {
+            disconnect();
+            return false;
+        }
+
+        // Check-and-claim in one step
+        CompletableFuture<Boolean> reserved = server.reserveUsername(name, this);
+        if (reserved.isDone()) {
+            return completeLogin(name, reserved.join());
+        }
+        // Another cluster node owns the name; keep reading, but hold the input until it answers
+        heldInput = new ArrayList<>();
+        reserved.thenAccept(granted -> runOnReader(() -> resumeHeldLogin(name, granted)));
+        return isConnected();
+    }
+
+    private boolean completeLogin(String name, boolean reserved) {
+        if (!reserved) {
+            send(ServerMessage.error("Username already taken"));
+            disconnect();
+            return false;
+        }
+
+        username = name;
+        Room.Membership membership = server.joinRoom(this, Room.LOBBY);
+        room = membership.room();
+        if (!isConnected()) {
+            // Disconnected while logging in, before disconnect() could see the name or room
+            server.leaveRoom(this, room);
+            server.removeActiveUser(name, this);
+            return false;
+        }
+        if (binaryDecoder != null && binaryDecoder.version() >= 3 && server.isResumeEnabled()) {
+            // Before the history replay, so the replayed messages count as received
+            resumeBuffer = new ResumeBuffer(server.getConfig().getResumeBufferSize());
+            sessionToken = server.newSessionToken();
+            send(ServerMessage.session(sessionToken, false));
+        }
+        replayHistory(server.recentHistory(room.getName(), username, server.getConfig().getHistoryReplayCount()));
+        server.broadcastSystem(room, username + " joined the chat", this);
+        // A full list for the newcomer, a delta for everyone else
+        send(room.userListMessage());
+        server.announcePresence(room, username, BinaryCodec.USER_JOINED, membership.version(), this);
+        return isConnected();
+    }
+
+    // On the reading thread, once the cluster answered a pending login
+    private void resumeHeldLogin(String name, boolean reserved) {
+        List<HeldInput> held = heldInput;
+        heldInput = null;
+        heldBytes = 0;
+        try {
+            boolean open = completeLogin(name, reserved);
+            for (int i = 0; open && i < held.size(); i++) {
+                open = held.get(i).handle();
+            }
+        } catch (IOException e) {
+            log.warn("Protocol error", "user", displayName(), "error", e.getMessage());
+            disconnect();
+        }
+    }
+
+    private boolean hold(int bytes, HeldInput input) {
+        heldBytes += bytes;
+        if (heldBytes > MAX_HELD_INPUT_BYTES) {
+            log.warn("Disconnecting client (too much input during login)", "user", displayName());
+            disconnect();
+            return false;
+        }
+        heldInput.add(input);
+        return isConnected();
+    }
+
+    /** True while a login waits for the cluster; the transport can stop reading meanwhile. */
+    boolean isLoginPending() {
+        return heldInput != null;
+    }
+
+    /**
+     * Continues a session whose connection dropped: this connection takes over
+     * its name, room and replay buffer without anyone seeing a leave or join,
+     * then gets what it missed after {@code lastSequence} and a fresh user list.
+     * Falls back to a normal login once the session is gone.
+     */
+    private boolean resume(String name, String token, long lastSequence) {
+        ChatSession previous = server.takeHeldSession(token, name);
+        if (previous == null) {
+            return login(name);
+        }
+        username = name;
+        sessionToken = token;
+        ResumeBuffer buffer = previous.resumeBuffer;
+        resumeBuffer = buffer;
+        acceptedFrameId = previous.acceptedFrameId;
+        // Senders record and deliver under the same lock, so every message is
+        // either in the replay below or delivered live afterwards, never both
+        synchronized (buffer) {
+            previous.resumedBy = this;
+            room = server.replaceSession(previous, this);
+            deliver(ServerMessage.session(token, true), false);
+            List<ServerMessage> missed = buffer.after(lastSequence);
+            if (missed == null && lastSequence > 0 && server.isHistoryEnabled()) {
+                missed = server.historySince(lastSequence, room.getName(), username, MAX_HISTORY_REPLAY);
+            } else if (missed == null) {
+                missed = buffer.all();
+                sendSystem("Some messages sent while you were away could not be replayed");
+            }
+            for (ServerMessage message : missed) {
+                deliver(message, false);
+            }
+        }
+        if (!isConnected()) {
+            // Dropped again before disconnect() could see the name or room
+            leave(room);
+            return false;
+        }
+        log.info("Session resumed", "user", name, "afterSequence", lastSequence);
+        server.getMetrics().sessionResumed();
+        send(room.userListMessage());
+        return isConnected();
+    }
+
+    private void handleCommand(String command) {
+        server.getMetrics().commandReceived(commandName(command));
+
+        if (command.equals("/ping")) {
+            sendSystem("Pong! Server is alive.");
+        } else if (command.equals("/users")) {
+            sendSystem("Online users in #" + room.getName() + ": " + room.getUsernames());
+        } else if (command.equals("/rooms")) {
+            sendSystem("Rooms: " + server.getRoomSummaries());
+        } else if (command.startsWith("/join ")) {
+            handleJoinCommand(command.substring("/join ".length()).trim());
+        } else if (command.equals("/leave")) {
+            if (room.isLobby()) {
+                sendSystem("You are already in #" + Room.LOBBY);
+            } else {
+                switchRoom(Room.LOBBY);
+            }
+        } else if (command.equals("/time")) {
+            sendSystem("Server time: " + new java.util.Date());
+        } else if (command.startsWith("/whisper ")) {
+            handleWhisperCommand(command);
+        } else if (command.equals("/history") || command.startsWith("/history ")) {
+            handleHistoryCommand(command.substring("/history".length()).trim());
+        } else if (command.startsWith("/since ")) {
+            handleSinceCommand(command.substring("/since ".length()).trim());
+        } else if (command.equals("/quit")) {
+            // Leaving on purpose: free the name now instead of holding it for a resume
+            sessionToken = null;
+            disconnect();
+        } else {
+            sendSystem("Unknown command. Available: /ping, /users, /time, /whisper <user> <message>, "
+                + "/rooms, /join <room>, /leave, /history [count], /since <sequence>, /quit");
+        }
+    }
+
+    private void handleHistoryCommand(String argument) {
+        if (!server.isHistoryEnabled()) {
+            sendSystem("Message history is disabled on this server");
+            return;
+        }
+        int count = ServerConfig.DEFAULT_HISTORY_REPLAY_COUNT;
+        if (!argument.isEmpty()) {
+            try {
+                count = Math.min(Integer.parseInt(argument), MAX_HISTORY_REPLAY);
+            } catch (NumberFormatException e) {
+                count = -1;
+            }
+            if (count <= 0) {
+                sendSystem("Usage: /history [count]");
+                return;
+            }
+        }
+        replayHistory(server.recentHistory(room.getName(), username, count));
+    }
+
+    private void handleSinceCommand(String argument) {
+        if (!server.isHistoryEnabled()) {
+            sendSystem("Message history is disabled on this server");
+            return;
+        }
+        long sequence;
+        try {
+            sequence = Long.parseLong(argument);
+        } catch (NumberFormatException e) {
+            sequence = -1;
+        }
+        if (sequence < 0) {
+            sendSystem("Usage: /since <sequence>");
+            return;
+        }
+        replayHistory(server.historySince(sequence, room.getName(), username, MAX_HISTORY_REPLAY));
+    }
+
+    private void replayHistory(List<ServerMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        sendSystem("History: last " + messages.size() + " message(s)");
+        for (ServerMessage message : messages) {
+            send(message);
+        }
+    }
+
+    // "/join dev" -> "join"
+    private static String commandName(String command) {
+        if (!command.startsWith("/")) {
+            return "unknown";
+        }
+        int nameEnd = command.indexOf(' ');
+        return command.substring(1, nameEnd < 0 ? command.length() : nameEnd);
+    }
+
+    private void handleJoinCommand(String roomName) {
+        if (roomName.startsWith("#")) {
+            roomName = roomName.substring(1);
+        }
+        if (!Room.isValidName(roomName)) {
+            sendSystem("Usage: /join <room> (letters, digits, '-' and '_', up to " + Room.MAX_NAME_LENGTH + " characters)");
+        } else if (roomName.equals(room.getName())) {
+            sendSystem("You are already in #" + roomName);
+        } else {
+            switchRoom(roomName);
+        }
+    }
+
+    private void switchRoom(String roomName) {
+        Room previous = room;
+        long leftVersion = server.leaveRoom(this, previous);
+        server.broadcastSystem(previous, username + " left #" + previous.getName(), this);
+        server.announcePresence(previous, username, BinaryCodec.USER_LEFT, leftVersion, this);
+
+        Room.Membership membership = server.joinRoom(this, roomName);
+        room = membership.room();
+        sendSystem("You joined #" + room.getName());
+        replayHistory(server.recentHistory(room.getName(), username, server.getConfig().getHistoryReplayCount()));
+        server.broadcastSystem(room, username + " joined #" + room.getName(), this);
+        send(room.userListMessage());
+        server.announcePresence(room, username, BinaryCodec.USER_JOINED, membership.version(), this);
+    }
+
+    private void handleWhisperCommand(String command) {
+        // "/whisper <user> <message>", parsed without regex
+        int userStart = "/whisper ".length();
+        int userEnd = command.indexOf(' ', userStart);
+        if (userEnd > userStart && userEnd < command.length() - 1) {
+            String targetUser = command.substring(userStart, userEnd);
+            server.sendWhisper(this, targetUser, command.substring(userEnd + 1));
+        } else {
+            sendSystem("Usage: /whisper <username> <message>");
+        }
+    }
+
+    private void updateActivity() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Takes one message of {@code size} bytes from the chat or command budget.
+     * Over budget, the message is dropped and counted; the client hears about it
+     * at most once a second so the notices cannot become a flood of their own.
+     */
+    private boolean withinBudget(boolean command, int size, boolean notify) {
+        boolean allowed = command
+            ? TokenBucket.tryAcquire(commandMessages, 1, commandBytes, size)
+            : TokenBucket.tryAcquire(chatMessages, 1, chatBytes, size);
+        if (allowed) {
+            return true;
+        }
+        server.getMetrics().messageThrottled();
+        long now = System.currentTimeMillis();
+        if (notify && now - lastThrottleNotice >= THROTTLE_NOTICE_INTERVAL_MILLIS) {
+            lastThrottleNotice = now;
+            sendSystem("You are sending too fast; message dropped");
+        }
+        return false;
+    }
+
+    void sendSystem(String text) {
+        send(ServerMessage.system(text));
+    }
+
+    /**
+     * Queues a message in this client's protocol without waiting for the socket.
+     * Shared frames are queued as duplicates, the cached buffer itself is never consumed.
+     * A resumable session also records chat and whispers, even while held, so
+     * they can be replayed after a reconnect.
+     */
+    void send(ServerMessage message) {
+        ResumeBuffer buffer = resumeBuffer;
+        if (buffer != null && message.isSequenced()) {
+            // Wait for room before taking the lock: under it the frame is only queued if it fits,
+            // so a slow reader never parks a sender holding the lock (pinning a virtual thread's
+            // carrier) or lines up every other sender behind it
+            ChatSession waitFor = latest();
+            waitFor.outbound.awaitRoom(waitFor::isConnected);
+            // Recorded in queue order, which is the order the client will see
+            synchronized (buffer) {
+                buffer.record(message);
+                latest().deliver(message, false);
+            }
+        } else {
+            deliver(message, true);
+        }
+    }
+
+    // Senders that still see a resumed session reach the connection that took it over
+    private ChatSession latest() {
+        ChatSession target = this;
+        ChatSession next;
+        while ((next = target.resumedBy) != null) {
+            target = next;
+        }
+        return target;
+    }
+
+    private void deliver(ServerMessage message, boolean mayWait) {
+        ByteBuffer frame = message.frame(binary);
+        enqueue(message.isShared() ? frame.duplicate() : frame, mayWait);
+    }
+
+    private void enqueue(ByteBuffer frame, boolean mayWait) {
+        if (isConnected()) {
+            int length = frame.remaining();
+            if (outbound.offer(frame, mayWait)) {
+                server.getMetrics().messageSent(length);
+                onOutboundReady();
+            } else {
+                log.warn("Disconnecting slow client (outbound queue full)", "user", displayName());
+                disconnect();
+            }
+        }
+    }
+
+    /** Called after a frame was queued so the transport can start draining. */
+    protected abstract void onOutboundReady();
+
+    /**
+     * Runs a task on the thread that reads this connection, after the input it
+     * is handling now, even if the connection closed in the meantime. Used to
+     * continue a login once the cluster granted the name.
+     */
+    protected abstract void runOnReader(Runnable task);
+
+    /** Closes the underlying socket or channel. Called at most once. */
+    protected abstract void closeTransport();
+
+    public void disconnect() {
+        if (connected.compareAndSet(true, false)) {
+            Room current = room;
+            String token = sessionToken;
+            if (token != null && current != null) {
+                // Connection gone, but the name and room are kept until the client resumes or the grace period ends
+                if (!server.holdSession(token, this)) {
+                    leave(current);
+                }
+            } else if (current != null) {
+                leave(current);
+            } else if (username != null) {
+                server.removeActiveUser(username, this);
+            }
+            closeTransport();
+            server.removeClient(this);
+        }
+    }
+
+    /**
+     * Closes the connection while the server stops: no leave notice, no hold,
+     * and the server drops its client, user and room registries in one go.
+     */
+    void closeForShutdown() {
+        if (connected.compareAndSet(true, false)) {
+            closeTransport();
+        }
+    }
+
+    /** The grace period of a held session ran out; everyone now sees the user leave. */
+    void expireHold() {
+        leave(room);
+    }
+
+    private void leave(Room current) {
+        long version = server.leaveRoom(this, current);
+        server.removeActiveUser(username, this);
+        server.broadcastSystem(current, username + " left the chat", this);
+        server.announcePresence(current, username, BinaryCodec.USER_LEFT, version, this);
+    }
+
+    public boolean isConnected() {
+        return connected.get();
+    }
+
+    /** Set for sessions the client can resume; still set while the session waits to be resumed. */
+    String getSessionToken() {
+        return sessionToken;
+    }
+
+    /** True once the client negotiated the binary protocol. */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /** True for binary clients of protocol version 2+, which get USER_JOINED/USER_LEFT instead of full lists. */
+    boolean receivesPresenceDeltas() {
+        return presenceDeltas;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /** The room this session currently talks in, or null before login. */
+    Room getRoom() {
+        return room;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public int getOutboundQueueDepth() {
+        return outbound.depth();
+    }
+
+    public int getPeakOutboundQueueDepth() {
+        return outbound.peakDepth();
+    }
+
+    public long getDroppedMessageCount() {
+        return outbound.droppedCount();
+    }
+
+    protected String displayName() {
+        return username != null ? username : "unknown";
+    }
+}
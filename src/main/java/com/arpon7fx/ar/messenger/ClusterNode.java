@@ -0,0 +1,345 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One server's membership in a cluster. Rooms span every node: chat, system
+ * notices and joins/leaves are published to the other nodes, which fan them
+ * out to their own members. Whispers go straight to the node the target is
+ * connected to.
+ *
+ * <p>Events are encoded once and queued per destination node; a single sender
+ * thread drains each queue into one batch, so a burst of broadcasts costs one
+ * transport write per node instead of one per message. Every node sends in
+ * publish order and the transport keeps order per link, so messages from one
+ * sender arrive everywhere in the order they were sent.
+ *
+ * <p>Usernames are claimed from an owner node chosen by hashing the name, which
+ * makes "first claim wins" a single atomic {@code putIfAbsent} on one node.
+ * A login on a node that does not own the name continues when the owner answers
+ * (or is refused after {@link #CLAIM_TIMEOUT_MILLIS}), without holding up the
+ * reading thread; if the owner is down, names it owns cannot be claimed until it is back.
+ *
+ * <pre>
+ * batch := event*
+ * event := type:u8 number:varint string*   (string := length:varint utf8)
+ * </pre>
+ */
+final class ClusterNode implements ClusterTransport.Receiver {
+    static final long CLAIM_TIMEOUT_MILLIS = 3000;
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+    private static final CompletableFuture<Boolean> GRANTED = CompletableFuture.completedFuture(true);
+    private static final CompletableFuture<Boolean> REFUSED = CompletableFuture.completedFuture(false);
+
+    // Event types; the strings that follow the number are listed per type
+    private static final byte CHAT = 1;            // room, sender, body
+    private static final byte SYSTEM = 2;          // room, text
+    private static final byte JOINED = 3;          // room, username
+    private static final byte LEFT = 4;            // room, username
+    private static final byte WHISPER = 5;         // target, sender, body
+    private static final byte WHISPER_RESULT = 6;  // number = 1 if delivered; sender, target
+    private static final byte CLAIM = 7;           // number = request id, 0 for no reply; username
+    private static final byte CLAIM_RESULT = 8;    // number = request id << 1 | granted
+    private static final byte RELEASE = 9;         // username
+
+    private final ChatServer server;
+    private final ClusterTransport transport;
+    private final ServerLog log;
+    private final int nodeId;
+    private final int nodeCount;
+    private final Queue<byte[]>[] outboxes;
+    private final Thread sender;
+    private volatile boolean running;
+    // Usernames this node owns -> node holding them
+    private final Map<String, Integer> claims = new ConcurrentHashMap<>();
+    private final Map<Long, CompletableFuture<Boolean>> pendingClaims = new ConcurrentHashMap<>();
+    private final AtomicLong claimIds = new AtomicLong();
+    // Users logged in on other nodes -> their node, learned from JOINED/LEFT
+    private final Map<String, Integer> remoteUsers = new ConcurrentHashMap<>();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ClusterNode(ChatServer server, ClusterTransport transport) {
+        this.server = server;
+        this.transport = transport;
+        this.log = server.getLog();
+        this.nodeId = transport.nodeId();
+        this.nodeCount = transport.nodeCount();
+        this.outboxes = new Queue[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            outboxes[i] = new ConcurrentLinkedQueue<>();
+        }
+        sender = new Thread(this::sendLoop, "Cluster-sender");
+        sender.setDaemon(true);
+    }
+
+    void start() throws IOException {
+        running = true;
+        sender.start();
+        transport.start(this);
+    }
+
+    void close() {
+        running = false;
+        LockSupport.unpark(sender);
+        transport.close();
+        pendingClaims.values().forEach(claim -> claim.complete(false));
+    }
+
+    int ownerOf(String username) {
+        return Math.floorMod(username.hashCode(), nodeCount);
+    }
+
+    // --- Outgoing ---
+
+    void publishChat(String room, String sender, String body) {
+        publishAll(encode(CHAT, 0, room, sender, body));
+    }
+
+    void publishSystem(String room, String text) {
+        publishAll(encode(SYSTEM, 0, room, text));
+    }
+
+    void publishPresence(String room, String username, boolean joined) {
+        publishAll(encode(joined ? JOINED : LEFT, 0, room, username));
+    }
+
+    /**
+     * Sends a whisper to the node the target is logged in on; the sender hears
+     * whether it arrived through {@link ChatServer#whisperResult}.
+     *
+     * @return false if the target is not known on any other node
+     */
+    boolean forwardWhisper(String target, String sender, String body) {
+        Integer node = remoteUsers.get(target);
+        if (node == null) {
+            return false;
+        }
+        publish(node, encode(WHISPER, 0, target, sender, body));
+        return true;
+    }
+
+    boolean isRemoteUser(String username) {
+        return remoteUsers.containsKey(username);
+    }
+
+    /**
+     * Claims a username cluster-wide. Completes at once when this node owns the
+     * name, otherwise when the owner answers; never blocks the caller.
+     */
+    CompletableFuture<Boolean> claim(String username) {
+        int owner = ownerOf(username);
+        if (owner == nodeId) {
+            return claims.putIfAbsent(username, nodeId) == null ? GRANTED : REFUSED;
+        }
+        long id = claimIds.incrementAndGet();
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        pendingClaims.put(id, result);
+        if (!publish(owner, encode(CLAIM, id, username))) {
+            pendingClaims.remove(id);
+            return REFUSED;
+        }
+        return result.orTimeout(CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).handle((granted, error) -> {
+            pendingClaims.remove(id);
+            if (error == null) {
+                return granted;
+            }
+            log.warn("Username claim timed out", "user", username, "owner", owner);
+            // The owner may still grant it later; make sure the name does not stay taken
+            publish(owner, encode(RELEASE, 0, username));
+            return false;
+        });
+    }
+
+    void release(String username) {
+        int owner = ownerOf(username);
+        if (owner == nodeId) {
+            claims.remove(username, nodeId);
+        } else {
+            publish(owner, encode(RELEASE, 0, username));
+        }
+    }
+
+    private void publishAll(byte[] event) {
+        for (int node = 0; node < nodeCount; node++) {
+            if (node != nodeId) {
+                outboxes[node].offer(event);
+            }
+        }
+        LockSupport.unpark(sender);
+    }
+
+    private boolean publish(int node, byte[] event) {
+        if (!running) {
+            return false;
+        }
+        outboxes[node].offer(event);
+        LockSupport.unpark(sender);
+        return true;
+    }
+
+    private static byte[] encode(byte type, long number, String... strings) {
+        byte[][] encoded = new byte[strings.length][];
+        int size = 1 + BinaryCodec.varintSize(number);
+        for (int i = 0; i < strings.length; i++) {
+            encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+            size += BinaryCodec.varintSize(encoded[i].length) + encoded[i].length;
+        }
+        ByteBuffer event = ByteBuffer.allocate(size);
+        event.put(type);
+        BinaryCodec.writeVarint(event, number);
+        for (byte[] string : encoded) {
+            BinaryCodec.writeVarint(event, string.length);
+            event.put(string);
+        }
+        return event.array();
+    }
+
+    private void sendLoop() {
+        List<byte[]> batch = new ArrayList<>();
+        while (running) {
+            boolean sent = false;
+            for (int node = 0; node < nodeCount; node++) {
+                Queue<byte[]> outbox = outboxes[node];
+                int size = 0;
+                byte[] event;
+                while (size < MAX_BATCH_BYTES && (event = outbox.poll()) != null) {
+                    batch.add(event);
+                    size += event.length;
+                }
+                if (size > 0) {
+                    send(node, batch, size);
+                    batch.clear();
+                    sent = true;
+                }
+            }
+            if (!sent) {
+                // publish() unparks us; a permit left over from a racing publish makes this return at once
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    private void send(int node, List<byte[]> events, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] event : events) {
+            buffer.put(event);
+        }
+        buffer.flip();
+        if (transport.send(node, buffer)) {
+            server.getMetrics().clusterBatchSent(events.size(), size);
+        } else {
+            server.getMetrics().clusterEventsDropped(events.size());
+        }
+    }
+
+    // --- Incoming, on the transport's threads ---
+
+    @Override
+    public void onBatch(int fromNode, ByteBuffer batch) {
+        int events = 0;
+        try {
+            while (batch.hasRemaining()) {
+                handle(fromNode, batch);
+                events++;
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Malformed cluster batch", "node", fromNode, "error", e.getMessage());
+        }
+        server.getMetrics().clusterEventsReceived(events);
+    }
+
+    private void handle(int from, ByteBuffer in) throws IOException {
+        byte type = in.get();
+        long number = BinaryCodec.readVarint(in);
+        if (number < 0) {
+            throw new IOException("Truncated cluster event");
+        }
+        switch (type) {
+            case CHAT -> server.deliverRemoteChat(BinaryCodec.readString(in), BinaryCodec.readString(in), BinaryCodec.readString(in));
+            case SYSTEM -> server.deliverRemoteSystem(BinaryCodec.readString(in), BinaryCodec.readString(in));
+            case JOINED -> {
+                String room = BinaryCodec.readString(in);
+                String username = BinaryCodec.readString(in);
+                remoteUsers.put(username, from);
+                server.remotePresence(room, username, from, true);
+            }
+            case LEFT -> {
+                String room = BinaryCodec.readString(in);
+                String username = BinaryCodec.readString(in);
+                remoteUsers.remove(username, from);
+                server.remotePresence(room, username, from, false);
+            }
+            case WHISPER -> {
+                String target = BinaryCodec.readString(in);
+                String sender = BinaryCodec.readString(in);
+                boolean delivered = server.sendPrivateMessage(target, sender, BinaryCodec.readString(in));
+                publish(from, encode(WHISPER_RESULT, delivered ? 1 : 0, sender, target));
+            }
+            case WHISPER_RESULT -> server.whisperResult(BinaryCodec.readString(in), BinaryCodec.readString(in), number == 1);
+            case CLAIM -> {
+                String username = BinaryCodec.readString(in);
+                Integer holder = claims.putIfAbsent(username, from);
+                if (number != 0) {
+                    publish(from, encode(CLAIM_RESULT, number << 1 | (holder == null ? 1 : 0)));
+                }
+            }
+            case CLAIM_RESULT -> {
+                CompletableFuture<Boolean> claim = pendingClaims.get(number >>> 1);
+                if (claim != null) {
+                    claim.complete((number & 1) == 1);
+                }
+            }
+            case RELEASE -> claims.remove(BinaryCodec.readString(in), from);
+            default -> throw new IOException("Unknown cluster event " + type);
+        }
+    }
+
+    /** Tells a peer that just became reachable who is logged in here and which of its names we hold. */
+    @Override
+    public void onPeerUp(int node) {
+        log.info("Cluster node up", "node", node);
+        for (ChatSession session : server.sessions()) {
+            if (session.isConnected()) {
+                announceTo(node, session);
+            }
+        }
+        // Users whose connection dropped keep their name and room until the grace period ends
+        for (ChatSession session : server.heldSessions()) {
+            announceTo(node, session);
+        }
+        LockSupport.unpark(sender);
+    }
+
+    private void announceTo(int node, ChatSession session) {
+        String username = session.getUsername();
+        Room room = session.getRoom();
+        if (username == null || room == null) {
+            return;
+        }
+        outboxes[node].offer(encode(JOINED, 0, room.getName(), username));
+        if (ownerOf(username) == node) {
+            // The owner may have restarted and lost its claims
+            outboxes[node].offer(encode(CLAIM, 0, username));
+        }
+    }
+
+    @Override
+    public void onPeerDown(int node) {
+        log.warn("Cluster node down", "node", node);
+        claims.values().removeIf(holder -> holder == node);
+        remoteUsers.values().removeIf(holder -> holder == node);
+        server.dropRemoteMembers(node);
+    }
+}
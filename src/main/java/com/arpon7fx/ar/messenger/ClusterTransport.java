@@ -0,0 +1,43 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Moves opaque batches between the nodes of a cluster. Nodes are numbered
+ * {@code 0..nodeCount()-1}. Batches from one node to another arrive in the
+ * order they were sent; there is no ordering across different senders.
+ * {@link ClusterNode} decides what goes into a batch.
+ */
+interface ClusterTransport {
+
+    /** Callbacks from the transport; called on the transport's own threads. */
+    interface Receiver {
+        /**
+         * A batch from another node. Calls for the same sender never overlap;
+         * the buffer is only valid during the call.
+         */
+        void onBatch(int fromNode, ByteBuffer batch);
+
+        /** This node can now send to the peer, after startup or after the peer came back. */
+        void onPeerUp(int node);
+
+        /** The peer went away; everything it announced should be forgotten. */
+        void onPeerDown(int node);
+    }
+
+    int nodeId();
+
+    int nodeCount();
+
+    void start(Receiver receiver) throws IOException;
+
+    /**
+     * Queues a batch for the peer without waiting for the network.
+     *
+     * @return false if the peer is currently unreachable and the batch was dropped
+     */
+    boolean send(int node, ByteBuffer batch);
+
+    void close();
+}
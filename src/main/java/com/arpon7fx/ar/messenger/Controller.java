@@ -1,28 +1,32 @@
 package com.arpon7fx.ar.messenger;
 
 import java.net.URL;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.ResourceBundle;
 
 import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
-import javafx.geometry.Insets;
-import javafx.geometry.Pos;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.IndexedCell;
 import javafx.scene.control.Label;
-import javafx.scene.control.ScrollPane;
+import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
-import javafx.scene.layout.HBox;
-import javafx.scene.layout.VBox;
+import javafx.scene.control.skin.VirtualFlow;
 import javafx.scene.paint.Color;
-import javafx.scene.text.Font;
-import javafx.scene.text.FontWeight;
 
 public class Controller implements Initializable, ChatClient.MessageListener {
     
+    // Messages kept in the list view; older ones go to the archive until scrolled back to
+    private static final int MESSAGE_WINDOW = 500;
+    // Past this the window is trimmed even while the user is reading older messages
+    private static final int MAX_MESSAGE_WINDOW = MESSAGE_WINDOW * 4;
+    private static final int LOAD_OLDER_PAGE = 100;
+    
     @FXML
     private Label statusLabel;
     
@@ -42,10 +46,7 @@ public class Controller implements Initializable, ChatClient.MessageListener {
     private Button disconnectButton;
     
     @FXML
-    private ScrollPane messagesScrollPane;
-    
-    @FXML
-    private VBox messagesVBox;
+    private ListView<MessageItem> messagesListView;
     
     @FXML
     private TextField messageTextField;
@@ -56,17 +57,22 @@ public class Controller implements Initializable, ChatClient.MessageListener {
     private ChatClient chatClient;
     private ChatServer chatServer;
     private boolean isHost = false;
-    private Thread serverThread;
+    private final ObservableList<MessageItem> messages = FXCollections.observableArrayList();
+    private final MessageArchive archive = new MessageArchive();
+    private boolean loadingOlder = false;
+    // Network callbacks go through here; list items are added once per pulse
+    private final FxUpdateQueue uiUpdates = new FxUpdateQueue(this::flushPendingMessages);
+    private final List<MessageItem> pendingMessages = new ArrayList<>();
     
     @Override
     public void initialize(URL location, ResourceBundle resources) {
         // Initialize UI state
         updateConnectionState(false);
         
-        // Auto-scroll to bottom when new messages are added
-        messagesVBox.heightProperty().addListener((observable, oldValue, newValue) -> {
-            messagesScrollPane.setVvalue(1.0);
-        });
+        // Only the visible rows get nodes; cells are reused as the list scrolls
+        messagesListView.setItems(messages);
+        messagesListView.setCellFactory(list -> new MessageCell(this::loadOlderMessages));
+        messagesListView.setFocusTraversable(false);
         
         // Enable send on Enter key
         messageTextField.setOnAction(e -> onSendMessageClick());
@@ -89,20 +95,39 @@ public class Controller implements Initializable, ChatClient.MessageListener {
             server = "localhost";
         }
         
-        // Test connection first
-        if (!ChatClient.testConnection(server, 12345)) {
-            showAlert("Connection Error", "Cannot reach server at " + server + ":12345");
-            return;
-        }
-        
-        chatClient = new ChatClient(username);
+        chatClient = new ChatClient(username, ChatClient.Protocol.BINARY);
         chatClient.setMessageListener(this);
-        
-        if (chatClient.connect(server, 12345)) {
-            addSystemMessage("Connected to server as " + username);
-        } else {
-            showAlert("Connection Error", "Failed to connect to server at " + server);
-        }
+        setConnecting();
+        connect(chatClient, server, ServerConfig.DEFAULT_PORT, "Connected to server as " + username);
+    }
+    
+    /**
+     * Connects without blocking the FX thread; the result arrives once the
+     * server has accepted (or refused) the login.
+     */
+    private void connect(ChatClient client, String server, int port, String connectedMessage) {
+        client.connectAsync(server, port).whenComplete((ignored, error) -> Platform.runLater(() -> {
+            if (client != chatClient) {
+                // Disconnected or replaced while connecting
+                return;
+            }
+            if (error == null) {
+                addSystemMessage(connectedMessage);
+            } else {
+                chatClient = null;
+                updateConnectionState(isHost);
+                showAlert("Connection Error", error.getMessage());
+            }
+        }));
+    }
+    
+    private void setConnecting() {
+        connectButton.setDisable(true);
+        hostButton.setDisable(true);
+        usernameField.setDisable(true);
+        serverField.setDisable(true);
+        statusLabel.setText("Connecting...");
+        statusLabel.setTextFill(Color.web("#f39c12"));
     }
     
     @FXML
@@ -114,55 +139,66 @@ public class Controller implements Initializable, ChatClient.MessageListener {
             return;
         }
         
-        // Start server in background thread
-        serverThread = new Thread(() -> {
-            chatServer = new ChatServer();
-            Platform.runLater(() -> {
-                addSystemMessage("Server started on port 12345");
-                statusLabel.setText("Hosting");
-                statusLabel.setTextFill(Color.web("#f39c12"));
-                isHost = true;
-                updateConnectionState(true);
-                
-                // Auto-connect to own server after a short delay
-                Platform.runLater(() -> {
-                    try {
-                        Thread.sleep(1000); // Wait for server to fully start
-                        chatClient = new ChatClient(username);
-                        chatClient.setMessageListener(this);
-                        if (chatClient.connect("localhost", 12345)) {
-                            addSystemMessage("Connected to your own server as " + username);
-                        }
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                });
-            });
-            chatServer.start();
-        }, "ServerThread");
-        
-        serverThread.setDaemon(true);
-        serverThread.start();
+        chatServer = new ChatServer();
+        isHost = true;
+        setConnecting();
+        statusLabel.setText("Starting server...");
+        ChatServer server = chatServer;
+        // Connects as soon as the server socket is bound, without holding up the FX thread
+        server.startAsync().whenComplete((port, error) -> Platform.runLater(() -> {
+            if (server != chatServer) {
+                // Disconnected while starting
+                return;
+            }
+            if (error != null) {
+                chatServer = null;
+                isHost = false;
+                updateConnectionState(false);
+                showAlert("Server Error", "Could not start the server: " + error.getMessage());
+                return;
+            }
+            addSystemMessage("Server started on port " + port);
+            statusLabel.setText("Hosting");
+            statusLabel.setTextFill(Color.web("#f39c12"));
+            updateConnectionState(true);
+            
+            chatClient = new ChatClient(username, ChatClient.Protocol.BINARY);
+            chatClient.setMessageListener(this);
+            connect(chatClient, "localhost", port, "Connected to your own server as " + username);
+        }));
     }
     
     @FXML
     protected void onDisconnectClick() {
-        if (chatClient != null) {
-            chatClient.disconnect();
-            chatClient = null;
-        }
-        if (chatServer != null && isHost) {
-            chatServer.stop();
+        ChatClient client = chatClient;
+        ChatServer server = isHost ? chatServer : null;
+        chatClient = null;
+        if (server != null) {
             chatServer = null;
             isHost = false;
         }
+        if (client != null || server != null) {
+            // Both wait on the network (the client's last writes, queued messages reaching
+            // the clients); not on the FX thread. The client goes first so its /quit gets out
+            Thread disconnector = new Thread(() -> {
+                if (client != null) {
+                    client.disconnect();
+                }
+                if (server != null) {
+                    server.stop();
+                }
+            }, "Disconnect");
+            disconnector.setDaemon(true);
+            disconnector.start();
+        }
         addSystemMessage("Disconnected from chat");
     }
     
     @FXML
     protected void onSendMessageClick() {
         String message = messageTextField.getText().trim();
-        if (!message.isEmpty() && chatClient != null && chatClient.isConnected()) {
+        // While reconnecting the client queues messages for the new connection
+        if (!message.isEmpty() && chatClient != null && (chatClient.isConnected() || chatClient.isReconnecting())) {
             // Don't add message to our own chat here - let the server echo it back
             // This ensures proper message ordering
             if (chatClient.sendMessage(message)) {
@@ -172,42 +208,60 @@ public class Controller implements Initializable, ChatClient.MessageListener {
     }
     
     @Override
-    public void onMessageReceived(String message) {
-        Platform.runLater(() -> {
-            if (message.startsWith("SYSTEM:")) {
-                addSystemMessage(message.substring(7));
-            } else {
-                String[] parts = message.split(":", 2);
-                if (parts.length == 2) {
-                    String sender = parts[0];
-                    String content = parts[1];
-                    boolean isCurrentUser = chatClient != null && sender.equals(chatClient.getUsername());
-                    addMessage(sender, content, isCurrentUser);
+    public void onChatMessage(ChatMessage message) {
+        // Already decoded on the client's thread; only rendering is left for the FX thread
+        switch (message.kind()) {
+            case CHAT, WHISPER -> {
+                String sender = message.kind() == ChatMessage.Kind.WHISPER ? message.sender() + " (whisper)" : message.sender();
+                boolean isCurrentUser = chatClient != null && message.sender().equals(chatClient.getUsername());
+                uiUpdates.post(() -> addMessage(sender, message.body(), isCurrentUser));
+            }
+            case SYSTEM -> uiUpdates.post(() -> addSystemMessage(message.body()));
+            case ERROR -> onError(message.body());
+            case USERS -> {
+                if (!message.users().isEmpty()) {
+                    String text = "Online users: " + String.join(", ", message.users());
+                    uiUpdates.post(() -> addSystemMessage(text));
                 }
             }
-        });
+            // The server's "joined"/"left" notices already say this
+            case USER_JOINED, USER_LEFT -> {
+            }
+        }
+    }
+    
+    @Override
+    public void onMessageReceived(String message) {
+        onChatMessage(ChatMessage.parseLine(message, System.currentTimeMillis()));
     }
     
     @Override
     public void onConnectionStatusChanged(boolean connected) {
-        Platform.runLater(() -> updateConnectionState(connected));
+        uiUpdates.post(() -> updateConnectionState(connected));
     }
     
     @Override
-    public void onError(String error) {
-        Platform.runLater(() -> {
-            addSystemMessage("Error: " + error);
-            showAlert("Connection Error", error);
+    public void onReconnecting(int attempt, long delayMillis) {
+        String text = String.format("Connection lost, reconnecting in %.1f s (attempt %d)", delayMillis / 1000.0, attempt);
+        uiUpdates.post(() -> {
+            addSystemMessage(text);
+            if (!isHost) {
+                statusLabel.setText("Reconnecting...");
+                statusLabel.setTextFill(Color.web("#f39c12"));
+            }
         });
     }
     
+    @Override
+    public void onError(String error) {
+        uiUpdates.post(() -> addSystemMessage("Error: " + error));
+        // showAndWait() is not allowed while the update queue drains during a pulse
+        Platform.runLater(() -> showAlert("Connection Error", error));
+    }
+    
     @Override
     public void onUserListUpdated(String[] users) {
-        Platform.runLater(() -> {
-            if (users.length > 0) {
-                addSystemMessage("Online users: " + String.join(", ", users));
-            }
-        });
+        onChatMessage(ChatMessage.userList(0, List.of(users), System.currentTimeMillis()));
     }
     
     private void updateConnectionState(boolean connected) {
@@ -230,58 +284,71 @@ public class Controller implements Initializable, ChatClient.MessageListener {
     }
     
     private void addMessage(String sender, String message, boolean isCurrentUser) {
-        HBox messageContainer = new HBox();
-        messageContainer.setSpacing(10);
-        messageContainer.setPadding(new Insets(5, 10, 5, 10));
-        
-        VBox messageBox = new VBox();
-        messageBox.setSpacing(2);
-        messageBox.setMaxWidth(500);
-        
-        // Sender label
-        Label senderLabel = new Label(sender);
-        senderLabel.setFont(Font.font("System", FontWeight.BOLD, 12));
-        senderLabel.setTextFill(isCurrentUser ? Color.web("#2c3e50") : Color.web("#27ae60"));
-        
-        // Message content
-        Label messageLabel = new Label(message);
-        messageLabel.setWrapText(true);
-        messageLabel.setFont(Font.font("System", 14));
-        messageLabel.setStyle(isCurrentUser ? 
-            "-fx-background-color: #3498db; -fx-text-fill: white; -fx-padding: 8; -fx-background-radius: 15;" :
-            "-fx-background-color: #ecf0f1; -fx-text-fill: #2c3e50; -fx-padding: 8; -fx-background-radius: 15;");
-        
-        // Timestamp
-        Label timeLabel = new Label(LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm")));
-        timeLabel.setFont(Font.font("System", 10));
-        timeLabel.setTextFill(Color.GRAY);
-        
-        messageBox.getChildren().addAll(senderLabel, messageLabel, timeLabel);
-        
-        if (isCurrentUser) {
-            messageContainer.setAlignment(Pos.CENTER_RIGHT);
-            messageBox.setAlignment(Pos.CENTER_RIGHT);
-        } else {
-            messageContainer.setAlignment(Pos.CENTER_LEFT);
-            messageBox.setAlignment(Pos.CENTER_LEFT);
-        }
-        
-        messageContainer.getChildren().add(messageBox);
-        messagesVBox.getChildren().add(messageContainer);
+        appendItem(MessageItem.chat(sender, message, isCurrentUser));
     }
     
     private void addSystemMessage(String message) {
-        HBox systemContainer = new HBox();
-        systemContainer.setAlignment(Pos.CENTER);
-        systemContainer.setPadding(new Insets(10));
-        
-        Label systemLabel = new Label(message);
-        systemLabel.setFont(Font.font("System", FontWeight.NORMAL, 12));
-        systemLabel.setTextFill(Color.GRAY);
-        systemLabel.setStyle("-fx-background-color: #f8f9fa; -fx-padding: 8; -fx-background-radius: 10;");
-        
-        systemContainer.getChildren().add(systemLabel);
-        messagesVBox.getChildren().add(systemContainer);
+        appendItem(MessageItem.system(message));
+    }
+    
+    private void appendItem(MessageItem item) {
+        pendingMessages.add(item);
+    }
+    
+    // Runs once per pulse after the queued updates, so a burst is one list change and one layout
+    private void flushPendingMessages() {
+        if (pendingMessages.isEmpty()) {
+            return;
+        }
+        // Follow new messages only if the user hasn't scrolled up to read older ones
+        boolean following = isScrolledToBottom();
+        messages.addAll(pendingMessages);
+        pendingMessages.clear();
+        int firstMessage = archive.isEmpty() ? 0 : 1;
+        int count = messages.size() - firstMessage;
+        if (count > MAX_MESSAGE_WINDOW || (following && count > MESSAGE_WINDOW)) {
+            List<MessageItem> oldest = messages.subList(firstMessage, messages.size() - MESSAGE_WINDOW);
+            archive.push(oldest);
+            oldest.clear();
+            if (firstMessage == 0 && !archive.isEmpty()) {
+                messages.add(0, MessageItem.LOAD_OLDER);
+            }
+        }
+        if (following) {
+            messagesListView.scrollTo(messages.size() - 1);
+        }
+    }
+    
+    // Called by the placeholder cell at the top of the list once it comes into view
+    private void loadOlderMessages() {
+        if (loadingOlder) {
+            return;
+        }
+        loadingOlder = true;
+        // Cells are being laid out; change the list on the next pulse
+        uiUpdates.post(() -> {
+            loadingOlder = false;
+            if (messages.isEmpty() || messages.get(0) != MessageItem.LOAD_OLDER) {
+                return;
+            }
+            List<MessageItem> older = archive.pop(LOAD_OLDER_PAGE);
+            if (archive.isEmpty()) {
+                messages.set(0, older.isEmpty() ? MessageItem.system("Older messages are no longer available") : older.get(0));
+                messages.addAll(1, older.subList(Math.min(1, older.size()), older.size()));
+            } else {
+                messages.addAll(1, older);
+            }
+            // Keep the message that was at the top where it was
+            messagesListView.scrollTo(older.size());
+        });
+    }
+    
+    private boolean isScrolledToBottom() {
+        if (messages.isEmpty() || !(messagesListView.lookup(".virtual-flow") instanceof VirtualFlow<?> flow)) {
+            return true;
+        }
+        IndexedCell<?> last = flow.getLastVisibleCell();
+        return last == null || last.getIndex() >= messages.size() - 1;
     }
     
     private void showAlert(String title, String message) {
@@ -299,5 +366,7 @@ public class Controller implements Initializable, ChatClient.MessageListener {
         if (chatServer != null && isHost) {
             chatServer.stop();
         }
+        uiUpdates.close();
+        archive.close();
     }
 }
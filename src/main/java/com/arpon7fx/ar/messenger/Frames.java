@@ -0,0 +1,54 @@
+package com.arpon7fx.ar.messenger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding helpers for text protocol frames (one UTF-8 line each).
+ * Frames meant for many recipients are encoded once into a read-only direct
+ * buffer; every recipient queues its own {@link ByteBuffer#duplicate()} so
+ * positions stay independent while the bytes are shared.
+ */
+final class Frames {
+
+    private Frames() {
+    }
+
+    /** Heap frame for a single recipient. */
+    static ByteBuffer line(String message) {
+        return ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Read-only direct frame meant to be shared across recipients. */
+    static ByteBuffer sharedLine(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocateDirect(bytes.length + 1);
+        frame.put(bytes).put((byte) '\n').flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    /**
+     * Size of {@code text} in UTF-8, counted without encoding it. An unpaired
+     * surrogate counts as the single '?' the encoder would write for it.
+     */
+    static int utf8Length(String text) {
+        int length = text.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                // Four bytes for the pair
+                bytes += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,75 @@
+package com.arpon7fx.ar.messenger;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+/**
+ * Hands UI updates from network threads to the FX thread in batches. Instead
+ * of one {@code Platform.runLater} per message, updates wait in a lock-free
+ * queue and are applied together once per pulse, followed by the
+ * {@code afterBatch} callback, so a burst costs one layout pass per frame
+ * rather than one per message.
+ *
+ * <p>The timer only runs while there is work: the first update posted to an
+ * empty queue starts it and it stops once the queue is drained, since a
+ * running timer keeps JavaFX pulsing even in an idle window. Updates must not
+ * open nested event loops such as {@code Alert.showAndWait()}, which JavaFX
+ * forbids during animation processing.
+ */
+final class FxUpdateQueue extends AnimationTimer {
+    // Bounds the work done in one frame; the rest waits for the next pulse
+    private static final int MAX_UPDATES_PER_PULSE = 2000;
+
+    private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    private final Runnable afterBatch;
+    // True while the timer runs or a start is on its way to the FX thread
+    private final AtomicBoolean armed = new AtomicBoolean();
+    private volatile boolean closed;
+
+    FxUpdateQueue(Runnable afterBatch) {
+        this.afterBatch = afterBatch;
+    }
+
+    /** Safe to call from any thread. */
+    void post(Runnable update) {
+        pending.offer(update);
+        if (!closed && armed.compareAndSet(false, true)) {
+            Platform.runLater(this::start);
+        }
+    }
+
+    /** Stops for good and drops what is still queued. Called on the FX thread. */
+    void close() {
+        closed = true;
+        stop();
+        pending.clear();
+    }
+
+    @Override
+    public void handle(long now) {
+        if (closed) {
+            stop();
+            return;
+        }
+        Runnable update;
+        for (int count = 0; count < MAX_UPDATES_PER_PULSE && (update = pending.poll()) != null; count++) {
+            try {
+                update.run();
+            } catch (RuntimeException e) {
+                System.err.println("UI update failed: " + e.getMessage());
+            }
+        }
+        afterBatch.run();
+        if (pending.isEmpty()) {
+            stop();
+            armed.set(false);
+            // An update posted after the check above saw the timer still armed and left the start to us
+            if (!pending.isEmpty() && armed.compareAndSet(false, true)) {
+                start();
+            }
+        }
+    }
+}
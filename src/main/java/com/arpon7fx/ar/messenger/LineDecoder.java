@@ -0,0 +1,57 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Incremental newline framing for the text protocol.
+ * Bytes are buffered until a '\n' arrives, then the line is decoded as UTF-8
+ * (a trailing '\r' is dropped) and handed to the caller.
+ */
+final class LineDecoder {
+    static final int DEFAULT_MAX_LINE_LENGTH = 64 * 1024;
+
+    private final int maxLineLength;
+    private byte[] pending = new byte[128];
+    private int length;
+
+    LineDecoder() {
+        this(DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    LineDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Consumes all remaining bytes of {@code in}.
+     *
+     * @return false if the handler asked to stop; unread bytes are then discarded
+     * @throws IOException if a single line exceeds the maximum length
+     */
+    boolean decode(ByteBuffer in, Predicate<String> lineHandler) throws IOException {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n') {
+                int end = length > 0 && pending[length - 1] == '\r' ? length - 1 : length;
+                String line = new String(pending, 0, end, StandardCharsets.UTF_8);
+                length = 0;
+                if (!lineHandler.test(line)) {
+                    return false;
+                }
+            } else {
+                if (length == maxLineLength) {
+                    throw new IOException("Line exceeds " + maxLineLength + " bytes");
+                }
+                if (length == pending.length) {
+                    pending = Arrays.copyOf(pending, Math.min(pending.length * 2, maxLineLength));
+                }
+                pending[length++] = b;
+            }
+        }
+        return true;
+    }
+}
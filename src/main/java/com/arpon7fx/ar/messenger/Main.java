@@ -77,6 +77,7 @@ public class Main extends Application {
                 • Real-time messaging
                 • Private messages (/whisper <user> <message>)
                 • User list (/users)
+                • Rooms (/rooms, /join <room>, /leave)
                 • Server ping (/ping)
 
                 Enjoy chatting!"""
@@ -0,0 +1,140 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Spill file for messages that scrolled out of the chat view's window.
+ * Messages leave the window oldest first and come back newest first, so the
+ * archive is a stack: records are appended to a temporary file, and
+ * {@link #pop(int)} reads them back from the end and truncates it. Each record
+ * carries its length at both ends so it can be found walking backwards.
+ *
+ * <p>Record layout: {@code len:i32 kind:u8 time:i32 sender:utf text:utf len:i32},
+ * strings as an {@code i32} byte length and UTF-8.
+ */
+final class MessageArchive {
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+
+    private RandomAccessFile file;
+    private Path path;
+    private int size;
+    private boolean failed;
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Appends messages, oldest first. They become the first ones {@link #pop(int)} returns. */
+    void push(List<MessageItem> items) {
+        if (items.isEmpty() || failed) {
+            return;
+        }
+        try {
+            if (file == null) {
+                path = Files.createTempFile("messenger-archive", ".bin");
+                path.toFile().deleteOnExit();
+                file = new RandomAccessFile(path.toFile(), "rw");
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(items.size() * 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (MessageItem item : items) {
+                byte[] sender = item.sender().getBytes(StandardCharsets.UTF_8);
+                byte[] text = item.text().getBytes(StandardCharsets.UTF_8);
+                int length = 1 + 4 + 4 + sender.length + 4 + text.length;
+                out.writeInt(length);
+                out.writeByte(item.kind().ordinal());
+                out.writeInt(item.time().toSecondOfDay());
+                out.writeInt(sender.length);
+                out.write(sender);
+                out.writeInt(text.length);
+                out.write(text);
+                out.writeInt(length);
+            }
+            file.seek(file.length());
+            file.write(bytes.toByteArray());
+            size += items.size();
+        } catch (IOException e) {
+            disable("Could not archive messages: " + e.getMessage());
+        }
+    }
+
+    /** Removes and returns up to {@code count} of the newest archived messages, oldest first. */
+    List<MessageItem> pop(int count) {
+        if (size == 0 || failed) {
+            return List.of();
+        }
+        List<MessageItem> items = new ArrayList<>(Math.min(count, size));
+        try {
+            long end = file.length();
+            byte[] lengthBytes = new byte[4];
+            while (items.size() < count && end > 0) {
+                file.seek(end - 4);
+                file.readFully(lengthBytes);
+                int length = ByteBuffer.wrap(lengthBytes).getInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE || length + 8L > end) {
+                    throw new IOException("corrupt record before offset " + end);
+                }
+                byte[] record = new byte[length];
+                file.seek(end - 4 - length);
+                file.readFully(record);
+                items.add(decode(ByteBuffer.wrap(record)));
+                end -= length + 8L;
+            }
+            file.setLength(end);
+            size -= items.size();
+        } catch (IOException | RuntimeException e) {
+            disable("Could not read archived messages: " + e.getMessage());
+        }
+        Collections.reverse(items);
+        return items;
+    }
+
+    void close() {
+        if (file != null) {
+            try {
+                file.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.err.println("Error closing message archive: " + e.getMessage());
+            }
+            file = null;
+        }
+        size = 0;
+    }
+
+    private static MessageItem decode(ByteBuffer record) {
+        MessageItem.Kind kind = MessageItem.Kind.values()[record.get()];
+        LocalTime time = LocalTime.ofSecondOfDay(record.getInt());
+        String sender = readString(record);
+        String text = readString(record);
+        return new MessageItem(kind, sender, text, time);
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Older messages are a convenience; losing them is better than breaking the chat view
+    private void disable(String reason) {
+        System.err.println(reason);
+        failed = true;
+        close();
+    }
+}
@@ -0,0 +1,100 @@
+package com.arpon7fx.ar.messenger;
+
+import java.time.format.DateTimeFormatter;
+
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.FontWeight;
+
+/**
+ * Draws a {@link MessageItem}. The list view creates only enough cells to
+ * fill the viewport and rebinds them as the user scrolls, so the node tree
+ * stays the same size however long the conversation gets.
+ */
+final class MessageCell extends ListCell<MessageItem> {
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm");
+    private static final String CELL_STYLE = "-fx-background-color: white; -fx-padding: 0;";
+    private static final String OWN_BUBBLE_STYLE =
+        "-fx-background-color: #3498db; -fx-text-fill: white; -fx-padding: 8; -fx-background-radius: 15;";
+    private static final String OTHER_BUBBLE_STYLE =
+        "-fx-background-color: #ecf0f1; -fx-text-fill: #2c3e50; -fx-padding: 8; -fx-background-radius: 15;";
+    private static final String SYSTEM_STYLE = "-fx-background-color: #f8f9fa; -fx-padding: 8; -fx-background-radius: 10;";
+    private static final Color OWN_SENDER_COLOR = Color.web("#2c3e50");
+    private static final Color OTHER_SENDER_COLOR = Color.web("#27ae60");
+
+    private final Runnable onLoadOlder;
+
+    private final HBox messageContainer = new HBox(10);
+    private final VBox messageBox = new VBox(2);
+    private final Label senderLabel = new Label();
+    private final Label messageLabel = new Label();
+    private final Label timeLabel = new Label();
+
+    private final HBox systemContainer = new HBox();
+    private final Label systemLabel = new Label();
+
+    MessageCell(Runnable onLoadOlder) {
+        this.onLoadOlder = onLoadOlder;
+
+        setStyle(CELL_STYLE);
+        setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+        // Size to the list's width rather than the content's, so long messages wrap
+        setPrefWidth(0);
+
+        messageContainer.setPadding(new Insets(5, 10, 5, 10));
+        messageBox.setMaxWidth(500);
+        senderLabel.setFont(Font.font("System", FontWeight.BOLD, 12));
+        messageLabel.setWrapText(true);
+        messageLabel.setFont(Font.font("System", 14));
+        timeLabel.setFont(Font.font("System", 10));
+        timeLabel.setTextFill(Color.GRAY);
+        messageBox.getChildren().addAll(senderLabel, messageLabel, timeLabel);
+        messageContainer.getChildren().add(messageBox);
+
+        systemContainer.setAlignment(Pos.CENTER);
+        systemContainer.setPadding(new Insets(10));
+        systemLabel.setWrapText(true);
+        systemLabel.setFont(Font.font("System", FontWeight.NORMAL, 12));
+        systemLabel.setTextFill(Color.GRAY);
+        systemLabel.setStyle(SYSTEM_STYLE);
+        systemContainer.getChildren().add(systemLabel);
+    }
+
+    @Override
+    protected void updateItem(MessageItem item, boolean empty) {
+        super.updateItem(item, empty);
+        if (empty || item == null) {
+            setGraphic(null);
+            return;
+        }
+        switch (item.kind()) {
+            case SYSTEM, LOAD_OLDER -> {
+                systemLabel.setText(item.text());
+                setGraphic(systemContainer);
+                if (item.kind() == MessageItem.Kind.LOAD_OLDER) {
+                    // The placeholder only gets a cell once the user has scrolled to the top
+                    onLoadOlder.run();
+                }
+            }
+            case CHAT, OWN_CHAT -> {
+                boolean isCurrentUser = item.kind() == MessageItem.Kind.OWN_CHAT;
+                senderLabel.setText(item.sender());
+                senderLabel.setTextFill(isCurrentUser ? OWN_SENDER_COLOR : OTHER_SENDER_COLOR);
+                messageLabel.setText(item.text());
+                messageLabel.setStyle(isCurrentUser ? OWN_BUBBLE_STYLE : OTHER_BUBBLE_STYLE);
+                timeLabel.setText(TIME_FORMAT.format(item.time()));
+                Pos alignment = isCurrentUser ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT;
+                messageContainer.setAlignment(alignment);
+                messageBox.setAlignment(alignment);
+                setGraphic(messageContainer);
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.arpon7fx.ar.messenger;
+
+import java.time.LocalTime;
+
+/**
+ * One row of the chat view. Only the data is kept per message; the nodes
+ * that draw it belong to the few {@link MessageCell}s on screen.
+ */
+record MessageItem(Kind kind, String sender, String text, LocalTime time) {
+    enum Kind {
+        SYSTEM,
+        CHAT,
+        OWN_CHAT,
+        /** Placeholder at the top of the list while older messages are archived. */
+        LOAD_OLDER
+    }
+
+    static final MessageItem LOAD_OLDER = new MessageItem(Kind.LOAD_OLDER, "", "Loading older messages...", LocalTime.MIDNIGHT);
+
+    static MessageItem chat(String sender, String text, boolean isCurrentUser) {
+        return new MessageItem(isCurrentUser ? Kind.OWN_CHAT : Kind.CHAT, sender, text, LocalTime.now());
+    }
+
+    static MessageItem system(String text) {
+        return new MessageItem(Kind.SYSTEM, "", text, LocalTime.now());
+    }
+}
@@ -0,0 +1,462 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Durable append-only log of chat messages and whispers.
+ *
+ * <p>Records live in fixed-size memory-mapped segment files named after the
+ * first sequence number they hold. Callers only assign a sequence number and
+ * enqueue; a single writer thread copies batches into the mapping and forces
+ * it to disk at most once per sync interval (group commit), so logging never
+ * adds fsync latency to the broadcast path. Each segment keeps a sparse
+ * in-memory index (one entry every {@link #INDEX_INTERVAL} records) that is
+ * rebuilt by scanning when the log is reopened.
+ *
+ * <pre>
+ * record := length:i32 seq:i64 timestamp:i64 type:u8 room sender target body
+ * string := length:varint utf8[length]
+ * </pre>
+ * A zero length marks the end of the written part of a segment.
+ */
+final class MessageLog implements AutoCloseable {
+    static final byte CHAT = 1;
+    static final byte WHISPER = 2;
+
+    static final int INDEX_INTERVAL = 64;
+    private static final int HEADER_LENGTH = 4;
+    private static final int MAX_BATCH = 1024;
+
+    /** One logged message. Whispers have an empty room and a target. */
+    record Entry(long sequence, long timestamp, byte type, String room, String sender, String target, String body) {
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long syncIntervalMillis;
+    private final ServerLog log;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<Entry> pending = new LinkedBlockingQueue<>(65536);
+    // Sequence assignment and enqueueing happen under one lock so the log stays in sequence order
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final AtomicLong dropped = new AtomicLong();
+    private long lastSequence;
+    private volatile long lastWrittenSequence;
+    private volatile boolean running;
+    private Thread writerThread;
+
+    MessageLog(Path directory, int segmentSize, int maxSegments, long syncIntervalMillis, ServerLog log) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.log = log;
+    }
+
+    /** Maps existing segments, rebuilds their indexes and starts the writer thread. */
+    void open() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+        for (Path file : files) {
+            Segment segment = Segment.open(file, segmentSize, log);
+            segments.add(segment);
+            lastSequence = Math.max(lastSequence, segment.lastSequence);
+        }
+        lastWrittenSequence = lastSequence;
+
+        running = true;
+        writerThread = new Thread(this::writeLoop, "MessageLog-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        log.info("Message history opened", "directory", directory, "lastSequence", lastSequence);
+    }
+
+    /**
+     * Assigns the next sequence number and queues the record for the writer thread.
+     * Never blocks on disk; if the writer falls far behind the record is dropped.
+     */
+    long append(byte type, String room, String sender, String target, String body) {
+        appendLock.lock();
+        try {
+            long sequence = ++lastSequence;
+            Entry entry = new Entry(sequence, System.currentTimeMillis(), type, room, sender,
+                target != null ? target : "", body);
+            if (!pending.offer(entry)) {
+                dropped.incrementAndGet();
+            }
+            return sequence;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    long lastSequence() {
+        appendLock.lock();
+        try {
+            return lastSequence;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    long droppedCount() {
+        return dropped.get();
+    }
+
+    /** Up to {@code limit} written records with a sequence above {@code afterSequence}, oldest first. */
+    List<Entry> readSince(long afterSequence, int limit, Predicate<Entry> filter) {
+        List<Entry> result = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.lastSequence <= afterSequence) {
+                continue;
+            }
+            segment.scan(afterSequence + 1, entry -> {
+                if (filter.test(entry)) {
+                    result.add(entry);
+                }
+                return result.size() < limit;
+            });
+            if (result.size() >= limit) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The last {@code count} written records matching the filter, oldest first.
+     * Walks the segments backward one index block at a time, so only about
+     * {@code count + INDEX_INTERVAL} records are decoded when most of them match.
+     */
+    List<Entry> readLast(int count, Predicate<Entry> filter) {
+        if (count <= 0) {
+            return List.of();
+        }
+        long end = lastWrittenSequence;
+        Deque<Entry> tail = new ArrayDeque<>(count);
+        Segment[] snapshot = segments.toArray(new Segment[0]);
+        for (int i = snapshot.length - 1; i >= 0 && tail.size() < count; i--) {
+            snapshot[i].scanBackward(end, count, filter, tail);
+        }
+        return new ArrayList<>(tail);
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        long lastSync = System.currentTimeMillis();
+        boolean dirty = false;
+        while (running || !pending.isEmpty()) {
+            try {
+                Entry first = pending.poll(Math.max(1, syncIntervalMillis), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, MAX_BATCH - 1);
+                    for (Entry entry : batch) {
+                        // One bad record must not cost the rest of the batch
+                        try {
+                            write(entry);
+                        } catch (IOException e) {
+                            dropped.incrementAndGet();
+                            log.error("Message history write failed", "sequence", entry.sequence(), "error", e.getMessage());
+                        }
+                    }
+                    lastWrittenSequence = batch.get(batch.size() - 1).sequence();
+                    batch.clear();
+                    dirty = true;
+                }
+                // Group commit: one force for everything written since the last one
+                long now = System.currentTimeMillis();
+                if (dirty && now - lastSync >= syncIntervalMillis) {
+                    activeSegment().force();
+                    lastSync = now;
+                    dirty = false;
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+        }
+        if (!segments.isEmpty()) {
+            activeSegment().force();
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        byte[] record = encode(entry);
+        if (record.length > segmentSize) {
+            throw new IOException("Record " + entry.sequence() + " larger than a segment");
+        }
+        Segment segment = segments.isEmpty() ? null : activeSegment();
+        if (segment == null || !segment.hasRoomFor(record.length)) {
+            segment = roll(entry.sequence());
+        }
+        segment.append(entry.sequence(), record);
+    }
+
+    private Segment roll(long baseSequence) throws IOException {
+        if (!segments.isEmpty()) {
+            activeSegment().force();
+        }
+        Path file = directory.resolve(String.format("%020d.log", baseSequence));
+        Segment segment = Segment.create(file, segmentSize, baseSequence, log);
+        segments.add(segment);
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.remove(0);
+            oldest.close();
+            Files.deleteIfExists(oldest.file);
+        }
+        return segment;
+    }
+
+    private Segment activeSegment() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private static byte[] encode(Entry entry) {
+        byte[][] strings = {
+            entry.room().getBytes(StandardCharsets.UTF_8),
+            entry.sender().getBytes(StandardCharsets.UTF_8),
+            entry.target().getBytes(StandardCharsets.UTF_8),
+            entry.body().getBytes(StandardCharsets.UTF_8)
+        };
+        int length = 8 + 8 + 1;
+        for (byte[] s : strings) {
+            length += BinaryCodec.varintSize(s.length) + s.length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + length);
+        record.putInt(length);
+        record.putLong(entry.sequence());
+        record.putLong(entry.timestamp());
+        record.put(entry.type());
+        for (byte[] s : strings) {
+            BinaryCodec.writeVarint(record, s.length);
+            record.put(s);
+        }
+        return record.array();
+    }
+
+    private static Entry decode(ByteBuffer record) throws IOException {
+        long sequence = record.getLong();
+        long timestamp = record.getLong();
+        byte type = record.get();
+        return new Entry(sequence, timestamp, type, BinaryCodec.readString(record), BinaryCodec.readString(record),
+            BinaryCodec.readString(record), BinaryCodec.readString(record));
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (writerThread != null) {
+            try {
+                writerThread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    /** One mapped segment file. Written only by the writer thread, read by any thread. */
+    private static final class Segment {
+        final Path file;
+        final long baseSequence;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final ServerLog log;
+        private long[] indexSequences = new long[16];
+        private int[] indexPositions = new int[16];
+        private volatile int indexSize;
+        private int recordCount;
+        // Published after each append; readers never look past it
+        private volatile int writePosition;
+        volatile long lastSequence;
+
+        private Segment(Path file, long baseSequence, FileChannel channel, MappedByteBuffer buffer, ServerLog log) {
+            this.file = file;
+            this.baseSequence = baseSequence;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.log = log;
+        }
+
+        static Segment create(Path file, int size, long baseSequence, ServerLog log) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(file, baseSequence, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size), log);
+            segment.lastSequence = baseSequence - 1;
+            return segment;
+        }
+
+        // Reopens a segment and rebuilds its sparse index by scanning the records
+        static Segment open(Path file, int size, ServerLog log) throws IOException {
+            long baseSequence = Long.parseLong(file.getFileName().toString().replace(".log", ""));
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            int mappedSize = (int) Math.max(size, channel.size());
+            Segment segment = new Segment(file, baseSequence, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize), log);
+            segment.lastSequence = baseSequence - 1;
+            ByteBuffer view = segment.buffer.duplicate();
+            int position = 0;
+            while (position + HEADER_LENGTH <= view.capacity()) {
+                int length = view.getInt(position);
+                if (length <= 0 || position + HEADER_LENGTH + length > view.capacity()) {
+                    break;
+                }
+                long sequence = view.getLong(position + HEADER_LENGTH);
+                segment.indexRecord(sequence, position);
+                segment.lastSequence = sequence;
+                position += HEADER_LENGTH + length;
+            }
+            segment.writePosition = position;
+            segment.clearTail();
+            return segment;
+        }
+
+        // Zeroes whatever a torn write left past the recovered end, so stale bytes behind
+        // a shorter record appended over it cannot read as a record on the next recovery
+        private void clearTail() {
+            for (int i = writePosition; i < buffer.capacity(); i++) {
+                if (buffer.get(i) != 0) {
+                    buffer.put(i, (byte) 0);
+                }
+            }
+        }
+
+        boolean hasRoomFor(int recordLength) {
+            return writePosition + recordLength + HEADER_LENGTH <= buffer.capacity();
+        }
+
+        void append(long sequence, byte[] record) {
+            int position = writePosition;
+            // Body first, length last, so a torn write reads as the end of the segment
+            buffer.put(position + HEADER_LENGTH, record, HEADER_LENGTH, record.length - HEADER_LENGTH);
+            buffer.put(position, record, 0, HEADER_LENGTH);
+            indexRecord(sequence, position);
+            lastSequence = sequence;
+            writePosition = position + record.length;
+        }
+
+        private void indexRecord(long sequence, int position) {
+            if (recordCount++ % INDEX_INTERVAL != 0) {
+                return;
+            }
+            int size = indexSize;
+            if (size == indexSequences.length) {
+                indexSequences = Arrays.copyOf(indexSequences, size * 2);
+                indexPositions = Arrays.copyOf(indexPositions, size * 2);
+            }
+            indexSequences[size] = sequence;
+            indexPositions[size] = position;
+            indexSize = size + 1;
+        }
+
+        /** Calls the visitor for written records from {@code fromSequence} on until it returns false. */
+        void scan(long fromSequence, Predicate<Entry> visitor) {
+            int end = writePosition;
+            int size = indexSize;
+            long[] sequences = indexSequences;
+            int[] positions = indexPositions;
+            // Sparse index: start at the last indexed record at or before fromSequence
+            int slot = Arrays.binarySearch(sequences, 0, size, fromSequence);
+            int position = slot >= 0 ? positions[slot] : (slot == -1 ? 0 : positions[-slot - 2]);
+
+            ByteBuffer view = buffer.duplicate();
+            while (position + HEADER_LENGTH <= end) {
+                int length = view.getInt(position);
+                if (length <= 0) {
+                    break;
+                }
+                long sequence = view.getLong(position + HEADER_LENGTH);
+                if (sequence >= fromSequence) {
+                    try {
+                        Entry entry = decode(view.slice(position + HEADER_LENGTH, length));
+                        if (!visitor.test(entry)) {
+                            return;
+                        }
+                    } catch (IOException e) {
+                        log.error("Corrupt history record", "file", file, "error", e.getMessage());
+                        return;
+                    }
+                }
+                position += HEADER_LENGTH + length;
+            }
+        }
+
+        /**
+         * Adds matching records up to {@code toSequence} to the front of {@code into},
+         * newest first, until it holds {@code count}. Each index entry starts a block
+         * of records that is read forward and then prepended in reverse.
+         */
+        void scanBackward(long toSequence, int count, Predicate<Entry> filter, Deque<Entry> into) {
+            int end = writePosition;
+            int size = indexSize;
+            int[] positions = indexPositions;
+            ByteBuffer view = buffer.duplicate();
+            List<Entry> block = new ArrayList<>(INDEX_INTERVAL);
+            for (int slot = size - 1; slot >= 0 && into.size() < count; slot--) {
+                block.clear();
+                int position = positions[slot];
+                while (position + HEADER_LENGTH <= end) {
+                    int length = view.getInt(position);
+                    if (length <= 0) {
+                        break;
+                    }
+                    long sequence = view.getLong(position + HEADER_LENGTH);
+                    if (sequence > toSequence) {
+                        break;
+                    }
+                    try {
+                        Entry entry = decode(view.slice(position + HEADER_LENGTH, length));
+                        if (filter.test(entry)) {
+                            block.add(entry);
+                        }
+                    } catch (IOException e) {
+                        log.error("Corrupt history record", "file", file, "error", e.getMessage());
+                        break;
+                    }
+                    position += HEADER_LENGTH + length;
+                }
+                for (int i = block.size() - 1; i >= 0 && into.size() < count; i--) {
+                    into.addFirst(block.get(i));
+                }
+                end = positions[slot];
+            }
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Error closing history segment", "file", file, "error", e.getMessage());
+            }
+        }
+    }
+}
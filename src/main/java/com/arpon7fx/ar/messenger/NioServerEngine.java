@@ -0,0 +1,388 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking connection handling for {@link NioServerEngine}.
+ * Reads are decoded on the owning I/O thread; writes go through the bounded
+ * outbound queue and are flushed by whichever thread sends, falling back to
+ * OP_WRITE when the socket is full.
+ */
+class NioSession extends ChatSession {
+    private final SocketChannel channel;
+    private final NioServerEngine.Worker worker;
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    // Frame whose write has started, taken out of the queue so DROP_OLDEST can never
+    // evict it half written; only touched by the thread holding the flushing flag
+    private volatile ByteBuffer inFlight;
+    private volatile boolean waitingForWritable;
+    private SelectionKey key;
+
+    NioSession(ChatServer server, SocketChannel channel, NioServerEngine.Worker worker) {
+        super(server);
+        this.channel = channel;
+        this.worker = worker;
+    }
+
+    void register(Selector selector) throws ClosedChannelException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    // Called on the I/O thread with freshly read bytes
+    void onRead(ByteBuffer data) {
+        try {
+            onBytes(data);
+        } catch (IOException e) {
+            log.warn("Protocol error", "user", displayName(), "error", e.getMessage());
+            disconnect();
+        }
+    }
+
+    // Called on the I/O thread once the socket has room again
+    void onWritable() {
+        key.interestOps(SelectionKey.OP_READ);
+        waitingForWritable = false;
+        flush();
+    }
+
+    void enableWriteInterest() {
+        if (key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    @Override
+    protected void onOutboundReady() {
+        flush();
+    }
+
+    @Override
+    protected void runOnReader(Runnable task) {
+        worker.execute(task);
+    }
+
+    private void flush() {
+        // Only one thread writes at a time; the others leave their data in the queue.
+        // The re-check after releasing the flag picks up anything queued meanwhile.
+        while (!waitingForWritable && (inFlight != null || !outbound.isEmpty()) && flushing.compareAndSet(false, true)) {
+            try {
+                if (!writePending()) {
+                    waitingForWritable = true;
+                    worker.requestWriteInterest(this);
+                }
+            } catch (IOException e) {
+                disconnect();
+                return;
+            } finally {
+                flushing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes the in-flight frame, then queued ones, until the socket is full.
+     * Caller holds the flushing flag.
+     *
+     * @return true if everything was written, false if the socket is full
+     */
+    private boolean writePending() throws IOException {
+        ByteBuffer buffer = inFlight;
+        while (buffer != null || (buffer = outbound.poll()) != null) {
+            inFlight = buffer;
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return false;
+            }
+            inFlight = null;
+            buffer = null;
+        }
+        return true;
+    }
+
+    @Override
+    public int getOutboundQueueDepth() {
+        // A partly written frame still counts as waiting
+        return super.getOutboundQueueDepth() + (inFlight != null ? 1 : 0);
+    }
+
+    @Override
+    protected void closeTransport() {
+        // Best effort: push out whatever fits in the socket buffer right now
+        if (flushing.compareAndSet(false, true)) {
+            try {
+                if (channel.isOpen()) {
+                    writePending();
+                }
+            } catch (IOException ignored) {
+                // Client already gone
+            } finally {
+                flushing.set(false);
+            }
+        }
+        outbound.clear();
+        try {
+            if (key != null) key.cancel();
+            channel.close();
+        } catch (IOException e) {
+            log.error("Error disconnecting client", "user", displayName(), "error", e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return super.isConnected() && channel.isOpen();
+    }
+}
+
+/**
+ * Selector based server engine: one acceptor plus a fixed pool of I/O threads,
+ * each multiplexing many connections, so idle clients cost a channel and a few
+ * buffers instead of a platform thread. Speaks the same line protocol as
+ * {@link ClientHandler}, so {@link ChatClient} works unchanged.
+ */
+final class NioServerEngine {
+    private final ChatServer server;
+    private final int port;
+    private final Worker[] workers;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    NioServerEngine(ChatServer server, int port, int ioThreads) throws IOException {
+        this.server = server;
+        this.port = port;
+        this.workers = new Worker[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            workers[i] = new Worker(i);
+        }
+    }
+
+    private boolean allowConnectionFrom(SocketChannel channel) {
+        try {
+            return !(channel.getRemoteAddress() instanceof InetSocketAddress remote)
+                || server.allowConnectionFrom(remote.getAddress());
+        } catch (IOException e) {
+            // Already disconnected; the session will notice on its first read
+            return true;
+        }
+    }
+
+    /** Writes a one-line notice and closes; the channel is still blocking here. */
+    private static void reject(SocketChannel channel, String message) {
+        try (channel) {
+            channel.write(StandardCharsets.UTF_8.encode(message + "\n"));
+        } catch (IOException ignored) {
+            // Client already gone
+        }
+    }
+
+    /** Binds and runs the accept loop on the calling thread until {@link #close()}. */
+    void run() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), server.getConfig().getAcceptBacklog());
+        running = true;
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        int boundPort = serverChannel.socket().getLocalPort();
+        server.getLog().info("Chat server started", "port", boundPort, "ioThreads", workers.length);
+        server.bound(boundPort);
+
+        int next = 0;
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    server.getLog().error("Error accepting client connection", "error", e.getMessage());
+                }
+                continue;
+            }
+
+            if (!allowConnectionFrom(channel)) {
+                reject(channel, ChatServer.TOO_MANY_CONNECTIONS_MESSAGE);
+                continue;
+            }
+
+            if (!server.canAcceptClient()) {
+                // Reject connection - server full
+                server.getMetrics().connectionRejected();
+                reject(channel, ChatServer.SERVER_FULL_MESSAGE);
+                continue;
+            }
+
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                server.getLog().error("Error configuring client channel", "error", e.getMessage());
+                channel.close();
+                continue;
+            }
+
+            Worker worker = workers[next];
+            next = (next + 1) % workers.length;
+            NioSession session = new NioSession(server, channel, worker);
+            server.addClient(session);
+            worker.register(session);
+        }
+    }
+
+    /** Closes the listening channel; the workers keep serving (and flushing) open connections. */
+    void stopAccepting() throws IOException {
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+    }
+
+    void close() throws IOException {
+        running = false;
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        for (Worker worker : workers) {
+            worker.shutdown();
+        }
+    }
+
+    /** One selector thread owning a subset of the connections. */
+    final class Worker implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<NioSession> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioSession> pendingWriteInterest = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+        Worker(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "NioWorker-" + index);
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void register(NioSession session) {
+            pendingRegistrations.add(session);
+            selector.wakeup();
+        }
+
+        void requestWriteInterest(NioSession session) {
+            if (Thread.currentThread() == thread) {
+                session.enableWriteInterest();
+            } else {
+                pendingWriteInterest.add(session);
+                selector.wakeup();
+            }
+        }
+
+        // Runs on this worker's thread with the next select round
+        void execute(Runnable task) {
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+
+        // The worker closes its own selector; closing it from here races the selected-key loop
+        void shutdown() throws IOException {
+            if (thread.isAlive()) {
+                selector.wakeup();
+            } else {
+                selector.close();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    processPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioSession session = (NioSession) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                session.onWritable();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                read(key, session);
+                            }
+                        } catch (CancelledKeyException e) {
+                            // Closed by another thread between the checks; the session is already gone
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // Engine closed
+            } catch (IOException e) {
+                server.getLog().error("I/O worker error", "error", e.getMessage());
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    server.getLog().error("Error closing selector", "error", e.getMessage());
+                }
+            }
+        }
+
+        private void processPending() {
+            NioSession session;
+            while ((session = pendingRegistrations.poll()) != null) {
+                try {
+                    session.register(selector);
+                } catch (ClosedChannelException e) {
+                    session.disconnect();
+                }
+            }
+            while ((session = pendingWriteInterest.poll()) != null) {
+                session.enableWriteInterest();
+            }
+            Runnable task;
+            while ((task = pendingTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    server.getLog().error("I/O worker task failed", "error", e.toString());
+                }
+            }
+        }
+
+        private void read(SelectionKey key, NioSession session) {
+            readBuffer.clear();
+            int count;
+            try {
+                count = ((SocketChannel) key.channel()).read(readBuffer);
+            } catch (IOException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                session.disconnect();
+                return;
+            }
+            readBuffer.flip();
+            session.onRead(readBuffer);
+        }
+    }
+}
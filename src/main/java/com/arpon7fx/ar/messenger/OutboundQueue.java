@@ -0,0 +1,137 @@
+package com.arpon7fx.ar.messenger;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import com.arpon7fx.ar.messenger.ServerConfig.OverflowPolicy;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to one client.
+ * Senders only enqueue; a writer task (or the NIO selector) drains it, so a
+ * client with a full TCP window delays nobody but itself.
+ */
+final class OutboundQueue {
+    private static final long ROOM_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final BlockingQueue<ByteBuffer> queue;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMillis;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong enqueued = new AtomicLong();
+    private volatile int peakDepth;
+
+    OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis) {
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    /**
+     * Enqueues a frame according to the overflow policy. With {@code mayWait}
+     * false a full queue under BLOCK drops the frame at once, for callers that
+     * hold a lock and waited with {@link #awaitRoom} beforehand.
+     *
+     * @return false if the client should be disconnected
+     */
+    boolean offer(ByteBuffer frame, boolean mayWait) {
+        if (!queue.offer(frame)) {
+            switch (policy) {
+                case DROP_OLDEST -> {
+                    while (!queue.offer(frame)) {
+                        if (queue.poll() != null) {
+                            dropped.incrementAndGet();
+                        }
+                    }
+                }
+                case DISCONNECT -> {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                case BLOCK -> {
+                    if (!mayWait) {
+                        dropped.incrementAndGet();
+                        return true;
+                    }
+                    try {
+                        if (!queue.offer(frame, blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                            dropped.incrementAndGet();
+                            return true;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped.incrementAndGet();
+                        return true;
+                    }
+                }
+            }
+        }
+        enqueued.incrementAndGet();
+        int depth = queue.size();
+        if (depth > peakDepth) {
+            peakDepth = depth;
+        }
+        return true;
+    }
+
+    /**
+     * Under BLOCK, waits up to the block timeout for room in a full queue, or
+     * until {@code waiting} turns false (the client went away). Other policies
+     * never wait.
+     */
+    void awaitRoom(BooleanSupplier waiting) {
+        if (policy != OverflowPolicy.BLOCK || queue.remainingCapacity() > 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        while (queue.remainingCapacity() == 0 && waiting.getAsBoolean()
+                && System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(ROOM_POLL_NANOS);
+        }
+    }
+
+    ByteBuffer take() throws InterruptedException {
+        return queue.take();
+    }
+
+    ByteBuffer peek() {
+        return queue.peek();
+    }
+
+    ByteBuffer poll() {
+        return queue.poll();
+    }
+
+    int drainTo(Collection<ByteBuffer> target) {
+        return queue.drainTo(target);
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    void clear() {
+        queue.clear();
+    }
+
+    int depth() {
+        return queue.size();
+    }
+
+    int peakDepth() {
+        return peakDepth;
+    }
+
+    long droppedCount() {
+        return dropped.get();
+    }
+
+    long enqueuedCount() {
+        return enqueued.get();
+    }
+}
@@ -0,0 +1,63 @@
+package com.arpon7fx.ar.messenger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last chat messages and whispers sent to one resumable session, in the
+ * order they were queued. After a reconnect the client names the last one it
+ * received and gets everything queued after it, including what arrived while
+ * it was away. Entries are shared references to the broadcast messages, so
+ * keeping them costs one slot per message.
+ */
+final class ResumeBuffer {
+    private final ServerMessage[] ring;
+    // Messages recorded since the session started; the newest is at (count - 1) % ring.length
+    private long count;
+
+    ResumeBuffer(int capacity) {
+        ring = new ServerMessage[capacity];
+    }
+
+    synchronized void record(ServerMessage message) {
+        ring[(int) (count++ % ring.length)] = message;
+    }
+
+    /**
+     * Messages recorded after the one with sequence {@code lastSequence}, oldest first.
+     * Looked up by position rather than by comparing numbers, because concurrent
+     * senders can queue sequence numbers slightly out of order.
+     *
+     * @return the messages to replay, or null if some of them were already overwritten
+     */
+    synchronized List<ServerMessage> after(long lastSequence) {
+        long first = Math.max(0, count - ring.length);
+        long start = first;
+        boolean found = false;
+        for (long i = count - 1; i >= first; i--) {
+            if (ring[(int) (i % ring.length)].getId() == lastSequence) {
+                start = i + 1;
+                found = true;
+                break;
+            }
+        }
+        if (!found && first > 0) {
+            return null;
+        }
+        // Not found and nothing overwritten: the client has none of them yet
+        List<ServerMessage> messages = new ArrayList<>((int) (count - start));
+        for (long i = start; i < count; i++) {
+            messages.add(ring[(int) (i % ring.length)]);
+        }
+        return messages;
+    }
+
+    /** Everything still held, for when {@link #after} cannot tell where the client stopped. */
+    synchronized List<ServerMessage> all() {
+        List<ServerMessage> messages = new ArrayList<>();
+        for (long i = Math.max(0, count - ring.length); i < count; i++) {
+            messages.add(ring[(int) (i % ring.length)]);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,138 @@
+package com.arpon7fx.ar.messenger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A chat room (channel). Messages and user lists only fan out to the room's
+ * own members, so a broadcast costs O(room size) rather than O(all users).
+ * Every logged-in session is in exactly one room; new sessions start in the lobby.
+ * In a cluster the room also lists the members connected to other nodes, who
+ * count for the user list and the room's lifetime but are never sent to directly.
+ */
+final class Room {
+    /** A session's room after joining, and the membership version its join produced. */
+    record Membership(Room room, long version) {
+    }
+
+    static final String LOBBY = "lobby";
+    static final int MAX_NAME_LENGTH = 32;
+
+    private final String name;
+    // Username -> local session; keyed by name so a resume can swap the session in place
+    private final Map<String, ChatSession> members = new ConcurrentHashMap<>();
+    // Username -> node, for members connected to other cluster nodes
+    private final Map<String, Integer> remoteMembers = new ConcurrentHashMap<>();
+    // Bumped on every join/leave so the cached USERS: message can be rebuilt lazily;
+    // also the version clients use to order presence deltas
+    private final AtomicLong membershipVersion = new AtomicLong();
+    private volatile CachedUserList userList;
+
+    private record CachedUserList(long version, ServerMessage message) {
+    }
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean isLobby() {
+        return LOBBY.equals(name);
+    }
+
+    /** @return the membership version after the join, or -1 if the session was already a member */
+    long add(ChatSession session) {
+        return members.putIfAbsent(session.getUsername(), session) == null ? membershipVersion.incrementAndGet() : -1;
+    }
+
+    /** @return the membership version after the leave, or -1 if the session was not a member */
+    long remove(ChatSession session) {
+        return members.remove(session.getUsername(), session) ? membershipVersion.incrementAndGet() : -1;
+    }
+
+    /**
+     * Swaps in the session that resumed a dropped one; the membership itself does not change.
+     * The entry is updated in place, so a broadcast iterating meanwhile sees exactly one of the two.
+     */
+    void replace(ChatSession previous, ChatSession next) {
+        members.replace(previous.getUsername(), previous, next);
+    }
+
+    /** @return the membership version after the join, or -1 if the user was already listed for that node */
+    long addRemote(String username, int node) {
+        Integer previous = remoteMembers.put(username, node);
+        return previous == null || previous != node ? membershipVersion.incrementAndGet() : -1;
+    }
+
+    /** @return the membership version after the leave, or -1 if the user was not listed for that node */
+    long removeRemote(String username, int node) {
+        return remoteMembers.remove(username, node) ? membershipVersion.incrementAndGet() : -1;
+    }
+
+    List<String> remoteMembersOf(int node) {
+        List<String> names = new ArrayList<>();
+        remoteMembers.forEach((username, holder) -> {
+            if (holder == node) {
+                names.add(username);
+            }
+        });
+        return names;
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty() && remoteMembers.isEmpty();
+    }
+
+    boolean hasLocalMembers() {
+        return !members.isEmpty();
+    }
+
+    int size() {
+        return members.size() + remoteMembers.size();
+    }
+
+    /** Weakly consistent view for fan-out; never blocks joins or leaves. */
+    Iterable<ChatSession> members() {
+        return members.values();
+    }
+
+    List<String> getUsernames() {
+        List<String> names = new ArrayList<>(members.size() + remoteMembers.size());
+        names.addAll(members.keySet());
+        names.addAll(remoteMembers.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    ServerMessage userListMessage() {
+        long version = membershipVersion.get();
+        CachedUserList cached = userList;
+        if (cached != null && cached.version() == version) {
+            return cached.message();
+        }
+        // If membership changes while we build, the stale version forces a rebuild next time
+        ServerMessage message = ServerMessage.userList(version, getUsernames().toArray(new String[0]));
+        userList = new CachedUserList(version, message);
+        return message;
+    }
+}
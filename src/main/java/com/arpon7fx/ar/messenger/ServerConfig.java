@@ -0,0 +1,546 @@
+package com.arpon7fx.ar.messenger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Startup options for {@link ChatServer}.
+ * Defaults match the original hard-coded values; every option can be
+ * overridden with a {@code messenger.*} system property or a
+ * {@code --name=value} command line argument.
+ */
+public class ServerConfig {
+
+    public enum Engine {
+        /** One blocking {@link ClientHandler} thread per connection */
+        BLOCKING,
+        /** Selector based event loop with a small fixed pool of I/O threads */
+        NIO,
+        /** Blocking {@link ClientHandler} per connection, each on a virtual thread (Java 21+) */
+        VIRTUAL
+    }
+
+    /** What happens when a client falls {@code capacity} frames behind. */
+    public enum OverflowPolicy {
+        /** Discard the oldest queued frame to make room */
+        DROP_OLDEST,
+        /** Disconnect the slow consumer */
+        DISCONNECT,
+        /**
+         * Block the sender up to the configured timeout, then drop the new frame.
+         * Only for the thread-per-connection engines: on NIO it would stall an I/O thread,
+         * so {@link ChatServer} rejects the combination.
+         */
+        BLOCK
+    }
+
+    /** Most verbose level written by the server log. */
+    public enum LogLevel {
+        ERROR,
+        WARN,
+        INFO,
+        DEBUG
+    }
+
+    public static final int DEFAULT_PORT = 12345;
+    public static final int DEFAULT_MAX_CLIENTS = 50;
+    public static final int DEFAULT_OUTBOUND_QUEUE_CAPACITY = 1024;
+    public static final int DEFAULT_HISTORY_REPLAY_COUNT = 20;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30_000;
+    public static final long DEFAULT_RESUME_GRACE_MILLIS = 30_000;
+    public static final long DEFAULT_SHUTDOWN_DRAIN_MILLIS = 2000;
+
+    private Engine engine = Engine.BLOCKING;
+    private int port = DEFAULT_PORT;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private int maxClients = DEFAULT_MAX_CLIENTS;
+    private int outboundQueueCapacity = DEFAULT_OUTBOUND_QUEUE_CAPACITY;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private long overflowBlockTimeoutMillis = 1000;
+    private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private long resumeGraceMillis = DEFAULT_RESUME_GRACE_MILLIS;
+    private int resumeBufferSize = 256;
+    private long shutdownDrainMillis = DEFAULT_SHUTDOWN_DRAIN_MILLIS;
+    private int acceptBacklog = 50;
+    private int acceptsPerSecondPerAddress = 10;
+    private int acceptBurstPerAddress = 50;
+    private int chatMessagesPerSecond = 20;
+    private int chatBytesPerSecond = 64 * 1024;
+    private int commandMessagesPerSecond = 20;
+    private int commandBytesPerSecond = 16 * 1024;
+    private List<String> clusterNodes = List.of();
+    private int clusterNodeId;
+    private boolean historyEnabled;
+    private String historyDirectory;
+    private int historyReplayCount = DEFAULT_HISTORY_REPLAY_COUNT;
+    private int historySegmentSize = 16 * 1024 * 1024;
+    private int historyMaxSegments = 16;
+    private long historySyncIntervalMillis = 100;
+    private int metricsPort = -1;
+    private boolean jmxEnabled = true;
+    private LogLevel logLevel = LogLevel.INFO;
+    private String logFile;
+    private long logMaxFileBytes = 10 * 1024 * 1024;
+    private int logMaxFiles = 5;
+    private int logBufferSize = 8192;
+    private double logMessageSampleRate = 1.0;
+
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        String engine = System.getProperty("messenger.engine");
+        if (engine != null) {
+            config.setEngine(parseEnum(Engine.class, engine));
+        }
+        config.setPort(Integer.getInteger("messenger.port", config.port));
+        config.setIoThreads(Integer.getInteger("messenger.ioThreads", config.ioThreads));
+        config.setMaxClients(Integer.getInteger("messenger.maxClients", config.maxClients));
+        config.setOutboundQueueCapacity(Integer.getInteger("messenger.outboundQueueCapacity", config.outboundQueueCapacity));
+        String policy = System.getProperty("messenger.overflowPolicy");
+        if (policy != null) {
+            config.setOverflowPolicy(parseEnum(OverflowPolicy.class, policy));
+        }
+        config.setOverflowBlockTimeoutMillis(Long.getLong("messenger.overflowBlockTimeoutMillis", config.overflowBlockTimeoutMillis));
+        config.setIdleTimeoutMillis(Long.getLong("messenger.idleTimeoutMillis", config.idleTimeoutMillis));
+        config.setResumeGraceMillis(Long.getLong("messenger.resumeGraceMillis", config.resumeGraceMillis));
+        config.setResumeBufferSize(Integer.getInteger("messenger.resumeBufferSize", config.resumeBufferSize));
+        config.setShutdownDrainMillis(Long.getLong("messenger.shutdownDrainMillis", config.shutdownDrainMillis));
+        config.setAcceptBacklog(Integer.getInteger("messenger.acceptBacklog", config.acceptBacklog));
+        config.setAcceptsPerSecondPerAddress(Integer.getInteger("messenger.acceptsPerSecondPerAddress", config.acceptsPerSecondPerAddress));
+        config.setAcceptBurstPerAddress(Integer.getInteger("messenger.acceptBurstPerAddress", config.acceptBurstPerAddress));
+        config.setChatMessagesPerSecond(Integer.getInteger("messenger.chatMessagesPerSecond", config.chatMessagesPerSecond));
+        config.setChatBytesPerSecond(Integer.getInteger("messenger.chatBytesPerSecond", config.chatBytesPerSecond));
+        config.setCommandMessagesPerSecond(Integer.getInteger("messenger.commandMessagesPerSecond", config.commandMessagesPerSecond));
+        config.setCommandBytesPerSecond(Integer.getInteger("messenger.commandBytesPerSecond", config.commandBytesPerSecond));
+        String clusterNodes = System.getProperty("messenger.cluster.nodes");
+        if (clusterNodes != null) {
+            config.setClusterNodes(clusterNodes);
+        }
+        config.setClusterNodeId(Integer.getInteger("messenger.cluster.nodeId", config.clusterNodeId));
+        config.setHistoryEnabled(Boolean.parseBoolean(System.getProperty("messenger.history.enabled", "false")));
+        config.setHistoryDirectory(System.getProperty("messenger.history.directory"));
+        config.setHistoryReplayCount(Integer.getInteger("messenger.history.replayCount", config.historyReplayCount));
+        config.setHistorySegmentSize(Integer.getInteger("messenger.history.segmentSize", config.historySegmentSize));
+        config.setHistoryMaxSegments(Integer.getInteger("messenger.history.maxSegments", config.historyMaxSegments));
+        config.setHistorySyncIntervalMillis(Long.getLong("messenger.history.syncIntervalMillis", config.historySyncIntervalMillis));
+        config.setMetricsPort(Integer.getInteger("messenger.metricsPort", config.metricsPort));
+        config.setJmxEnabled(Boolean.parseBoolean(System.getProperty("messenger.jmx", "true")));
+        String logLevel = System.getProperty("messenger.log.level");
+        if (logLevel != null) {
+            config.setLogLevel(parseEnum(LogLevel.class, logLevel));
+        }
+        config.setLogFile(System.getProperty("messenger.log.file"));
+        config.setLogMaxFileBytes(Long.getLong("messenger.log.maxFileBytes", config.logMaxFileBytes));
+        config.setLogMaxFiles(Integer.getInteger("messenger.log.maxFiles", config.logMaxFiles));
+        config.setLogBufferSize(Integer.getInteger("messenger.log.bufferSize", config.logBufferSize));
+        String sampleRate = System.getProperty("messenger.log.messageSampleRate");
+        if (sampleRate != null) {
+            config.setLogMessageSampleRate(Double.parseDouble(sampleRate));
+        }
+        return config;
+    }
+
+    // Applies "--engine=nio" style arguments on top of the current values
+    public ServerConfig applyArgs(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                System.err.println("Ignoring argument: " + arg);
+                continue;
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "engine" -> setEngine(parseEnum(Engine.class, value));
+                case "port" -> setPort(Integer.parseInt(value));
+                case "ioThreads" -> setIoThreads(Integer.parseInt(value));
+                case "maxClients" -> setMaxClients(Integer.parseInt(value));
+                case "outboundQueueCapacity" -> setOutboundQueueCapacity(Integer.parseInt(value));
+                case "overflowPolicy" -> setOverflowPolicy(parseEnum(OverflowPolicy.class, value));
+                case "overflowBlockTimeoutMillis" -> setOverflowBlockTimeoutMillis(Long.parseLong(value));
+                case "idleTimeoutMillis" -> setIdleTimeoutMillis(Long.parseLong(value));
+                case "resumeGraceMillis" -> setResumeGraceMillis(Long.parseLong(value));
+                case "resumeBufferSize" -> setResumeBufferSize(Integer.parseInt(value));
+                case "shutdownDrainMillis" -> setShutdownDrainMillis(Long.parseLong(value));
+                case "acceptBacklog" -> setAcceptBacklog(Integer.parseInt(value));
+                case "acceptsPerSecondPerAddress" -> setAcceptsPerSecondPerAddress(Integer.parseInt(value));
+                case "acceptBurstPerAddress" -> setAcceptBurstPerAddress(Integer.parseInt(value));
+                case "chatMessagesPerSecond" -> setChatMessagesPerSecond(Integer.parseInt(value));
+                case "chatBytesPerSecond" -> setChatBytesPerSecond(Integer.parseInt(value));
+                case "commandMessagesPerSecond" -> setCommandMessagesPerSecond(Integer.parseInt(value));
+                case "commandBytesPerSecond" -> setCommandBytesPerSecond(Integer.parseInt(value));
+                case "clusterNodes" -> setClusterNodes(value);
+                case "clusterNodeId" -> setClusterNodeId(Integer.parseInt(value));
+                case "history" -> setHistoryEnabled(Boolean.parseBoolean(value));
+                case "historyDirectory" -> setHistoryDirectory(value);
+                case "historyReplayCount" -> setHistoryReplayCount(Integer.parseInt(value));
+                case "historySegmentSize" -> setHistorySegmentSize(Integer.parseInt(value));
+                case "historyMaxSegments" -> setHistoryMaxSegments(Integer.parseInt(value));
+                case "historySyncIntervalMillis" -> setHistorySyncIntervalMillis(Long.parseLong(value));
+                case "metricsPort" -> setMetricsPort(Integer.parseInt(value));
+                case "jmx" -> setJmxEnabled(Boolean.parseBoolean(value));
+                case "logLevel" -> setLogLevel(parseEnum(LogLevel.class, value));
+                case "logFile" -> setLogFile(value);
+                case "logMaxFileBytes" -> setLogMaxFileBytes(Long.parseLong(value));
+                case "logMaxFiles" -> setLogMaxFiles(Integer.parseInt(value));
+                case "logBufferSize" -> setLogBufferSize(Integer.parseInt(value));
+                case "logMessageSampleRate" -> setLogMessageSampleRate(Double.parseDouble(value));
+                default -> System.err.println("Unknown option: " + name);
+            }
+        }
+        return this;
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String value) {
+        return Enum.valueOf(type, value.trim().toUpperCase(java.util.Locale.ROOT));
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public ServerConfig setEngine(Engine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public ServerConfig setIoThreads(int ioThreads) {
+        this.ioThreads = Math.max(1, ioThreads);
+        return this;
+    }
+
+    public int getMaxClients() {
+        return maxClients;
+    }
+
+    // Zero or a negative value means no limit
+    public ServerConfig setMaxClients(int maxClients) {
+        this.maxClients = maxClients;
+        return this;
+    }
+
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    public ServerConfig setOutboundQueueCapacity(int outboundQueueCapacity) {
+        this.outboundQueueCapacity = Math.max(1, outboundQueueCapacity);
+        return this;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public ServerConfig setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    public long getOverflowBlockTimeoutMillis() {
+        return overflowBlockTimeoutMillis;
+    }
+
+    public ServerConfig setOverflowBlockTimeoutMillis(long overflowBlockTimeoutMillis) {
+        this.overflowBlockTimeoutMillis = overflowBlockTimeoutMillis;
+        return this;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    // Connections silent for this long are closed; clients send heartbeats well within it. Zero disables
+    public ServerConfig setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = Math.max(0, idleTimeoutMillis);
+        return this;
+    }
+
+    public long getResumeGraceMillis() {
+        return resumeGraceMillis;
+    }
+
+    /**
+     * How long a client whose connection dropped keeps its username and room
+     * without anyone seeing it leave, so it can reconnect and resume. Zero disables resuming.
+     */
+    public ServerConfig setResumeGraceMillis(long resumeGraceMillis) {
+        this.resumeGraceMillis = Math.max(0, resumeGraceMillis);
+        return this;
+    }
+
+    public int getResumeBufferSize() {
+        return resumeBufferSize;
+    }
+
+    // Chat messages and whispers kept per resumable session for replay after a reconnect
+    public ServerConfig setResumeBufferSize(int resumeBufferSize) {
+        this.resumeBufferSize = Math.max(1, resumeBufferSize);
+        return this;
+    }
+
+    public long getShutdownDrainMillis() {
+        return shutdownDrainMillis;
+    }
+
+    // How long stop() lets queued messages reach the clients before closing every connection
+    public ServerConfig setShutdownDrainMillis(long shutdownDrainMillis) {
+        this.shutdownDrainMillis = Math.max(0, shutdownDrainMillis);
+        return this;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    // Pending connections the OS queues before accept() picks them up
+    public ServerConfig setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = Math.max(1, acceptBacklog);
+        return this;
+    }
+
+    public int getAcceptsPerSecondPerAddress() {
+        return acceptsPerSecondPerAddress;
+    }
+
+    // New connections allowed per remote address and second; zero disables the limit
+    public ServerConfig setAcceptsPerSecondPerAddress(int acceptsPerSecondPerAddress) {
+        this.acceptsPerSecondPerAddress = Math.max(0, acceptsPerSecondPerAddress);
+        return this;
+    }
+
+    public int getAcceptBurstPerAddress() {
+        return acceptBurstPerAddress;
+    }
+
+    // Connections one address may open at once before the per-second rate applies
+    public ServerConfig setAcceptBurstPerAddress(int acceptBurstPerAddress) {
+        this.acceptBurstPerAddress = Math.max(1, acceptBurstPerAddress);
+        return this;
+    }
+
+    public int getChatMessagesPerSecond() {
+        return chatMessagesPerSecond;
+    }
+
+    // Chat messages a client may broadcast per second, with bursts of twice that; zero disables
+    public ServerConfig setChatMessagesPerSecond(int chatMessagesPerSecond) {
+        this.chatMessagesPerSecond = Math.max(0, chatMessagesPerSecond);
+        return this;
+    }
+
+    public int getChatBytesPerSecond() {
+        return chatBytesPerSecond;
+    }
+
+    // Chat volume per client and second, in UTF-8 bytes; a single message of the maximum frame size always fits. Zero disables
+    public ServerConfig setChatBytesPerSecond(int chatBytesPerSecond) {
+        this.chatBytesPerSecond = Math.max(0, chatBytesPerSecond);
+        return this;
+    }
+
+    public int getCommandMessagesPerSecond() {
+        return commandMessagesPerSecond;
+    }
+
+    // Commands (including whispers and pings, not heartbeats) per client and second; zero disables
+    public ServerConfig setCommandMessagesPerSecond(int commandMessagesPerSecond) {
+        this.commandMessagesPerSecond = Math.max(0, commandMessagesPerSecond);
+        return this;
+    }
+
+    public int getCommandBytesPerSecond() {
+        return commandBytesPerSecond;
+    }
+
+    // Command volume per client and second, in UTF-8 bytes; zero disables
+    public ServerConfig setCommandBytesPerSecond(int commandBytesPerSecond) {
+        this.commandBytesPerSecond = Math.max(0, commandBytesPerSecond);
+        return this;
+    }
+
+    public List<String> getClusterNodes() {
+        return clusterNodes;
+    }
+
+    /**
+     * Every node of the cluster as {@code host:port} of its inter-node listener,
+     * in the same order on each node; empty runs a standalone server.
+     */
+    public ServerConfig setClusterNodes(List<String> clusterNodes) {
+        this.clusterNodes = List.copyOf(clusterNodes);
+        return this;
+    }
+
+    // "10.0.0.1:7100,10.0.0.2:7100"
+    public ServerConfig setClusterNodes(String clusterNodes) {
+        List<String> nodes = new ArrayList<>();
+        for (String node : clusterNodes.split(",")) {
+            if (!node.isBlank()) {
+                nodes.add(node.trim());
+            }
+        }
+        return setClusterNodes(nodes);
+    }
+
+    public int getClusterNodeId() {
+        return clusterNodeId;
+    }
+
+    // This node's index into the cluster nodes
+    public ServerConfig setClusterNodeId(int clusterNodeId) {
+        this.clusterNodeId = Math.max(0, clusterNodeId);
+        return this;
+    }
+
+    public boolean isClustered() {
+        return !clusterNodes.isEmpty();
+    }
+
+    public boolean isHistoryEnabled() {
+        return historyEnabled;
+    }
+
+    // Off by default: a server only writes chat to disk when told to
+    public ServerConfig setHistoryEnabled(boolean historyEnabled) {
+        this.historyEnabled = historyEnabled;
+        return this;
+    }
+
+    // Defaults to ~/.arpon-messenger/history/port-<port>, so servers on different ports keep separate logs
+    public java.nio.file.Path getHistoryDirectory() {
+        if (historyDirectory != null) {
+            return java.nio.file.Path.of(historyDirectory);
+        }
+        return java.nio.file.Path.of(System.getProperty("user.home"), ".arpon-messenger", "history", "port-" + port);
+    }
+
+    public ServerConfig setHistoryDirectory(String historyDirectory) {
+        this.historyDirectory = historyDirectory;
+        return this;
+    }
+
+    public int getHistoryReplayCount() {
+        return historyReplayCount;
+    }
+
+    // Messages replayed to a client when it logs in or joins a room; zero disables replay
+    public ServerConfig setHistoryReplayCount(int historyReplayCount) {
+        this.historyReplayCount = Math.max(0, historyReplayCount);
+        return this;
+    }
+
+    public int getHistorySegmentSize() {
+        return historySegmentSize;
+    }
+
+    public ServerConfig setHistorySegmentSize(int historySegmentSize) {
+        this.historySegmentSize = Math.max(256 * 1024, historySegmentSize);
+        return this;
+    }
+
+    public int getHistoryMaxSegments() {
+        return historyMaxSegments;
+    }
+
+    public ServerConfig setHistoryMaxSegments(int historyMaxSegments) {
+        this.historyMaxSegments = Math.max(1, historyMaxSegments);
+        return this;
+    }
+
+    public long getHistorySyncIntervalMillis() {
+        return historySyncIntervalMillis;
+    }
+
+    public ServerConfig setHistorySyncIntervalMillis(long historySyncIntervalMillis) {
+        this.historySyncIntervalMillis = Math.max(1, historySyncIntervalMillis);
+        return this;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    // Loopback port for the Prometheus /metrics endpoint; negative disables it, 0 picks a free port
+    public ServerConfig setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+        return this;
+    }
+
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    public ServerConfig setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+        return this;
+    }
+
+    public LogLevel getLogLevel() {
+        return logLevel;
+    }
+
+    public ServerConfig setLogLevel(LogLevel logLevel) {
+        this.logLevel = logLevel;
+        return this;
+    }
+
+    // Null means the console
+    public java.nio.file.Path getLogFile() {
+        return logFile != null ? java.nio.file.Path.of(logFile) : null;
+    }
+
+    public ServerConfig setLogFile(String logFile) {
+        this.logFile = logFile;
+        return this;
+    }
+
+    public long getLogMaxFileBytes() {
+        return logMaxFileBytes;
+    }
+
+    public ServerConfig setLogMaxFileBytes(long logMaxFileBytes) {
+        this.logMaxFileBytes = Math.max(1024, logMaxFileBytes);
+        return this;
+    }
+
+    public int getLogMaxFiles() {
+        return logMaxFiles;
+    }
+
+    public ServerConfig setLogMaxFiles(int logMaxFiles) {
+        this.logMaxFiles = Math.max(1, logMaxFiles);
+        return this;
+    }
+
+    public int getLogBufferSize() {
+        return logBufferSize;
+    }
+
+    // Events the ring buffer holds before new ones are dropped; rounded up to a power of two
+    public ServerConfig setLogBufferSize(int logBufferSize) {
+        this.logBufferSize = Math.max(16, logBufferSize);
+        return this;
+    }
+
+    public double getLogMessageSampleRate() {
+        return logMessageSampleRate;
+    }
+
+    // Fraction of chat messages whose content is logged: 1 logs all, 0 none
+    public ServerConfig setLogMessageSampleRate(double logMessageSampleRate) {
+        this.logMessageSampleRate = Math.min(1, Math.max(0, logMessageSampleRate));
+        return this;
+    }
+}
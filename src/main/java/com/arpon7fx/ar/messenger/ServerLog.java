@@ -0,0 +1,347 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.arpon7fx.ar.messenger.ServerConfig.LogLevel;
+
+/**
+ * Asynchronous server log. Callers only claim a slot in a lock-free ring
+ * buffer and store the event with its unformatted fields; one background
+ * thread formats batches and writes them to a size-rolled file, or to the
+ * console when no file is configured. When the ring is full events are
+ * dropped and counted rather than blocking the caller.
+ *
+ * <p>Events are written as {@code time LEVEL [thread] message key=value ...}.
+ * Chat message content is logged at INFO only for the sampled fraction set by
+ * {@link ServerConfig#setLogMessageSampleRate(double)}.
+ */
+final class ServerLog {
+    private record Event(long time, LogLevel level, String thread, String message, Object[] fields) {
+    }
+
+    private static final Object[] NO_FIELDS = new Object[0];
+    private static final int MAX_BATCH = 512;
+
+    private final LogLevel level;
+    private final double messageSampleRate;
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+
+    // Bounded multi-producer ring: a slot is free for position p when its sequence equals p
+    // and holds an event for the consumer when it equals p + 1
+    private final Event[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private final AtomicLong dropped = new AtomicLong();
+    private long reportedDropped;
+
+    private final Thread writerThread;
+    private boolean started;
+    private volatile boolean closed;
+    // Set by the writer before it parks on an empty ring; producers only unpark it then
+    private volatile boolean writerParked;
+    private volatile long writtenPosition;
+    private Writer fileWriter;
+    private long fileBytes;
+
+    ServerLog(ServerConfig config) {
+        this.level = config.getLogLevel();
+        this.messageSampleRate = config.getLogMessageSampleRate();
+        this.file = config.getLogFile();
+        this.maxFileBytes = config.getLogMaxFileBytes();
+        this.maxFiles = config.getLogMaxFiles();
+
+        int capacity = Integer.highestOneBit(Math.max(2, config.getLogBufferSize() - 1)) << 1;
+        slots = new Event[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+
+        writerThread = new Thread(this::writeLoop, "ServerLog-writer");
+        writerThread.setDaemon(true);
+    }
+
+    /**
+     * Starts the writer thread. Events logged before are kept in the ring (or
+     * dropped once it is full) and written when it starts, or by {@link #close()}.
+     */
+    synchronized void start() {
+        if (!started && !closed) {
+            started = true;
+            writerThread.start();
+        }
+    }
+
+    boolean isEnabled(LogLevel eventLevel) {
+        return eventLevel.ordinal() <= level.ordinal();
+    }
+
+    /** True for the sampled fraction of chat messages whose content should be logged. */
+    boolean sampleMessage() {
+        return isEnabled(LogLevel.INFO) && messageSampleRate > 0
+            && (messageSampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < messageSampleRate);
+    }
+
+    void error(String message, Object... fields) {
+        log(LogLevel.ERROR, message, fields);
+    }
+
+    void warn(String message, Object... fields) {
+        log(LogLevel.WARN, message, fields);
+    }
+
+    void info(String message, Object... fields) {
+        log(LogLevel.INFO, message, fields);
+    }
+
+    void debug(String message, Object... fields) {
+        log(LogLevel.DEBUG, message, fields);
+    }
+
+    /** Fields are key/value pairs, formatted on the writer thread. */
+    void log(LogLevel eventLevel, String message, Object... fields) {
+        if (!isEnabled(eventLevel)) {
+            return;
+        }
+        Event event = new Event(System.currentTimeMillis(), eventLevel, Thread.currentThread().getName(),
+            message, fields != null ? fields : NO_FIELDS);
+        if (closed) {
+            // Stragglers after close() are rare; write them directly
+            StringBuilder line = new StringBuilder(128);
+            format(event, line);
+            boolean error = file == null && eventLevel.ordinal() <= LogLevel.WARN.ordinal();
+            write(error ? new StringBuilder() : line, error ? line : null);
+            return;
+        }
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = event;
+                    sequences.set(index, position + 1);
+                    if (writerParked) {
+                        LockSupport.unpark(writerThread);
+                    }
+                    return;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // Full: the writer is a whole ring behind
+                dropped.incrementAndGet();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    long droppedCount() {
+        return dropped.get();
+    }
+
+    /** Waits until everything logged before this call has been written, or the timeout passes. */
+    void flush(long timeoutMillis) {
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+        }
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (writtenPosition < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /** Writes out what is queued and stops the writer thread; later events are written synchronously. */
+    void close() {
+        boolean running;
+        synchronized (this) {
+            closed = true;
+            running = started;
+        }
+        if (running) {
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            // Never started: write what was logged so far here
+            writeLoop();
+        }
+        synchronized (this) {
+            if (fileWriter != null) {
+                try {
+                    fileWriter.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing log file: " + e.getMessage());
+                }
+                fileWriter = null;
+            }
+        }
+    }
+
+    private boolean hasEvent() {
+        return sequences.get((int) (head & mask)) == head + 1 || closed;
+    }
+
+    private Event poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Event event = slots[index];
+        slots[index] = null;
+        sequences.set(index, head + slots.length);
+        head++;
+        return event;
+    }
+
+    private void writeLoop() {
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            Event event = poll();
+            if (event == null) {
+                if (closed) {
+                    // One last pass for events queued while close() was called
+                    event = poll();
+                    if (event == null) {
+                        return;
+                    }
+                } else {
+                    // Sleep until a producer publishes; checking again after announcing it
+                    // means an event published in between is never missed
+                    writerParked = true;
+                    if (!hasEvent()) {
+                        LockSupport.park(this);
+                    }
+                    writerParked = false;
+                    continue;
+                }
+            }
+            int count = 0;
+            StringBuilder out = new StringBuilder(4096);
+            StringBuilder errors = null;
+            do {
+                line.setLength(0);
+                format(event, line);
+                if (file == null && event.level().ordinal() <= LogLevel.WARN.ordinal()) {
+                    errors = errors != null ? errors : new StringBuilder();
+                    errors.append(line);
+                } else {
+                    out.append(line);
+                }
+            } while (++count < MAX_BATCH && (event = poll()) != null);
+
+            long droppedNow = dropped.get();
+            if (droppedNow != reportedDropped) {
+                out.append(Instant.now()).append(" WARN  [ServerLog-writer] Dropped log events total=")
+                    .append(droppedNow).append(System.lineSeparator());
+                reportedDropped = droppedNow;
+            }
+            write(out, errors);
+            writtenPosition = head;
+        }
+    }
+
+    private static void format(Event event, StringBuilder line) {
+        line.append(Instant.ofEpochMilli(event.time())).append(' ');
+        String levelName = event.level().name();
+        line.append(levelName);
+        for (int i = levelName.length(); i < 6; i++) {
+            line.append(' ');
+        }
+        line.append('[').append(event.thread()).append("] ").append(event.message());
+        Object[] fields = event.fields();
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            line.append(' ').append(fields[i]).append('=');
+            String value = String.valueOf(fields[i + 1]);
+            if (value.indexOf(' ') >= 0 || value.indexOf('"') >= 0 || value.isEmpty()) {
+                line.append('"').append(value.replace("\"", "\\\"")).append('"');
+            } else {
+                line.append(value);
+            }
+        }
+        line.append(System.lineSeparator());
+    }
+
+    private synchronized void write(StringBuilder out, StringBuilder errors) {
+        if (file == null) {
+            if (out.length() > 0) {
+                writeConsole(System.out, out);
+            }
+            if (errors != null) {
+                writeConsole(System.err, errors);
+            }
+            return;
+        }
+        try {
+            if (fileWriter == null || fileBytes >= maxFileBytes) {
+                roll();
+            }
+            fileWriter.append(out);
+            fileWriter.flush();
+            fileBytes += out.length();
+        } catch (IOException e) {
+            System.err.println("Log write failed: " + e.getMessage());
+            System.err.print(out);
+            fileWriter = null;
+        }
+    }
+
+    private static void writeConsole(PrintStream stream, StringBuilder text) {
+        stream.print(text);
+        stream.flush();
+    }
+
+    // messenger.log -> messenger.log.1 -> ... -> messenger.log.<maxFiles - 1>
+    private void roll() throws IOException {
+        if (fileWriter != null) {
+            fileWriter.close();
+            if (maxFiles <= 1) {
+                Files.deleteIfExists(file);
+            }
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                Path source = i == 1 ? file : rolledFile(i - 1);
+                if (Files.exists(source)) {
+                    Files.move(source, rolledFile(i), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        fileWriter = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+        fileBytes = Files.size(file);
+    }
+
+    private Path rolledFile(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+}
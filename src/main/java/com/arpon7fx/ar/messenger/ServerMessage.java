@@ -0,0 +1,135 @@
+package com.arpon7fx.ar.messenger;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message produced by the server. Frames are encoded lazily and at most
+ * once per protocol, so every recipient of a broadcast shares the same
+ * bytes whether it speaks the text or the binary protocol.
+ */
+final class ServerMessage {
+    /** Reply to a client heartbeat; an empty line on the text protocol. Encoded once for every client. */
+    static final ServerMessage HEARTBEAT_ACK = new ServerMessage(BinaryCodec.HEARTBEAT_ACK, 0, null, "", null, true);
+
+    private final byte type;
+    private final long id;
+    private final String sender;
+    private final String body;
+    private final String[] users;
+    private final boolean shared;
+    private volatile ByteBuffer textFrame;
+    private volatile ByteBuffer binaryFrame;
+
+    private ServerMessage(byte type, long id, String sender, String body, String[] users, boolean shared) {
+        this.type = type;
+        this.id = id;
+        this.sender = sender;
+        this.body = body;
+        this.users = users;
+        this.shared = shared;
+    }
+
+    static ServerMessage chat(long id, String sender, String body) {
+        return new ServerMessage(BinaryCodec.MESSAGE, id, sender, body, null, true);
+    }
+
+    /** A chat message from the history log, sent to a single recipient. */
+    static ServerMessage replayedChat(long id, String sender, String body) {
+        return new ServerMessage(BinaryCodec.MESSAGE, id, sender, body, null, false);
+    }
+
+    static ServerMessage whisper(long id, String sender, String body) {
+        return new ServerMessage(BinaryCodec.PRIVATE, id, sender, body, null, false);
+    }
+
+    static ServerMessage system(String text) {
+        return new ServerMessage(BinaryCodec.SYSTEM, 0, null, text, null, false);
+    }
+
+    /** System notice sent to many recipients, e.g. join and leave. */
+    static ServerMessage sharedSystem(String text) {
+        return new ServerMessage(BinaryCodec.SYSTEM, 0, null, text, null, true);
+    }
+
+    static ServerMessage error(String text) {
+        return new ServerMessage(BinaryCodec.ERROR, 0, null, text, null, false);
+    }
+
+    /** Snapshot of a room's users; the id is the membership version it was built at. */
+    static ServerMessage userList(long version, String[] users) {
+        return new ServerMessage(BinaryCodec.USERS, version, null, null, users, true);
+    }
+
+    /** USER_JOINED or USER_LEFT for binary clients that apply presence deltas. */
+    static ServerMessage presence(byte type, long version, String username) {
+        return new ServerMessage(type, version, null, username, null, true);
+    }
+
+    /** Resume token for a version 3 binary client; {@code resumed} when it continues a dropped session. */
+    static ServerMessage session(String token, boolean resumed) {
+        return new ServerMessage(BinaryCodec.SESSION, resumed ? 1 : 0, null, token, null, false);
+    }
+
+    /** The frame for one recipient; shared frames must only be queued as duplicates. */
+    ByteBuffer frame(boolean binary) {
+        if (binary) {
+            ByteBuffer frame = binaryFrame;
+            if (frame == null) {
+                frame = encodeBinary();
+                binaryFrame = frame;
+            }
+            return frame;
+        }
+        ByteBuffer frame = textFrame;
+        if (frame == null) {
+            String line = toTextLine();
+            frame = shared ? Frames.sharedLine(line) : Frames.line(line);
+            textFrame = frame;
+        }
+        return frame;
+    }
+
+    private ByteBuffer encodeBinary() {
+        return switch (type) {
+            case BinaryCodec.MESSAGE, BinaryCodec.PRIVATE -> BinaryCodec.encode(type, id, sender, body, shared);
+            case BinaryCodec.USERS -> BinaryCodec.encodeList(type, id, users, shared);
+            default -> BinaryCodec.encode(type, id, body, shared);
+        };
+    }
+
+    /** The line protocol form, with line breaks flattened. */
+    String toTextLine() {
+        return switch (type) {
+            case BinaryCodec.MESSAGE -> sender + ":" + BinaryCodec.toSingleLine(body);
+            case BinaryCodec.PRIVATE -> "PRIVATE:" + sender + " (whisper): " + BinaryCodec.toSingleLine(body);
+            case BinaryCodec.USERS -> "USERS:" + String.join(",", users);
+            case BinaryCodec.ERROR -> "ERROR:" + BinaryCodec.toSingleLine(body);
+            // Never sent to text clients, which get a USERS: snapshot instead; this is for the log
+            case BinaryCodec.USER_JOINED -> "SYSTEM:" + body + " is online";
+            case BinaryCodec.USER_LEFT -> "SYSTEM:" + body + " is offline";
+            case BinaryCodec.HEARTBEAT_ACK -> "";
+            // Binary only; the token stays out of the log
+            case BinaryCodec.SESSION -> id == 1 ? "SYSTEM:session resumed" : "SYSTEM:session started";
+            default -> "SYSTEM:" + BinaryCodec.toSingleLine(body);
+        };
+    }
+
+    // Used by the server log, which formats off the hot path
+    @Override
+    public String toString() {
+        return toTextLine();
+    }
+
+    /** Chat messages and whispers, whose id is a sequence number a client can resume from. */
+    boolean isSequenced() {
+        return type == BinaryCodec.MESSAGE || type == BinaryCodec.PRIVATE;
+    }
+
+    boolean isShared() {
+        return shared;
+    }
+
+    long getId() {
+        return id;
+    }
+}
@@ -0,0 +1,437 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Server instrumentation. Every counter is a {@link LongAdder}, striped per
+ * thread under contention, so recording from the broadcast path never takes
+ * a lock; gauges such as the outbound backlog are computed when read.
+ * Exposed through JMX ({@link ServerMetricsMBean}) and, when a metrics port is
+ * configured, a loopback HTTP endpoint in the Prometheus text format at {@code /metrics}.
+ */
+final class ServerMetrics implements ServerMetricsMBean {
+    static final List<String> COMMANDS = List.of(
+        "ping", "users", "time", "whisper", "rooms", "join", "leave", "history", "since", "quit", "unknown");
+
+    private final ChatServer server;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder idleDisconnects = new LongAdder();
+    private final LongAdder throttledConnections = new LongAdder();
+    private final LongAdder throttledMessages = new LongAdder();
+    private final LongAdder sessionsResumed = new LongAdder();
+    private final LongAdder sessionHoldsExpired = new LongAdder();
+    private final LongAdder clusterBatchesSent = new LongAdder();
+    private final LongAdder clusterEventsSent = new LongAdder();
+    private final LongAdder clusterBytesSent = new LongAdder();
+    private final LongAdder clusterEventsReceived = new LongAdder();
+    private final LongAdder clusterEventsDropped = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LatencyHistogram broadcastTime = new LatencyHistogram();
+    // Fixed key set, filled once, so lookups need no synchronization
+    private final Map<String, LongAdder> commands = new LinkedHashMap<>();
+    private ObjectName objectName;
+    private HttpServer httpServer;
+    private ExecutorService httpExecutor;
+
+    ServerMetrics(ChatServer server) {
+        this.server = server;
+        for (String command : COMMANDS) {
+            commands.put(command, new LongAdder());
+        }
+    }
+
+    void connectionAccepted() {
+        accepted.increment();
+    }
+
+    void connectionRejected() {
+        rejected.increment();
+    }
+
+    void idleDisconnect() {
+        idleDisconnects.increment();
+    }
+
+    void connectionThrottled() {
+        throttledConnections.increment();
+    }
+
+    void messageThrottled() {
+        throttledMessages.increment();
+    }
+
+    void sessionResumed() {
+        sessionsResumed.increment();
+    }
+
+    void sessionHoldExpired() {
+        sessionHoldsExpired.increment();
+    }
+
+    void clusterBatchSent(int events, int bytes) {
+        clusterBatchesSent.increment();
+        clusterEventsSent.add(events);
+        clusterBytesSent.add(bytes);
+    }
+
+    void clusterEventsReceived(int events) {
+        clusterEventsReceived.add(events);
+    }
+
+    void clusterEventsDropped(int events) {
+        clusterEventsDropped.add(events);
+    }
+
+    void bytesReceived(int count) {
+        bytesReceived.add(count);
+    }
+
+    void messageReceived() {
+        messagesReceived.increment();
+    }
+
+    /** A frame queued for a client. */
+    void messageSent(int bytes) {
+        messagesSent.increment();
+        bytesSent.add(bytes);
+    }
+
+    void broadcastCompleted(long nanos) {
+        broadcastTime.record(nanos);
+    }
+
+    void commandReceived(String command) {
+        LongAdder counter = commands.get(command);
+        (counter != null ? counter : commands.get("unknown")).increment();
+    }
+
+    /** Registers the MBean and starts the HTTP endpoint if a metrics port is configured. */
+    void start(ServerConfig config, int serverPort) {
+        if (config.isJmxEnabled()) {
+            try {
+                MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+                objectName = new ObjectName("com.arpon7fx.ar.messenger:type=ChatServer,port=" + serverPort);
+                if (mbeans.isRegistered(objectName)) {
+                    mbeans.unregisterMBean(objectName);
+                }
+                mbeans.registerMBean(this, objectName);
+            } catch (JMException e) {
+                server.getLog().warn("Could not register JMX metrics", "error", e.getMessage());
+                objectName = null;
+            }
+        }
+        if (config.getMetricsPort() >= 0) {
+            try {
+                httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.getMetricsPort()), 0);
+                httpServer.createContext("/metrics", exchange -> {
+                    byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                httpExecutor = Executors.newSingleThreadExecutor(task -> {
+                    Thread thread = new Thread(task, "Metrics-http");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                httpServer.setExecutor(httpExecutor);
+                httpServer.start();
+                server.getLog().info("Metrics endpoint started", "url", "http://" + httpServer.getAddress().getHostString() + ":"
+                    + httpServer.getAddress().getPort() + "/metrics");
+            } catch (IOException e) {
+                server.getLog().warn("Could not start metrics endpoint", "error", e.getMessage());
+                httpServer = null;
+            }
+        }
+    }
+
+    void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpExecutor.shutdown();
+            httpServer = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                server.getLog().warn("Could not unregister JMX metrics", "error", e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return server.getClientCount();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getIdleDisconnects() {
+        return idleDisconnects.sum();
+    }
+
+    @Override
+    public long getThrottledConnections() {
+        return throttledConnections.sum();
+    }
+
+    @Override
+    public long getThrottledMessages() {
+        return throttledMessages.sum();
+    }
+
+    @Override
+    public long getSessionsResumed() {
+        return sessionsResumed.sum();
+    }
+
+    @Override
+    public long getSessionHoldsExpired() {
+        return sessionHoldsExpired.sum();
+    }
+
+    @Override
+    public long getClusterBatchesSent() {
+        return clusterBatchesSent.sum();
+    }
+
+    @Override
+    public long getClusterEventsSent() {
+        return clusterEventsSent.sum();
+    }
+
+    @Override
+    public long getClusterBytesSent() {
+        return clusterBytesSent.sum();
+    }
+
+    @Override
+    public long getClusterEventsReceived() {
+        return clusterEventsReceived.sum();
+    }
+
+    @Override
+    public long getClusterEventsDropped() {
+        return clusterEventsDropped.sum();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcastTime.count();
+    }
+
+    @Override
+    public double getBroadcastMeanMicros() {
+        long count = broadcastTime.count();
+        return count == 0 ? 0 : broadcastTime.sum() / 1000.0 / count;
+    }
+
+    @Override
+    public double getBroadcastP99Micros() {
+        return broadcastTime.percentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public long getOutboundBacklog() {
+        long total = 0;
+        for (ChatSession session : server.sessions()) {
+            total += session.getOutboundQueueDepth();
+        }
+        return total;
+    }
+
+    @Override
+    public int getMaxOutboundBacklog() {
+        int max = 0;
+        for (ChatSession session : server.sessions()) {
+            max = Math.max(max, session.getOutboundQueueDepth());
+        }
+        return max;
+    }
+
+    @Override
+    public String getCommandCounts() {
+        StringJoiner joiner = new StringJoiner(", ");
+        commands.forEach((command, count) -> joiner.add(command + "=" + count.sum()));
+        return joiner.toString();
+    }
+
+    /** All metrics in the Prometheus text exposition format. */
+    String toPrometheus() {
+        StringBuilder out = new StringBuilder(2048);
+        gauge(out, "messenger_connections_active", "Open client connections", getActiveConnections());
+        counter(out, "messenger_connections_accepted_total", "Accepted client connections", getAcceptedConnections());
+        counter(out, "messenger_connections_rejected_total", "Connections rejected because the server was full", getRejectedConnections());
+        counter(out, "messenger_connections_idle_closed_total", "Connections closed after the idle timeout", getIdleDisconnects());
+        counter(out, "messenger_connections_throttled_total", "Connections refused by the per-address accept rate limit", getThrottledConnections());
+        counter(out, "messenger_sessions_resumed_total", "Dropped connections resumed by the same client within the grace period", getSessionsResumed());
+        counter(out, "messenger_session_holds_expired_total", "Dropped connections not resumed within the grace period", getSessionHoldsExpired());
+        counter(out, "messenger_messages_received_total", "Lines or frames received from clients", getMessagesReceived());
+        counter(out, "messenger_messages_throttled_total", "Messages dropped by the per-session rate limits", getThrottledMessages());
+        counter(out, "messenger_messages_sent_total", "Lines or frames queued for clients", getMessagesSent());
+        counter(out, "messenger_bytes_received_total", "Bytes read from client sockets", getBytesReceived());
+        counter(out, "messenger_bytes_sent_total", "Bytes queued for client sockets", getBytesSent());
+        counter(out, "messenger_cluster_batches_sent_total", "Batches sent to other cluster nodes", getClusterBatchesSent());
+        counter(out, "messenger_cluster_events_sent_total", "Events sent to other cluster nodes", getClusterEventsSent());
+        counter(out, "messenger_cluster_bytes_sent_total", "Bytes sent to other cluster nodes", getClusterBytesSent());
+        counter(out, "messenger_cluster_events_received_total", "Events received from other cluster nodes", getClusterEventsReceived());
+        counter(out, "messenger_cluster_events_dropped_total", "Events dropped because a cluster node was unreachable", getClusterEventsDropped());
+        gauge(out, "messenger_outbound_backlog_frames", "Frames waiting in all outbound queues", getOutboundBacklog());
+        gauge(out, "messenger_outbound_backlog_max_frames", "Deepest single outbound queue", getMaxOutboundBacklog());
+
+        out.append("# HELP messenger_commands_total Commands received by name\n");
+        out.append("# TYPE messenger_commands_total counter\n");
+        commands.forEach((command, count) ->
+            out.append("messenger_commands_total{command=\"").append(command).append("\"} ").append(count.sum()).append('\n'));
+
+        broadcastTime.appendPrometheus(out, "messenger_broadcast_seconds", "Time to fan a message out to a room");
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Histogram with power-of-two buckets from 1µs to about 17s, one
+     * {@link LongAdder} per bucket. Percentiles are bucket upper bounds.
+     */
+    static final class LatencyHistogram {
+        private static final int BUCKETS = 25;
+        private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+        private final LongAdder sum = new LongAdder();
+
+        LatencyHistogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            // Rounded up, so a sample just over a bound is never counted below it
+            long micros = (Math.max(0, nanos) + 999) / 1000;
+            // Bucket i holds values up to 2^i µs; the last bucket is +Inf
+            int index = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+            buckets[Math.min(index, BUCKETS)].increment();
+            sum.add(nanos);
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        /** Upper bound in nanoseconds of the bucket holding the given quantile. */
+        long percentile(double quantile) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBoundMicros(Math.min(i, BUCKETS - 1)) * 1000;
+                }
+            }
+            return upperBoundMicros(BUCKETS - 1) * 1000;
+        }
+
+        private static long upperBoundMicros(int index) {
+            return 1L << index;
+        }
+
+        void appendPrometheus(StringBuilder out, String name, String help) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket{le=\"")
+                    .append(String.format(Locale.ROOT, "%.6f", upperBoundMicros(i) / 1e6))
+                    .append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += buckets[BUCKETS].sum();
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum ").append(String.format(Locale.ROOT, "%.9f", sum.sum() / 1e9)).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+}
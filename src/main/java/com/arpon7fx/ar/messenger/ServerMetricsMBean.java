@@ -0,0 +1,54 @@
+package com.arpon7fx.ar.messenger;
+
+/**
+ * JMX view of {@link ServerMetrics}, registered as
+ * {@code com.arpon7fx.ar.messenger:type=ChatServer,port=<port>}.
+ * Counters are totals since the server was created; rates are left to the monitoring tool.
+ */
+public interface ServerMetricsMBean {
+    int getActiveConnections();
+
+    long getAcceptedConnections();
+
+    long getRejectedConnections();
+
+    long getIdleDisconnects();
+
+    long getThrottledConnections();
+
+    long getThrottledMessages();
+
+    long getSessionsResumed();
+
+    long getSessionHoldsExpired();
+
+    long getClusterBatchesSent();
+
+    long getClusterEventsSent();
+
+    long getClusterBytesSent();
+
+    long getClusterEventsReceived();
+
+    long getClusterEventsDropped();
+
+    long getMessagesReceived();
+
+    long getMessagesSent();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    long getBroadcasts();
+
+    double getBroadcastMeanMicros();
+
+    double getBroadcastP99Micros();
+
+    long getOutboundBacklog();
+
+    int getMaxOutboundBacklog();
+
+    String getCommandCounts();
+}
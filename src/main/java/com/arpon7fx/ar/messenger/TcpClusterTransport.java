@@ -0,0 +1,284 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full TCP mesh between the cluster nodes. Each node listens on its own
+ * address and keeps one outbound connection to every peer, so each direction
+ * of a pair is a single ordered stream. Outbound links reconnect on their own
+ * with capped backoff; batches queued while a peer is down are dropped.
+ *
+ * <pre>
+ * connection := nodeId:i32 batch*
+ * batch      := length:i32 bytes[length]
+ * </pre>
+ */
+final class TcpClusterTransport implements ClusterTransport {
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 2000;
+    private static final int MAX_QUEUED_BATCHES = 10_000;
+    static final int MAX_BATCH_LENGTH = 16 * 1024 * 1024;
+
+    private final int nodeId;
+    private final List<InetSocketAddress> nodes;
+    private final ServerLog log;
+    private final Link[] links;
+    // Current inbound connection per peer; a newer one replaces the old
+    private final Socket[] inbound;
+    private volatile boolean running;
+    private volatile Receiver receiver;
+    private ServerSocket serverSocket;
+
+    TcpClusterTransport(int nodeId, List<String> nodes, ServerLog log) {
+        if (nodeId >= nodes.size()) {
+            throw new IllegalArgumentException("Cluster node id " + nodeId + " is not in the list of " + nodes.size() + " nodes");
+        }
+        this.nodeId = nodeId;
+        this.nodes = nodes.stream().map(TcpClusterTransport::parseAddress).toList();
+        this.log = log;
+        this.links = new Link[nodes.size()];
+        this.inbound = new Socket[nodes.size()];
+    }
+
+    // "host:port"
+    static InetSocketAddress parseAddress(String node) {
+        int colon = node.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Cluster node must be host:port: " + node);
+        }
+        return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    @Override
+    public int nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public int nodeCount() {
+        return nodes.size();
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        this.receiver = receiver;
+        running = true;
+        serverSocket = new ServerSocket();
+        serverSocket.bind(nodes.get(nodeId));
+        startThread("Cluster-accept", this::acceptLoop);
+        for (int i = 0; i < links.length; i++) {
+            if (i != nodeId) {
+                links[i] = new Link(i);
+                startThread("Cluster-link-" + i, links[i]::run);
+            }
+        }
+        log.info("Cluster transport started", "node", nodeId, "address", nodes.get(nodeId), "nodes", nodes.size());
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public boolean send(int node, ByteBuffer batch) {
+        Link link = links[node];
+        return link != null && link.offer(batch);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ignored) {
+            // Closing anyway
+        }
+        for (Link link : links) {
+            if (link != null) {
+                link.close();
+            }
+        }
+        synchronized (inbound) {
+            for (Socket socket : inbound) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                startThread("Cluster-inbound", () -> readLoop(socket));
+            } catch (IOException e) {
+                if (running) {
+                    log.warn("Error accepting cluster connection", "error", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        int from = -1;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            from = in.readInt();
+            if (from < 0 || from >= nodes.size() || from == nodeId) {
+                throw new IOException("Unknown cluster node " + from);
+            }
+            Socket previous;
+            synchronized (inbound) {
+                previous = inbound[from];
+                inbound[from] = socket;
+            }
+            if (previous != null) {
+                // The peer restarted; forget what its previous incarnation announced
+                closeQuietly(previous);
+                receiver.onPeerDown(from);
+            }
+            byte[] buffer = new byte[64 * 1024];
+            while (running) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_BATCH_LENGTH) {
+                    throw new IOException("Cluster batch of " + length + " bytes");
+                }
+                if (length > buffer.length) {
+                    buffer = new byte[length];
+                }
+                in.readFully(buffer, 0, length);
+                receiver.onBatch(from, ByteBuffer.wrap(buffer, 0, length));
+            }
+        } catch (EOFException e) {
+            // Peer closed the connection
+        } catch (IOException e) {
+            if (running) {
+                log.warn("Cluster connection lost", "node", from, "error", e.getMessage());
+            }
+        }
+        if (from >= 0) {
+            boolean current;
+            synchronized (inbound) {
+                current = inbound[from] == socket;
+                if (current) {
+                    inbound[from] = null;
+                }
+            }
+            if (current && running) {
+                receiver.onPeerDown(from);
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+
+    /** Outbound connection to one peer with its own writer thread. */
+    private final class Link {
+        private final int node;
+        private final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>(MAX_QUEUED_BATCHES);
+        private volatile boolean connected;
+        private volatile Socket socket;
+
+        Link(int node) {
+            this.node = node;
+        }
+
+        boolean offer(ByteBuffer batch) {
+            return connected && queue.offer(batch);
+        }
+
+        void run() {
+            long delay = 50;
+            while (running) {
+                try (Socket connection = new Socket()) {
+                    socket = connection;
+                    connection.connect(nodes.get(node), CONNECT_TIMEOUT_MILLIS);
+                    connection.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), 64 * 1024));
+                    out.writeInt(nodeId);
+                    out.flush();
+                    connected = true;
+                    delay = 50;
+                    log.info("Connected to cluster node", "node", node, "address", nodes.get(node));
+                    receiver.onPeerUp(node);
+                    writeLoop(out);
+                } catch (IOException e) {
+                    if (running && connected) {
+                        log.warn("Lost cluster node", "node", node, "error", e.getMessage());
+                    }
+                }
+                connected = false;
+                queue.clear();
+                if (running) {
+                    sleep(delay);
+                    delay = Math.min(MAX_RECONNECT_DELAY_MILLIS, delay * 2);
+                }
+            }
+        }
+
+        private void writeLoop(DataOutputStream out) throws IOException {
+            while (running) {
+                ByteBuffer batch;
+                try {
+                    batch = queue.poll(500, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (batch == null) {
+                    continue;
+                }
+                // Everything already queued goes out with a single flush
+                do {
+                    out.writeInt(batch.remaining());
+                    if (batch.hasArray()) {
+                        out.write(batch.array(), batch.arrayOffset() + batch.position(), batch.remaining());
+                    } else {
+                        byte[] bytes = new byte[batch.remaining()];
+                        batch.get(bytes);
+                        out.write(bytes);
+                    }
+                } while ((batch = queue.poll()) != null);
+                out.flush();
+            }
+        }
+
+        void close() {
+            connected = false;
+            closeQuietly(socket);
+        }
+
+        private void sleep(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
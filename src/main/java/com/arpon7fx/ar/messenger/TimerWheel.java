@@ -0,0 +1,128 @@
+package com.arpon7fx.ar.messenger;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToLongFunction;
+
+/**
+ * Hashed timer wheel run by a single thread. Deadlines are hashed into a
+ * fixed ring of buckets by tick; each tick only visits one bucket, so
+ * scheduling is O(1) and the thread's work per tick is proportional to the
+ * timers due, not to the number of timers held. One wheel comfortably tracks
+ * a timeout for every one of 100k connections.
+ *
+ * <p>Timers are meant to be checked lazily: instead of rescheduling on every
+ * bit of activity, the expiry callback looks at the item's current state and
+ * returns a new deadline to keep going, or a negative value to drop the timer.
+ * Deadlines are {@link System#currentTimeMillis()} values; expiry may run up
+ * to one tick late.
+ */
+final class TimerWheel<T> {
+    private static final class Timer<T> {
+        final T item;
+        long deadline;
+        Timer<T> next;
+
+        Timer(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timer<T>[] buckets;
+    private final int mask;
+    private final ToLongFunction<T> onExpire;
+    private final ServerLog log;
+    // Scheduled from any thread, moved into the buckets by the wheel thread
+    private final ConcurrentLinkedQueue<Timer<T>> pending = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long tick;
+    // Ticks follow the monotonic clock so wall clock jumps cannot stall the wheel
+    private long nextTickNanos;
+
+    /**
+     * @param wheelSize number of buckets, rounded up to a power of two
+     * @param onExpire called on the wheel thread once an item's deadline passes;
+     *                 returns the item's next deadline, or a negative value to forget it
+     * @param log where callback failures are reported
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(String name, long tickMillis, int wheelSize, ToLongFunction<T> onExpire, ServerLog log) {
+        this.tickMillis = Math.max(1, tickMillis);
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.buckets = (Timer<T>[]) new Timer[size];
+        this.mask = size - 1;
+        this.onExpire = onExpire;
+        this.log = log;
+        this.nextTickNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.tickMillis);
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Safe to call from any thread. */
+    void schedule(T item, long deadlineMillis) {
+        pending.offer(new Timer<>(item, deadlineMillis));
+    }
+
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        while (running) {
+            long wait = nextTickNanos - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            tick++;
+            nextTickNanos += tickNanos;
+            long now = System.currentTimeMillis();
+            Timer<T> timer;
+            while ((timer = pending.poll()) != null) {
+                place(timer, now);
+            }
+            expire(now);
+        }
+    }
+
+    private void place(Timer<T> timer, long now) {
+        // Always at least the next tick; far deadlines wrap around and wait out extra rotations
+        long ticksAhead = Math.max(1, (timer.deadline - now + tickMillis - 1) / tickMillis);
+        int index = (int) ((tick + ticksAhead) & mask);
+        timer.next = buckets[index];
+        buckets[index] = timer;
+    }
+
+    private void expire(long now) {
+        int index = (int) (tick & mask);
+        Timer<T> timer = buckets[index];
+        buckets[index] = null;
+        while (timer != null) {
+            Timer<T> next = timer.next;
+            if (timer.deadline > now) {
+                // Due in a later rotation, or the clocks drifted apart by a tick
+                place(timer, now);
+            } else {
+                long deadline;
+                try {
+                    deadline = onExpire.applyAsLong(timer.item);
+                } catch (RuntimeException e) {
+                    log.error("Timer callback failed", "error", e.toString());
+                    deadline = -1;
+                }
+                if (deadline >= 0) {
+                    timer.deadline = deadline;
+                    place(timer, now);
+                }
+            }
+            timer = next;
+        }
+    }
+}
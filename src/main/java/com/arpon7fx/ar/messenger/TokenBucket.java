@@ -0,0 +1,66 @@
+package com.arpon7fx.ar.messenger;
+
+/**
+ * Token bucket: holds up to {@code capacity} tokens and refills at a steady
+ * rate, so short bursts pass while the long-run rate stays bounded. Refilled
+ * lazily from {@link System#nanoTime()} on each check; no timer thread.
+ *
+ * <p>Not thread-safe. Each bucket belongs to a single thread, e.g. the reader
+ * of one session or the accept loop.
+ */
+final class TokenBucket {
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(double ratePerSecond, double capacity) {
+        this.capacity = capacity;
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /** A bucket for {@code ratePerSecond}, or null (no limit) when the rate is not positive. */
+    static TokenBucket perSecond(double ratePerSecond, double burstSeconds, double minCapacity) {
+        return ratePerSecond > 0 ? new TokenBucket(ratePerSecond, Math.max(minCapacity, ratePerSecond * burstSeconds)) : null;
+    }
+
+    boolean tryAcquire(double count) {
+        if (!canAcquire(count)) {
+            return false;
+        }
+        tokens -= count;
+        return true;
+    }
+
+    boolean canAcquire(double count) {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        return tokens >= count;
+    }
+
+    /** True once the bucket has refilled completely, i.e. it has been idle for a while. */
+    boolean isFull() {
+        canAcquire(0);
+        return tokens >= capacity;
+    }
+
+    /**
+     * Takes from two buckets only if both have enough, e.g. a message budget and
+     * a byte budget; a null bucket means no limit.
+     */
+    static boolean tryAcquire(TokenBucket first, double firstCount, TokenBucket second, double secondCount) {
+        if ((first != null && !first.canAcquire(firstCount)) || (second != null && !second.canAcquire(secondCount))) {
+            return false;
+        }
+        if (first != null) {
+            first.tokens -= firstCount;
+        }
+        if (second != null) {
+            second.tokens -= secondCount;
+        }
+        return true;
+    }
+}
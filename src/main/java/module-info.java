@@ -1,6 +1,8 @@
 module com.arpon7fx.ar.messenger {
     requires javafx.controls;
     requires javafx.fxml;
+    requires java.management;
+    requires jdk.httpserver;
 
 
     opens com.arpon7fx.ar.messenger to javafx.fxml;
@@ -0,0 +1,253 @@
+package com.arpon7fx.ar.messenger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class BinaryCodecTest {
+
+    /** A decoded frame with its payload copied out. */
+    private record Frame(byte type, long id, byte[] payload) {
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Frame frame && type == frame.type && id == frame.id
+                && Arrays.equals(payload, frame.payload);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(id) + Arrays.hashCode(payload);
+        }
+
+        @Override
+        public String toString() {
+            return "Frame[" + type + ", " + id + ", " + payload.length + " bytes]";
+        }
+    }
+
+    @Test
+    void roundTripsTextFrames() throws IOException {
+        Frame frame = decodeOne(BinaryCodec.encode(BinaryCodec.CHAT, 7, "héllo: wörld\nline two", false));
+        assertEquals(BinaryCodec.CHAT, frame.type());
+        assertEquals(7, frame.id());
+        assertEquals("héllo: wörld\nline two", BinaryCodec.readRemaining(ByteBuffer.wrap(frame.payload())));
+    }
+
+    @Test
+    void roundTripsSenderAndBodyFrames() throws IOException {
+        Frame frame = decodeOne(BinaryCodec.encode(BinaryCodec.MESSAGE, Long.MAX_VALUE, "ålice", "a:b:c", false));
+        assertEquals(Long.MAX_VALUE, frame.id());
+        ByteBuffer payload = ByteBuffer.wrap(frame.payload());
+        assertEquals("ålice", BinaryCodec.readString(payload));
+        assertEquals("a:b:c", BinaryCodec.readRemaining(payload));
+    }
+
+    @Test
+    void roundTripsLists() throws IOException {
+        String[] users = {"alice", "", "bøb", "carol"};
+        Frame frame = decodeOne(BinaryCodec.encodeList(BinaryCodec.USERS, 300, users, false));
+        assertEquals(300, frame.id());
+        assertArrayEquals(users, BinaryCodec.readList(ByteBuffer.wrap(frame.payload())));
+        Frame empty = decodeOne(BinaryCodec.encodeList(BinaryCodec.USERS, 0, new String[0], false));
+        assertArrayEquals(new String[0], BinaryCodec.readList(ByteBuffer.wrap(empty.payload())));
+    }
+
+    @Test
+    void encodesTheSameBytesIntoDirectBuffers() {
+        ByteBuffer heap = BinaryCodec.encode(BinaryCodec.PRIVATE, 42, "alice", "psst", false);
+        ByteBuffer direct = BinaryCodec.encode(BinaryCodec.PRIVATE, 42, "alice", "psst", true);
+        assertTrue(direct.isDirect());
+        assertTrue(direct.isReadOnly());
+        assertEquals(heap, direct);
+    }
+
+    @Test
+    void roundTripsVarintsAtEveryWidth() throws IOException {
+        long[] values = {0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, 1L << 56, Long.MAX_VALUE, -1};
+        for (long value : values) {
+            ByteBuffer buffer = ByteBuffer.allocate(10);
+            BinaryCodec.writeVarint(buffer, value);
+            assertEquals(BinaryCodec.varintSize(value), buffer.position(), "size of " + value);
+            buffer.flip();
+            assertEquals(value, BinaryCodec.readVarint(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    void leavesIncompleteVarintsUnread() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {(byte) 0x80, (byte) 0x80});
+        assertEquals(-1, BinaryCodec.readVarint(buffer));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    void rejectsOverlongVarints() {
+        byte[] bytes = new byte[11];
+        Arrays.fill(bytes, (byte) 0xFF);
+        assertThrows(IOException.class, () -> BinaryCodec.readVarint(ByteBuffer.wrap(bytes)));
+    }
+
+    @Test
+    void rejectsMalformedVarintsInFrameHeaders() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(BinaryCodec.CHAT);
+        for (int i = 0; i < 11; i++) {
+            bytes.write(0xFF);
+        }
+        assertThrows(IOException.class, () -> decodeAll(new BinaryCodec.Decoder(false), bytes.toByteArray()));
+    }
+
+    @Test
+    void rejectsTruncatedStringsAndLists() {
+        ByteBuffer string = ByteBuffer.allocate(4);
+        BinaryCodec.writeVarint(string, 10);
+        string.put((byte) 'a').flip();
+        assertThrows(IOException.class, () -> BinaryCodec.readString(string));
+
+        ByteBuffer list = ByteBuffer.allocate(4);
+        BinaryCodec.writeVarint(list, 100);
+        list.flip();
+        assertThrows(IOException.class, () -> BinaryCodec.readList(list));
+    }
+
+    @Test
+    void acceptsFramesUpToTheMaximumLength() throws IOException {
+        String text = "x".repeat(BinaryCodec.MAX_FRAME_LENGTH);
+        Frame frame = decodeOne(BinaryCodec.encode(BinaryCodec.CHAT, 1, text, false));
+        assertEquals(BinaryCodec.MAX_FRAME_LENGTH, frame.payload().length);
+    }
+
+    @Test
+    void rejectsOversizeFramesFromTheHeaderAlone() {
+        // Only the header: the decoder must not wait for (or buffer) the payload
+        ByteBuffer header = ByteBuffer.allocate(16);
+        header.put(BinaryCodec.CHAT);
+        BinaryCodec.writeVarint(header, 1);
+        BinaryCodec.writeVarint(header, BinaryCodec.MAX_FRAME_LENGTH + 1);
+        header.flip();
+        IOException e = assertThrows(IOException.class,
+            () -> new BinaryCodec.Decoder(false).decode(header, (type, id, payload) -> true));
+        assertTrue(e.getMessage().contains(String.valueOf(BinaryCodec.MAX_FRAME_LENGTH)));
+    }
+
+    @Test
+    void decodesFramesSplitAtEveryByte() throws IOException {
+        byte[] stream = concat(
+            BinaryCodec.preface(),
+            BinaryCodec.encode(BinaryCodec.HELLO, 0, "alice", false),
+            BinaryCodec.encode(BinaryCodec.CHAT, 200, "x".repeat(300), false),
+            BinaryCodec.encode(BinaryCodec.HEARTBEAT, 0, "", false),
+            BinaryCodec.encode(BinaryCodec.RESUME, 1L << 40, "alice", "token", false));
+        List<Frame> expected = decodeAll(new BinaryCodec.Decoder(true), stream);
+        assertEquals(4, expected.size());
+
+        for (int split = 0; split <= stream.length; split++) {
+            BinaryCodec.Decoder decoder = new BinaryCodec.Decoder(true);
+            List<Frame> frames = new ArrayList<>();
+            decoder.decode(ByteBuffer.wrap(stream, 0, split), collector(frames));
+            decoder.decode(ByteBuffer.wrap(stream, split, stream.length - split), collector(frames));
+            assertEquals(expected, frames, "split at " + split);
+            assertEquals(BinaryCodec.VERSION, decoder.version());
+        }
+
+        BinaryCodec.Decoder decoder = new BinaryCodec.Decoder(true);
+        List<Frame> frames = new ArrayList<>();
+        for (byte b : stream) {
+            decoder.decode(ByteBuffer.wrap(new byte[] {b}), collector(frames));
+        }
+        assertEquals(expected, frames, "one byte at a time");
+    }
+
+    @Test
+    void stopsWhenTheHandlerAsksTo() throws IOException {
+        byte[] stream = concat(
+            BinaryCodec.encode(BinaryCodec.CHAT, 1, "one", false),
+            BinaryCodec.encode(BinaryCodec.CHAT, 2, "two", false));
+        List<Frame> frames = new ArrayList<>();
+        boolean more = new BinaryCodec.Decoder(false).decode(ByteBuffer.wrap(stream), (type, id, payload) -> {
+            collector(frames).onFrame(type, id, payload);
+            return false;
+        });
+        assertFalse(more);
+        assertEquals(1, frames.size());
+    }
+
+    @Test
+    void acceptsEverySupportedVersion() throws IOException {
+        for (byte version = BinaryCodec.MIN_VERSION; version <= BinaryCodec.VERSION; version++) {
+            BinaryCodec.Decoder decoder = new BinaryCodec.Decoder(true);
+            decoder.decode(ByteBuffer.wrap(new byte[] {BinaryCodec.MAGIC, version}), (type, id, payload) -> true);
+            assertEquals(version, decoder.version());
+        }
+    }
+
+    @Test
+    void rejectsABadPreface() throws IOException {
+        byte[][] prefaces = {
+            {'h', 'i'},
+            {BinaryCodec.MAGIC, 0},
+            {BinaryCodec.MAGIC, BinaryCodec.VERSION + 1}
+        };
+        for (byte[] preface : prefaces) {
+            assertThrows(IOException.class,
+                () -> new BinaryCodec.Decoder(true).decode(ByteBuffer.wrap(preface), (type, id, payload) -> true),
+                Arrays.toString(preface));
+        }
+        // Half a preface is not an error yet
+        BinaryCodec.Decoder decoder = new BinaryCodec.Decoder(true);
+        assertTrue(decoder.decode(ByteBuffer.wrap(new byte[] {BinaryCodec.MAGIC}), (type, id, payload) -> true));
+        assertEquals(0, decoder.version());
+    }
+
+    @Test
+    void flattensLineBreaksForTextRecipients() {
+        assertEquals("a b c d", BinaryCodec.toSingleLine("a\r\nb\nc\rd"));
+        String plain = "no breaks";
+        assertTrue(plain == BinaryCodec.toSingleLine(plain));
+    }
+
+    private static Frame decodeOne(ByteBuffer encoded) throws IOException {
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.duplicate().get(bytes);
+        List<Frame> frames = decodeAll(new BinaryCodec.Decoder(false), bytes);
+        assertEquals(1, frames.size());
+        return frames.get(0);
+    }
+
+    private static List<Frame> decodeAll(BinaryCodec.Decoder decoder, byte[] bytes) throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        decoder.decode(ByteBuffer.wrap(bytes), collector(frames));
+        return frames;
+    }
+
+    private static BinaryCodec.FrameHandler collector(List<Frame> frames) {
+        return (type, id, payload) -> {
+            byte[] copy = new byte[payload.remaining()];
+            payload.get(copy);
+            frames.add(new Frame(type, id, copy));
+            return true;
+        };
+    }
+
+    private static byte[] concat(ByteBuffer... buffers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            out.writeBytes(bytes);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,47 @@
+package com.arpon7fx.ar.messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ChatMessageTest {
+    private static final long TIME = 1234;
+
+    @Test
+    void parsesNotices() {
+        assertEquals(ChatMessage.system("Welcome: everyone", TIME), ChatMessage.parseLine("SYSTEM:Welcome: everyone", TIME));
+        assertEquals(ChatMessage.error("Rate limit exceeded", TIME), ChatMessage.parseLine("ERROR:Rate limit exceeded", TIME));
+    }
+
+    @Test
+    void parsesUserLists() {
+        assertEquals(List.of("alice", "bob", "carol"), ChatMessage.parseLine("USERS:alice,bob,carol", TIME).users());
+        assertEquals(List.of("alice"), ChatMessage.parseLine("USERS:alice", TIME).users());
+        ChatMessage empty = ChatMessage.parseLine("USERS:", TIME);
+        assertEquals(ChatMessage.Kind.USERS, empty.kind());
+        assertEquals(List.of(), empty.users());
+    }
+
+    @Test
+    void parsesChatWithColonsInTheBody() {
+        assertEquals(ChatMessage.chat(0, "alice", "see: 10:30", TIME), ChatMessage.parseLine("alice:see: 10:30", TIME));
+        assertEquals(ChatMessage.chat(0, "alice", "", TIME), ChatMessage.parseLine("alice:", TIME));
+    }
+
+    @Test
+    void parsesWhispers() {
+        assertEquals(ChatMessage.whisper(0, "bob", "psst: secret", TIME),
+            ChatMessage.parseLine("PRIVATE:bob (whisper): psst: secret", TIME));
+        // Confirmations to the sender carry no marker
+        assertEquals(ChatMessage.system("Whisper sent to bob", TIME), ChatMessage.parseLine("PRIVATE:Whisper sent to bob", TIME));
+    }
+
+    @Test
+    void treatsAnythingElseAsASystemNotice() {
+        assertEquals(ChatMessage.system("no colon here", TIME), ChatMessage.parseLine("no colon here", TIME));
+        assertEquals(ChatMessage.system(":leading colon", TIME), ChatMessage.parseLine(":leading colon", TIME));
+        assertEquals(ChatMessage.system("", TIME), ChatMessage.parseLine("", TIME));
+    }
+}
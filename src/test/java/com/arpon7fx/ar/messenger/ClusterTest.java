@@ -0,0 +1,265 @@
+package com.arpon7fx.ar.messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * End-to-end checks of a three-node cluster on loopback, driven by plain
+ * text protocol clients: per-sender ordering across nodes, cluster-wide
+ * username uniqueness, whispers between nodes and logins that wait for the
+ * node owning their name.
+ */
+class ClusterTest {
+    private static final int NODES = 3;
+    private static final long TIMEOUT_MILLIS = TextClient.TIMEOUT_MILLIS;
+
+    private final List<ChatServer> servers = new ArrayList<>();
+    private final List<TextClient> clients = new ArrayList<>();
+    private int[] ports;
+
+    @AfterEach
+    void tearDown() {
+        clients.forEach(TextClient::close);
+        servers.forEach(ChatServer::stop);
+    }
+
+    @Test
+    void deliversEverySendersMessagesInOrderOverTcp() throws Exception {
+        startCluster(ServerConfig.Engine.NIO, false);
+        checkOrdering(5, 500);
+    }
+
+    @Test
+    void deliversEverySendersMessagesInOrderInProcess() throws Exception {
+        startCluster(ServerConfig.Engine.BLOCKING, true);
+        checkOrdering(5, 500);
+    }
+
+    @Test
+    void grantsANameToExactlyOneOfSimultaneousLogins() throws Exception {
+        startCluster(ServerConfig.Engine.NIO, false);
+        for (int round = 0; round < 20; round++) {
+            String name = "dup" + round;
+            CountDownLatch go = new CountDownLatch(1);
+            AtomicInteger winners = new AtomicInteger();
+            List<Thread> threads = new ArrayList<>();
+            for (int node = 0; node < NODES; node++) {
+                TextClient client = track(TextClient.connect(ports[node], name));
+                Thread thread = new Thread(() -> {
+                    try {
+                        go.await();
+                        client.send(name);
+                        String first = client.lines.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                        if (first != null && first.startsWith("USERS:")) {
+                            winners.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            go.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(1, winners.get(), "'" + name + "' granted to " + winners.get() + " clients");
+        }
+    }
+
+    @Test
+    void routesWhispersToOtherNodes() throws Exception {
+        startCluster(ServerConfig.Engine.NIO, false);
+        TextClient from = track(TextClient.login(ports[0], "whisperer"));
+        TextClient to = track(TextClient.login(ports[NODES - 1], "listener"));
+        assertTrue(from.awaitUserCount(2) && to.awaitUserCount(2), "whisper clients never saw each other");
+
+        from.send("/whisper listener psst", "/whisper nobody psst");
+        assertEquals(List.of(), to.expect("PRIVATE:whisperer (whisper): psst"));
+        // The remote answer may come after the local one
+        assertEquals(List.of(), from.expect("SYSTEM:Whisper sent to listener", "SYSTEM:User nobody not found"));
+    }
+
+    @Test
+    void holdsInputSentWhileTheOwnerNodeGrantsTheName() throws Exception {
+        checkHeldLogin(ServerConfig.Engine.NIO);
+    }
+
+    @Test
+    void holdsInputSentWhileTheOwnerNodeGrantsTheNameOnBlockingEngine() throws Exception {
+        checkHeldLogin(ServerConfig.Engine.BLOCKING);
+    }
+
+    private void checkHeldLogin(ServerConfig.Engine engine) throws Exception {
+        startCluster(engine, false);
+        TextClient listener = track(TextClient.login(ports[0], "listener"));
+        assertTrue(listener.awaitUserCount(1));
+
+        // Login and chat in one write, for a name node 0 has to ask another node for
+        String name = nameOwnedElsewhere(0);
+        TextClient late = TextClient.connect(ports[0], name);
+        track(late).send(name, "first", "/ping", "second");
+
+        assertEquals(List.of(), listener.expect(name + ":first", name + ":second"));
+        assertEquals(List.of(), late.expect("SYSTEM:Pong! Server is alive."));
+    }
+
+    private void checkOrdering(int clientsPerNode, int messages) throws Exception {
+        List<TextClient> senders = new ArrayList<>();
+        for (int node = 0; node < NODES; node++) {
+            for (int i = 0; i < clientsPerNode; i++) {
+                senders.add(track(TextClient.login(ports[node], "n" + node + "c" + i)));
+            }
+        }
+        int total = senders.size();
+        // Presence has propagated everywhere once every client sees the full user list
+        for (TextClient client : senders) {
+            assertTrue(client.awaitUserCount(total), client.name + " never saw all " + total + " users");
+        }
+
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (TextClient client : senders) {
+            Thread thread = new Thread(() -> {
+                try {
+                    go.await();
+                    for (int k = 0; k < messages; k++) {
+                        client.queue("seq:" + k);
+                    }
+                    client.flush();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        go.countDown();
+
+        int expected = (total - 1) * messages;
+        for (TextClient client : senders) {
+            Map<String, Integer> next = new HashMap<>();
+            int received = 0;
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (received < expected) {
+                String line = client.poll(deadline);
+                assertNotNull(line, client.name + " received " + received + " of " + expected + " messages");
+                int marker = line.indexOf(":seq:");
+                if (marker < 0) {
+                    continue;
+                }
+                String sender = line.substring(0, marker);
+                int sequence = Integer.parseInt(line.substring(marker + 5));
+                int wanted = next.getOrDefault(sender, 0);
+                assertEquals(wanted, sequence, client.name + " got " + sender + " out of order");
+                next.put(sender, wanted + 1);
+                received++;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void startCluster(ServerConfig.Engine engine, boolean inProcess) throws Exception {
+        // Client ports are picked by each server; the cluster addresses must be known up front
+        ports = new int[NODES];
+        List<String> clusterNodes = new ArrayList<>();
+        for (int port : freePorts(NODES)) {
+            clusterNodes.add("127.0.0.1:" + port);
+        }
+        InProcessClusterTransport.Hub hub = inProcess ? new InProcessClusterTransport.Hub(NODES) : null;
+        List<CompletableFuture<Integer>> started = new ArrayList<>();
+        for (int node = 0; node < NODES; node++) {
+            ServerConfig config = new ServerConfig()
+                .setEngine(engine)
+                .setPort(0)
+                .setMaxClients(0)
+                .setHistoryEnabled(false)
+                .setJmxEnabled(false)
+                .setLogLevel(ServerConfig.LogLevel.WARN)
+                .setOutboundQueueCapacity(1 << 16)
+                .setAcceptsPerSecondPerAddress(0)
+                .setChatMessagesPerSecond(0)
+                .setChatBytesPerSecond(0)
+                .setCommandMessagesPerSecond(0)
+                .setCommandBytesPerSecond(0)
+                .setClusterNodes(clusterNodes)
+                .setClusterNodeId(node);
+            ChatServer server = new ChatServer(config, hub != null ? hub.transport(node) : null);
+            servers.add(server);
+            started.add(server.startAsync());
+        }
+        for (int node = 0; node < NODES; node++) {
+            ports[node] = started.get(node).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        awaitMesh();
+    }
+
+    /**
+     * Waits until every node hears from every other one. Until then a claim sent
+     * to an unreachable owner is refused, so probe logins are retried.
+     */
+    private void awaitMesh() throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        for (int attempt = 0; System.currentTimeMillis() < deadline; attempt++) {
+            List<TextClient> probes = new ArrayList<>();
+            for (int node = 0; node < NODES; node++) {
+                probes.add(TextClient.login(ports[node], "probe" + attempt + "n" + node));
+            }
+            boolean meshed = true;
+            for (TextClient probe : probes) {
+                meshed &= probe.awaitUserCount(NODES, 1000);
+            }
+            probes.forEach(TextClient::close);
+            if (meshed) {
+                return;
+            }
+        }
+        throw new AssertionError("Cluster nodes never connected to each other");
+    }
+
+    // Same hash as ClusterNode.ownerOf()
+    private static String nameOwnedElsewhere(int node) {
+        for (int i = 0; ; i++) {
+            String name = "remote" + i;
+            if (Math.floorMod(name.hashCode(), NODES) != node) {
+                return name;
+            }
+        }
+    }
+
+    private TextClient track(TextClient client) {
+        clients.add(client);
+        return client;
+    }
+
+    private static int[] freePorts(int count) throws IOException {
+        ServerSocket[] sockets = new ServerSocket[count];
+        int[] ports = new int[count];
+        for (int i = 0; i < count; i++) {
+            sockets[i] = new ServerSocket(0);
+            ports[i] = sockets[i].getLocalPort();
+        }
+        for (ServerSocket socket : sockets) {
+            socket.close();
+        }
+        return ports;
+    }
+}
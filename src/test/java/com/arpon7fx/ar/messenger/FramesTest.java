@@ -0,0 +1,19 @@
+package com.arpon7fx.ar.messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class FramesTest {
+
+    @Test
+    void countsUtf8BytesWithoutEncoding() {
+        String[] texts = {"", "plain ascii", "héllo", "日本語", "emoji 😀 pair", "\u0080߿ࠀ￿",
+            "lone \uD800 high", "lone \uDC00 low", "trailing \uD83D"};
+        for (String text : texts) {
+            assertEquals(text.getBytes(StandardCharsets.UTF_8).length, Frames.utf8Length(text), text);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.arpon7fx.ar.messenger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Cluster transport for several nodes inside one JVM, for tests. Batches are
+ * copied and handed to the receiving node's single delivery thread, so they
+ * arrive asynchronously and in order, like over TCP.
+ *
+ * <pre>
+ * InProcessClusterTransport.Hub hub = new InProcessClusterTransport.Hub(3);
+ * new ChatServer(config, hub.transport(0));
+ * </pre>
+ */
+final class InProcessClusterTransport implements ClusterTransport {
+
+    /** The shared "network" of one in-process cluster. */
+    static final class Hub {
+        private final InProcessClusterTransport[] nodes;
+
+        Hub(int nodeCount) {
+            nodes = new InProcessClusterTransport[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                nodes[i] = new InProcessClusterTransport(this, i);
+            }
+        }
+
+        InProcessClusterTransport transport(int nodeId) {
+            return nodes[nodeId];
+        }
+    }
+
+    private final Hub hub;
+    private final int nodeId;
+    private volatile Receiver receiver;
+    private volatile ExecutorService delivery;
+
+    private InProcessClusterTransport(Hub hub, int nodeId) {
+        this.hub = hub;
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public int nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public int nodeCount() {
+        return hub.nodes.length;
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        synchronized (hub) {
+            delivery = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "Cluster-" + nodeId);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.receiver = receiver;
+            for (InProcessClusterTransport peer : hub.nodes) {
+                Receiver peerReceiver = peer.receiver;
+                if (peer != this && peerReceiver != null) {
+                    peer.deliver(() -> peerReceiver.onPeerUp(nodeId));
+                    deliver(() -> receiver.onPeerUp(peer.nodeId));
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean send(int node, ByteBuffer batch) {
+        InProcessClusterTransport peer = hub.nodes[node];
+        Receiver target = peer.receiver;
+        if (target == null) {
+            return false;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(batch.remaining());
+        copy.put(batch).flip();
+        return peer.deliver(() -> target.onBatch(nodeId, copy));
+    }
+
+    private boolean deliver(Runnable task) {
+        ExecutorService executor = delivery;
+        try {
+            if (executor != null) {
+                executor.execute(task);
+                return true;
+            }
+        } catch (RejectedExecutionException e) {
+            // Closing
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        synchronized (hub) {
+            if (receiver == null) {
+                return;
+            }
+            receiver = null;
+            delivery.shutdown();
+            for (InProcessClusterTransport peer : hub.nodes) {
+                Receiver peerReceiver = peer.receiver;
+                if (peer != this && peerReceiver != null) {
+                    peer.deliver(() -> peerReceiver.onPeerDown(nodeId));
+                }
+            }
+        }
+    }
+}
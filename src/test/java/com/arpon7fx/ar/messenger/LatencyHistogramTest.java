@@ -0,0 +1,39 @@
+package com.arpon7fx.ar.messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+    @Test
+    void countsSamplesAtOrBelowTheirBucketBound() {
+        assertEquals(1_000, bucketBoundOf(0));
+        assertEquals(1_000, bucketBoundOf(1_000));
+        assertEquals(2_000, bucketBoundOf(1_001));
+        assertEquals(2_000, bucketBoundOf(1_900));
+        assertEquals(2_000, bucketBoundOf(2_000));
+        assertEquals(4_000, bucketBoundOf(2_001));
+        assertEquals(1_024_000, bucketBoundOf(1_000_000));
+    }
+
+    @Test
+    void writesCumulativePrometheusBuckets() {
+        ServerMetrics.LatencyHistogram histogram = new ServerMetrics.LatencyHistogram();
+        histogram.record(1_900);
+        histogram.record(500);
+        StringBuilder out = new StringBuilder();
+        histogram.appendPrometheus(out, "test_seconds", "Test");
+        String text = out.toString();
+        assertTrue(text.contains("test_seconds_bucket{le=\"0.000001\"} 1\n"), text);
+        assertTrue(text.contains("test_seconds_bucket{le=\"0.000002\"} 2\n"), text);
+        assertTrue(text.contains("test_seconds_count 2\n"), text);
+    }
+
+    private static long bucketBoundOf(long nanos) {
+        ServerMetrics.LatencyHistogram histogram = new ServerMetrics.LatencyHistogram();
+        histogram.record(nanos);
+        return histogram.percentile(1.0);
+    }
+}
@@ -0,0 +1,63 @@
+package com.arpon7fx.ar.messenger;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class LifecycleTest {
+
+    @Test
+    void stopRacingStartLeavesNothingListening() throws Exception {
+        for (ServerConfig.Engine engine : ServerConfig.Engine.values()) {
+            for (int i = 0; i < 20; i++) {
+                ChatServer server = new ChatServer(config(engine));
+                CompletableFuture<Integer> started = server.startAsync();
+                server.stop();
+
+                Integer port;
+                try {
+                    port = started.get(TextClient.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    continue;
+                }
+                // Bound before stop() got there: it must still have been closed
+                awaitClosed(port);
+            }
+        }
+    }
+
+    @Test
+    void stopBeforeStartFailsTheStart() throws Exception {
+        ChatServer server = new ChatServer(config(ServerConfig.Engine.NIO));
+        server.stop();
+        CompletableFuture<Integer> started = server.startAsync();
+        assertThrows(ExecutionException.class, () -> started.get(TextClient.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private static ServerConfig config(ServerConfig.Engine engine) {
+        return new ServerConfig()
+            .setEngine(engine)
+            .setPort(0)
+            .setJmxEnabled(false)
+            .setLogLevel(ServerConfig.LogLevel.WARN);
+    }
+
+    private static void awaitClosed(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TextClient.TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                assertTrue(System.currentTimeMillis() < deadline, "still listening on " + port);
+                Thread.sleep(10);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.arpon7fx.ar.messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class LineDecoderTest {
+
+    @Test
+    void splitsLinesAndDropsCarriageReturns() throws IOException {
+        assertEquals(List.of("alice", "hi: there", "", "windows", "bare\rcr"),
+            decode(new LineDecoder(), "alice\nhi: there\n\nwindows\r\nbare\rcr\nunfinished"));
+    }
+
+    @Test
+    void decodesLinesSplitAtEveryByte() throws IOException {
+        // Multi-byte characters, so some splits land inside a UTF-8 sequence
+        byte[] stream = "héllo wörld\r\n日本語\n\nlast\n".getBytes(StandardCharsets.UTF_8);
+        List<String> expected = List.of("héllo wörld", "日本語", "", "last");
+
+        for (int split = 0; split <= stream.length; split++) {
+            LineDecoder decoder = new LineDecoder();
+            List<String> lines = new ArrayList<>();
+            decoder.decode(ByteBuffer.wrap(stream, 0, split), lines::add);
+            decoder.decode(ByteBuffer.wrap(stream, split, stream.length - split), lines::add);
+            assertEquals(expected, lines, "split at " + split);
+        }
+
+        LineDecoder decoder = new LineDecoder();
+        List<String> lines = new ArrayList<>();
+        for (byte b : stream) {
+            decoder.decode(ByteBuffer.wrap(new byte[] {b}), lines::add);
+        }
+        assertEquals(expected, lines, "one byte at a time");
+    }
+
+    @Test
+    void acceptsLinesUpToTheMaximumLength() throws IOException {
+        String line = "x".repeat(LineDecoder.DEFAULT_MAX_LINE_LENGTH);
+        assertEquals(List.of(line), decode(new LineDecoder(), line + "\n"));
+    }
+
+    @Test
+    void rejectsOverlongLinesBeforeTheNewlineArrives() {
+        LineDecoder decoder = new LineDecoder(16);
+        IOException e = assertThrows(IOException.class, () -> decode(decoder, "x".repeat(17)));
+        assertEquals("Line exceeds 16 bytes", e.getMessage());
+    }
+
+    @Test
+    void stopsWhenTheHandlerAsksTo() throws IOException {
+        List<String> lines = new ArrayList<>();
+        boolean more = new LineDecoder().decode(bytes("one\ntwo\n"), line -> {
+            lines.add(line);
+            return false;
+        });
+        assertFalse(more);
+        assertEquals(List.of("one"), lines);
+    }
+
+    private static List<String> decode(LineDecoder decoder, String text) throws IOException {
+        List<String> lines = new ArrayList<>();
+        decoder.decode(bytes(text), lines::add);
+        return lines;
+    }
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,188 @@
+package com.arpon7fx.ar.messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageLogTest {
+    // Small segments so a few hundred records span several files
+    private static final int SEGMENT_SIZE = 4096;
+
+    @TempDir
+    Path directory;
+
+    private ServerLog serverLog;
+    private MessageLog messageLog;
+
+    @BeforeEach
+    void setUp() {
+        serverLog = new ServerLog(new ServerConfig().setLogLevel(ServerConfig.LogLevel.WARN));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (messageLog != null) {
+            messageLog.close();
+        }
+        serverLog.close();
+    }
+
+    @Test
+    void readsBackWhatWasAppended() throws Exception {
+        open(16);
+        append(1, 300);
+        awaitWritten(300);
+
+        List<MessageLog.Entry> entries = messageLog.readSince(0, Integer.MAX_VALUE, entry -> true);
+        assertEquals(sequences(1, 300), sequencesOf(entries));
+        MessageLog.Entry entry42 = entries.get(41);
+        assertEquals("lobby", entry42.room());
+        assertEquals("user42", entry42.sender());
+        assertEquals("", entry42.target());
+        assertEquals("message 42: ünïcode", entry42.body());
+
+        assertEquals(sequences(101, 150), sequencesOf(messageLog.readSince(100, 50, entry -> true)));
+        assertEquals(sequences(291, 300), sequencesOf(messageLog.readLast(10, entry -> true)));
+        assertEquals(List.of(280L, 290L, 300L), sequencesOf(messageLog.readLast(3, e -> e.sequence() % 10 == 0)));
+    }
+
+    @Test
+    void readsTheLastRecordsAcrossIndexBlocksAndSegments() throws Exception {
+        open(16);
+        append(1, 300);
+        awaitWritten(300);
+
+        List<MessageLog.Entry> all = messageLog.readSince(0, Integer.MAX_VALUE, entry -> true);
+        for (int count : new int[] {1, 63, 64, 65, 100, 299, 300, 500}) {
+            List<MessageLog.Entry> expected = all.subList(Math.max(0, all.size() - count), all.size());
+            assertEquals(sequencesOf(expected), sequencesOf(messageLog.readLast(count, entry -> true)), "last " + count);
+        }
+        // Sparse matches, so the reader has to go back through several segments
+        assertEquals(List.of(7L, 107L, 207L), sequencesOf(messageLog.readLast(5, e -> e.sequence() % 100 == 7)));
+        assertEquals(List.of(), messageLog.readLast(0, entry -> true));
+    }
+
+    @Test
+    void recoversSequencesAndIndexesOnReopen() throws Exception {
+        open(16);
+        append(1, 300);
+        awaitWritten(300);
+        messageLog.close();
+
+        open(16);
+        assertEquals(300, messageLog.lastSequence());
+        assertEquals(sequences(1, 300), sequencesOf(messageLog.readSince(0, Integer.MAX_VALUE, entry -> true)));
+        // Rebuilt index: a read from the middle of a segment still starts at the right record
+        assertEquals(sequences(200, 204), sequencesOf(messageLog.readSince(199, 5, entry -> true)));
+
+        append(301, 310);
+        awaitWritten(310);
+        assertEquals(sequences(301, 310), sequencesOf(messageLog.readLast(10, entry -> true)));
+    }
+
+    @Test
+    void treatsATornRecordAsTheEndOfTheLog() throws Exception {
+        open(16);
+        append(1, 20);
+        awaitWritten(20);
+        messageLog.close();
+
+        // A crash between writing a record's body and its length leaves a zero length behind
+        Path segment = segmentFiles().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int position = 0;
+            for (int i = 0; i < 15; i++) {
+                ByteBuffer length = ByteBuffer.allocate(4);
+                channel.read(length, position);
+                position += 4 + length.flip().getInt();
+            }
+            channel.write(ByteBuffer.allocate(4), position);
+        }
+
+        open(16);
+        assertEquals(15, messageLog.lastSequence());
+        assertEquals(sequences(1, 15), sequencesOf(messageLog.readSince(0, Integer.MAX_VALUE, entry -> true)));
+
+        // Same length as the torn record, so the old records 17 to 20 would follow it unless cleared
+        append(16, 16);
+        awaitWritten(16);
+        messageLog.close();
+        open(16);
+        assertEquals(16, messageLog.lastSequence());
+        assertEquals(sequences(1, 16), sequencesOf(messageLog.readSince(0, Integer.MAX_VALUE, entry -> true)));
+    }
+
+    @Test
+    void keepsWritingTheBatchAfterARecordFails() throws Exception {
+        open(16);
+        append(1, 10);
+        // Larger than a segment, so writing it fails
+        assertEquals(11, messageLog.append(MessageLog.CHAT, "lobby", "big", null, "x".repeat(SEGMENT_SIZE)));
+        append(12, 20);
+        awaitWritten(20);
+
+        List<Long> written = sequencesOf(messageLog.readSince(0, Integer.MAX_VALUE, entry -> true));
+        assertEquals(19, written.size());
+        assertTrue(!written.contains(11L) && written.contains(12L));
+        assertEquals(1, messageLog.droppedCount());
+    }
+
+    @Test
+    void dropsTheOldestSegmentsPastTheLimit() throws Exception {
+        open(2);
+        append(1, 300);
+        awaitWritten(300);
+
+        assertEquals(2, segmentFiles().size());
+        List<Long> kept = sequencesOf(messageLog.readSince(0, Integer.MAX_VALUE, entry -> true));
+        assertTrue(kept.get(0) > 1, "oldest records still present");
+        assertEquals(300L, kept.get(kept.size() - 1));
+    }
+
+    private void open(int maxSegments) throws IOException {
+        messageLog = new MessageLog(directory, SEGMENT_SIZE, maxSegments, 10, serverLog);
+        messageLog.open();
+    }
+
+    private void append(long first, long last) {
+        for (long i = first; i <= last; i++) {
+            assertEquals(i, messageLog.append(MessageLog.CHAT, "lobby", "user" + i, null, "message " + i + ": ünïcode"));
+        }
+    }
+
+    private void awaitWritten(long sequence) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (messageLog.readLast(1, entry -> true).stream().noneMatch(e -> e.sequence() == sequence)) {
+            assertTrue(System.currentTimeMillis() < deadline, "record " + sequence + " never written");
+            Thread.sleep(5);
+        }
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().toList();
+        }
+    }
+
+    private static List<Long> sequences(long first, long last) {
+        return LongStream.rangeClosed(first, last).boxed().toList();
+    }
+
+    private static List<Long> sequencesOf(List<MessageLog.Entry> entries) {
+        return entries.stream().map(MessageLog.Entry::sequence).toList();
+    }
+}
@@ -0,0 +1,58 @@
+package com.arpon7fx.ar.messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+import com.arpon7fx.ar.messenger.ServerConfig.OverflowPolicy;
+
+class OutboundQueueTest {
+
+    @Test
+    void blockDropsAtOnceWhenTheCallerMayNotWait() {
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.BLOCK, 10_000);
+        assertTrue(queue.offer(frame(), false));
+        long start = System.nanoTime();
+        assertTrue(queue.offer(frame(), false));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1, queue.depth());
+        assertEquals(1, queue.droppedCount());
+    }
+
+    @Test
+    void awaitsRoomUntilTheWriterTakesAFrame() throws Exception {
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.BLOCK, 10_000);
+        queue.offer(frame(), false);
+        CompletableFuture<Void> waiter = CompletableFuture.runAsync(() -> {
+            queue.awaitRoom(() -> true);
+            queue.offer(frame(), false);
+        });
+        Thread.sleep(50);
+        assertTrue(!waiter.isDone());
+        queue.poll();
+        waiter.get(5, TimeUnit.SECONDS);
+        assertEquals(1, queue.depth());
+        assertEquals(0, queue.droppedCount());
+    }
+
+    @Test
+    void stopsWaitingForRoomOnceTheClientIsGone() throws Exception {
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.BLOCK, 10_000);
+        queue.offer(frame(), false);
+        AtomicBoolean connected = new AtomicBoolean(true);
+        CompletableFuture<Void> waiter = CompletableFuture.runAsync(() -> queue.awaitRoom(connected::get));
+        Thread.sleep(50);
+        connected.set(false);
+        waiter.get(5, TimeUnit.SECONDS);
+    }
+
+    private static ByteBuffer frame() {
+        return ByteBuffer.wrap(new byte[] {1});
+    }
+}
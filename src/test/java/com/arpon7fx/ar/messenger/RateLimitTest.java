@@ -0,0 +1,60 @@
+package com.arpon7fx.ar.messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class RateLimitTest {
+    private ChatServer server;
+    private TextClient client;
+
+    @AfterEach
+    void tearDown() {
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    void doesNotChargeHeartbeatsToTheCommandBudget() throws Exception {
+        int port = start(new ServerConfig().setCommandMessagesPerSecond(1));
+        client = TextClient.login(port, "alice");
+        assertTrue(client.awaitUserCount(1));
+
+        String[] lines = new String[21];
+        Arrays.fill(lines, "");
+        lines[20] = "/ping";
+        client.send(lines);
+        assertEquals(List.of(), client.expect("SYSTEM:Pong! Server is alive."));
+    }
+
+    @Test
+    void dropsCommandsOverBudgetWithANotice() throws Exception {
+        // A burst of two seconds' worth passes, the third command does not
+        int port = start(new ServerConfig().setCommandMessagesPerSecond(1));
+        client = TextClient.login(port, "alice");
+        assertTrue(client.awaitUserCount(1));
+
+        client.send("/ping", "/ping", "/ping");
+        assertEquals(List.of(), client.expect("SYSTEM:Pong! Server is alive.", "SYSTEM:Pong! Server is alive.",
+            "SYSTEM:You are sending too fast; message dropped"));
+    }
+
+    private int start(ServerConfig config) throws Exception {
+        config.setPort(0)
+            .setJmxEnabled(false)
+            .setLogLevel(ServerConfig.LogLevel.WARN)
+            .setAcceptsPerSecondPerAddress(0);
+        server = new ChatServer(config);
+        return server.startAsync().get(TextClient.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,52 @@
+package com.arpon7fx.ar.messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ResumeBufferTest {
+
+    @Test
+    void replaysEverythingAfterTheLastReceivedMessage() {
+        ResumeBuffer buffer = recorded(4, 1, 2, 3);
+        assertEquals(List.of(2L, 3L), ids(buffer.after(1)));
+        assertEquals(List.of(), ids(buffer.after(3)));
+    }
+
+    @Test
+    void replaysEverythingWhenTheClientHasNoneYet() {
+        assertEquals(List.of(5L, 6L), ids(recorded(4, 5, 6).after(0)));
+        assertEquals(List.of(), ids(new ResumeBuffer(4).after(0)));
+    }
+
+    @Test
+    void findsMessagesByPositionWhenSequencesArriveOutOfOrder() {
+        // Concurrent senders can queue 11 before 10
+        ResumeBuffer buffer = recorded(8, 9, 11, 10, 12);
+        assertEquals(List.of(10L, 12L), ids(buffer.after(11)));
+    }
+
+    @Test
+    void givesUpOnceTheLastReceivedMessageWasOverwritten() {
+        ResumeBuffer buffer = recorded(3, 1, 2, 3, 4, 5);
+        assertEquals(List.of(4L, 5L), ids(buffer.after(3)));
+        assertNull(buffer.after(1));
+        assertNull(buffer.after(0));
+        assertEquals(List.of(3L, 4L, 5L), ids(buffer.all()));
+    }
+
+    private static ResumeBuffer recorded(int capacity, long... sequences) {
+        ResumeBuffer buffer = new ResumeBuffer(capacity);
+        for (long sequence : sequences) {
+            buffer.record(ServerMessage.chat(sequence, "alice", "message " + sequence));
+        }
+        return buffer;
+    }
+
+    private static List<Long> ids(List<ServerMessage> messages) {
+        return messages.stream().map(ServerMessage::getId).toList();
+    }
+}
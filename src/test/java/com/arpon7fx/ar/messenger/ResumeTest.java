@@ -0,0 +1,140 @@
+package com.arpon7fx.ar.messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/** Session resume as seen from the wire, with a hand-driven binary client. */
+class ResumeTest {
+    private ChatServer server;
+    private final List<AutoCloseable> connections = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (AutoCloseable connection : connections) {
+            connection.close();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    void dropsFramesResentAfterAReconnect() throws Exception {
+        checkResentFramesDropped(ServerConfig.Engine.NIO);
+    }
+
+    @Test
+    void dropsFramesResentAfterAReconnectOnBlockingEngine() throws Exception {
+        checkResentFramesDropped(ServerConfig.Engine.BLOCKING);
+    }
+
+    private void checkResentFramesDropped(ServerConfig.Engine engine) throws Exception {
+        int port = start(engine);
+        TextClient listener = TextClient.login(port, "listener");
+        connections.add(listener);
+        listener.awaitUserCount(1);
+
+        BinaryClient first = connect(port);
+        first.send(BinaryCodec.encode(BinaryCodec.HELLO, 1, "alice", false));
+        String token = first.awaitSession(0);
+        first.send(BinaryCodec.encode(BinaryCodec.CHAT, 2, "one", false),
+            BinaryCodec.encode(BinaryCodec.CHAT, 3, "two", false));
+        assertEquals(List.of(), listener.expect("alice:one", "alice:two"));
+        first.close();
+
+        // The client could not tell whether "two" got out, so it sends it again
+        BinaryClient second = connect(port);
+        second.send(BinaryCodec.encode(BinaryCodec.RESUME, 0, "alice", token, false));
+        second.awaitSession(1);
+        second.send(BinaryCodec.encode(BinaryCodec.CHAT, 3, "two", false),
+            BinaryCodec.encode(BinaryCodec.CHAT, 4, "three", false));
+
+        List<String> lines = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + TextClient.TIMEOUT_MILLIS;
+        String line;
+        do {
+            line = listener.poll(deadline);
+            assertNotNull(line, "never got alice:three, only " + lines);
+            if (line.startsWith("alice:")) {
+                lines.add(line);
+            }
+        } while (!line.equals("alice:three"));
+        assertEquals(List.of("alice:three"), lines);
+    }
+
+    private int start(ServerConfig.Engine engine) throws Exception {
+        ServerConfig config = new ServerConfig()
+            .setEngine(engine)
+            .setPort(0)
+            .setJmxEnabled(false)
+            .setLogLevel(ServerConfig.LogLevel.WARN)
+            .setAcceptsPerSecondPerAddress(0);
+        server = new ChatServer(config);
+        return server.startAsync().get(TextClient.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private BinaryClient connect(int port) throws IOException {
+        BinaryClient client = new BinaryClient(port);
+        connections.add(client);
+        return client;
+    }
+
+    /** Writes raw frames after the version 3 preface and reads frames on the calling thread. */
+    private static final class BinaryClient implements AutoCloseable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+        private final BinaryCodec.Decoder decoder = new BinaryCodec.Decoder(false);
+
+        BinaryClient(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout((int) TextClient.TIMEOUT_MILLIS);
+            out = socket.getOutputStream();
+            in = socket.getInputStream();
+            send(BinaryCodec.preface());
+        }
+
+        void send(ByteBuffer... frames) throws IOException {
+            for (ByteBuffer frame : frames) {
+                out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            }
+            out.flush();
+        }
+
+        /** Reads until a SESSION frame with the given id and returns its token. */
+        String awaitSession(long resumed) throws IOException {
+            String[] token = new String[1];
+            byte[] buffer = new byte[8192];
+            while (token[0] == null) {
+                int count = in.read(buffer);
+                if (count < 0) {
+                    throw new IOException("Closed before SESSION");
+                }
+                decoder.decode(ByteBuffer.wrap(buffer, 0, count), (type, id, payload) -> {
+                    if (type == BinaryCodec.SESSION && id == resumed) {
+                        token[0] = BinaryCodec.readRemaining(payload);
+                    }
+                    return true;
+                });
+            }
+            return token[0];
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
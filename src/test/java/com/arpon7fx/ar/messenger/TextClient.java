@@ -0,0 +1,114 @@
+package com.arpon7fx.ar.messenger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Raw text protocol connection for the server tests; a reader thread queues every line. */
+final class TextClient implements AutoCloseable {
+    static final long TIMEOUT_MILLIS = 15_000;
+
+    final String name;
+    final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+    private final Socket socket;
+    private final PrintWriter writer;
+
+    private TextClient(int port, String name) throws IOException {
+        this.name = name;
+        socket = new Socket("127.0.0.1", port);
+        writer = new PrintWriter(socket.getOutputStream(), false, StandardCharsets.UTF_8);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        Thread thread = new Thread(() -> {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }, "TextClient-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Connects without logging in. */
+    static TextClient connect(int port, String name) throws IOException {
+        return new TextClient(port, name);
+    }
+
+    static TextClient login(int port, String name) throws IOException {
+        TextClient client = new TextClient(port, name);
+        client.send(name);
+        return client;
+    }
+
+    /** Sends one or more lines with a single flush. */
+    void send(String... lines) {
+        for (String line : lines) {
+            writer.print(line + "\n");
+        }
+        writer.flush();
+    }
+
+    /** Queues a line without flushing, for floods. */
+    void queue(String line) {
+        writer.print(line + "\n");
+    }
+
+    void flush() {
+        writer.flush();
+    }
+
+    String poll(long deadline) throws InterruptedException {
+        return lines.poll(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /** Waits for a USERS: list with at least {@code count} names, skipping everything else. */
+    boolean awaitUserCount(int count) throws InterruptedException {
+        return awaitUserCount(count, TIMEOUT_MILLIS);
+    }
+
+    boolean awaitUserCount(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        String line;
+        while ((line = poll(deadline)) != null) {
+            if (line.startsWith("USERS:") && line.substring(6).split(",").length >= count) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits for all of the lines, in any order, skipping everything else.
+     *
+     * @return the ones that never arrived
+     */
+    List<String> expect(String... wanted) throws InterruptedException {
+        List<String> missing = new ArrayList<>(List.of(wanted));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        String line;
+        while (!missing.isEmpty() && (line = poll(deadline)) != null) {
+            missing.remove(line);
+        }
+        return missing;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Already closed
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.arpon7fx.ar.messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+    private final ServerLog log = new ServerLog(new ServerConfig().setLogLevel(ServerConfig.LogLevel.WARN));
+    private TimerWheel<String> wheel;
+
+    @AfterEach
+    void tearDown() {
+        if (wheel != null) {
+            wheel.stop();
+        }
+        log.close();
+    }
+
+    @Test
+    void expiresItemsOnceTheirDeadlinePasses() throws InterruptedException {
+        Map<String, Long> expired = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(3);
+        wheel = new TimerWheel<>("test-wheel", 5, 8, item -> {
+            expired.put(item, System.currentTimeMillis());
+            done.countDown();
+            return -1;
+        }, log);
+        long start = System.currentTimeMillis();
+        wheel.schedule("soon", start + 10);
+        // Several rotations of an 8 bucket wheel ahead
+        wheel.schedule("later", start + 200);
+        wheel.schedule("overdue", start - 1000);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS), "expired: " + expired.keySet());
+        assertTrue(expired.get("soon") >= start + 10);
+        assertTrue(expired.get("later") >= start + 200);
+    }
+
+    @Test
+    void keepsTimersThatReturnANewDeadline() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(3);
+        wheel = new TimerWheel<>("test-wheel", 5, 8, item -> {
+            calls.incrementAndGet();
+            done.countDown();
+            return done.getCount() > 0 ? System.currentTimeMillis() + 10 : -1;
+        }, log);
+        wheel.schedule("repeat", System.currentTimeMillis());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void survivesFailingCallbacks() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        wheel = new TimerWheel<>("test-wheel", 5, 8, item -> {
+            if (item.equals("bad")) {
+                throw new IllegalStateException("boom");
+            }
+            done.countDown();
+            return -1;
+        }, log);
+        long now = System.currentTimeMillis();
+        wheel.schedule("bad", now);
+        wheel.schedule("good", now + 20);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
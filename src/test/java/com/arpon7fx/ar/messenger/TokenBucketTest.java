@@ -0,0 +1,60 @@
+package com.arpon7fx.ar.messenger;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class TokenBucketTest {
+
+    @Test
+    void allowsABurstUpToCapacity() {
+        // Slow enough that nothing refills during the test
+        TokenBucket bucket = new TokenBucket(0.001, 5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire(1), "token " + i);
+        }
+        assertFalse(bucket.tryAcquire(1));
+        assertFalse(bucket.isFull());
+    }
+
+    @Test
+    void refillsOverTime() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000, 10);
+        assertTrue(bucket.tryAcquire(10));
+        assertFalse(bucket.tryAcquire(10));
+        Thread.sleep(50);
+        assertTrue(bucket.isFull());
+        assertTrue(bucket.tryAcquire(10));
+    }
+
+    @Test
+    void sizesBucketsFromTheRate() {
+        assertNull(TokenBucket.perSecond(0, 2, 1));
+        assertNull(TokenBucket.perSecond(-1, 2, 1));
+
+        TokenBucket bucket = TokenBucket.perSecond(0.001, 2, 3);
+        assertNotNull(bucket);
+        // The minimum capacity wins over a tiny rate times the burst
+        assertTrue(bucket.tryAcquire(3));
+        assertFalse(bucket.tryAcquire(1));
+    }
+
+    @Test
+    void takesFromBothBucketsOrNeither() {
+        TokenBucket messages = new TokenBucket(0.001, 10);
+        TokenBucket bytes = new TokenBucket(0.001, 100);
+        assertFalse(TokenBucket.tryAcquire(messages, 1, bytes, 101));
+        // The message budget was left alone
+        assertTrue(messages.tryAcquire(10));
+
+        TokenBucket more = new TokenBucket(0.001, 10);
+        assertTrue(TokenBucket.tryAcquire(more, 4, bytes, 100));
+        assertTrue(more.tryAcquire(6));
+        assertFalse(bytes.tryAcquire(1));
+
+        assertTrue(TokenBucket.tryAcquire(null, 1000, null, 1000));
+    }
+}